@@ -0,0 +1,107 @@
+package org.jocean.wsproxy.bench;
+
+import org.jocean.wsproxy.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * stub WSNode backend: accepts websocket on any path and echoes every data frame as is.
+ * <p>
+ * register with hostname/service/ip/port pointing here, eg: LoadHarness.
+ */
+public final class EchoBackend {
+    private static final Logger LOG = LoggerFactory.getLogger(EchoBackend.class);
+
+    public EchoBackend(final Transport transport, final int workers) {
+        this.transport = transport;
+        this.group = transport.newEventLoopGroup(workers);
+    }
+
+    public void start(final int port) throws InterruptedException {
+        channel = new ServerBootstrap()
+            .group(group)
+            .channel(transport.serverChannelClass())
+            .option(ChannelOption.SO_BACKLOG, 4096)
+            .childOption(ChannelOption.TCP_NODELAY, true)
+            .childHandler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(final Channel ch) {
+                    ch.pipeline().addLast(new HttpServerCodec());
+                    ch.pipeline().addLast(new HttpObjectAggregator(65536));
+                    ch.pipeline().addLast(new WebSocketServerProtocolHandler("/", null, true, 5 * 1024 * 1024,
+                            false, true));
+                    ch.pipeline().addLast(new Echo());
+                }})
+            .bind(port).sync().channel();
+        LOG.info("echo backend listen on {} with transport {}", channel.localAddress(), transport);
+    }
+
+    public void stop() {
+        if (null != channel) {
+            channel.close().awaitUninterruptibly();
+        }
+        group.shutdownGracefully().awaitUninterruptibly();
+    }
+
+    private static final class Echo extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame
+                    || msg instanceof ContinuationWebSocketFrame) {
+                ctx.write(msg);
+                if (!ctx.channel().isWritable()) {
+                    // resumed by channelWritabilityChanged
+                    ctx.channel().config().setAutoRead(false);
+                }
+            } else {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+
+        @Override
+        public void channelWritabilityChanged(final ChannelHandlerContext ctx) {
+            if (ctx.channel().isWritable()) {
+                ctx.channel().config().setAutoRead(true);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * @param args [port] [transport] [workers]
+     */
+    public static void main(final String[] args) throws Exception {
+        final EchoBackend backend = new EchoBackend(Transport.select(args.length > 1 ? args[1] : "auto"),
+                args.length > 2 ? Integer.parseInt(args[2]) : 0);
+        backend.start(args.length > 0 ? Integer.parseInt(args[0]) : 9090);
+        backend.channel.closeFuture().sync();
+    }
+
+    private final Transport transport;
+    private final EventLoopGroup group;
+    private Channel channel;
+}
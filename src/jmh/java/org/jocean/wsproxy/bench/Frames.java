@@ -0,0 +1,75 @@
+package org.jocean.wsproxy.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * pre-encoded wire bytes for benchmarks.
+ */
+final class Frames {
+    static final String TEXT = "text";
+    static final String BINARY = "binary";
+    // text message split into 4 fragments
+    static final String FRAGMENTED = "fragmented";
+
+    /**
+     * @return messages encoded back to back in one direct buffer, as one socket read
+     */
+    static ByteBuf encode(final String kind, final int size, final int messages, final boolean masked) {
+        final EmbeddedChannel encoder = new EmbeddedChannel(new WebSocket13FrameEncoder(masked));
+        for (int i = 0; i < messages; i++) {
+            for (final WebSocketFrame frame : message(kind, size)) {
+                encoder.writeOutbound(frame);
+            }
+        }
+        final ByteBuf wire = Unpooled.directBuffer();
+        ByteBuf buf;
+        while ((buf = encoder.readOutbound()) != null) {
+            wire.writeBytes(buf);
+            buf.release();
+        }
+        encoder.finishAndReleaseAll();
+        return wire;
+    }
+
+    static WebSocketFrame[] message(final String kind, final int size) {
+        switch (kind) {
+        case TEXT:
+            return new WebSocketFrame[] { new TextWebSocketFrame(text(size)) };
+        case BINARY:
+            final byte[] bytes = new byte[size];
+            ThreadLocalRandom.current().nextBytes(bytes);
+            return new WebSocketFrame[] { new BinaryWebSocketFrame(Unpooled.wrappedBuffer(bytes)) };
+        case FRAGMENTED:
+            final ByteBuf content = text(size);
+            final int quarter = size / 4;
+            return new WebSocketFrame[] {
+                    new TextWebSocketFrame(false, 0, content.readRetainedSlice(quarter)),
+                    new ContinuationWebSocketFrame(false, 0, content.readRetainedSlice(quarter)),
+                    new ContinuationWebSocketFrame(false, 0, content.readRetainedSlice(quarter)),
+                    new ContinuationWebSocketFrame(true, 0, content) };
+        default:
+            throw new IllegalArgumentException("unknown frame kind " + kind);
+        }
+    }
+
+    private static ByteBuf text(final int size) {
+        final ByteBuf buf = Unpooled.buffer(size);
+        for (int i = 0; i < size; i++) {
+            buf.writeByte('a' + i % 26);
+        }
+        return buf;
+    }
+
+    private Frames() {
+        // Unused
+    }
+}
@@ -0,0 +1,106 @@
+package org.jocean.wsproxy.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jocean.wsproxy.proxy.ProxySettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * downstream upgrade: raw request bytes through the initializer's http pipeline to the 101 response.
+ * <p>
+ * WebSocketProxyHandler connects upstream right after the upgrade, which EmbeddedChannel can't carry,
+ * so the handshake step is inlined here the same way the handler does it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+    private static final String REQUEST = "GET /wsin/bench/echo HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n";
+
+    @Param({ "true", "false" })
+    public boolean deflate;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        request = Unpooled.directBuffer().writeBytes(((deflate
+                ? REQUEST + "Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n"
+                : REQUEST) + "\r\n").getBytes(CharsetUtil.US_ASCII));
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        request.release();
+    }
+
+    @Benchmark
+    public int handshake() {
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        final ChannelPipeline pipeline = channel.pipeline();
+        pipeline.addLast(new HttpServerCodec());
+        pipeline.addLast(new HttpObjectAggregator(65536));
+        if (deflate) {
+            pipeline.addLast(settings.deflateConfig().newServerHandler());
+        }
+        pipeline.addLast(new Upgrade(settings.maxFramePayload));
+        channel.writeInbound(request.retainedDuplicate());
+
+        int written = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+            written++;
+        }
+        channel.finishAndReleaseAll();
+        return written;
+    }
+
+    private static final class Upgrade extends SimpleChannelInboundHandler<FullHttpRequest> {
+        Upgrade(final int maxFramePayload) {
+            this.maxFramePayload = maxFramePayload;
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final FullHttpRequest req) {
+            new WebSocketServerHandshakerFactory("ws://" + req.headers().get("Host") + req.uri(), null, true,
+                    maxFramePayload).newHandshaker(req).handshake(ctx.channel(), req);
+        }
+
+        private final int maxFramePayload;
+    }
+
+    private final ProxySettings settings = new ProxySettings();
+    private ByteBuf request;
+}
@@ -0,0 +1,31 @@
+package org.jocean.wsproxy.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jocean.wsproxy.proxy.WebSocketProxyIndexPage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexPageBenchmark {
+    @Benchmark
+    public int render() {
+        final ByteBuf content = WebSocketProxyIndexPage.getContent("localhost:8080/wsin/");
+        try {
+            return content.readableBytes();
+        } finally {
+            content.release();
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package org.jocean.wsproxy.bench;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jocean.idiom.ExceptionUtils;
+import org.jocean.wsproxy.LoopHistogram;
+import org.jocean.wsproxy.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+/**
+ * loopback load generator: ramps up websocket sessions against an echo backend (directly or through wsproxy),
+ * then every session sends timestamped binary messages at a fixed rate and measures the echo's round trip.
+ * <p>
+ * reports sessions/sec while ramping, msgs/sec and p50/p99/p999 latency while measuring, and process
+ * footprint (threads, RSS) at a tenth of the sessions and at all of them: both run in one process with
+ * the proxy when embedded, so threads should not grow with sessions, only RSS by a few KB per session.
+ */
+public final class LoadGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+
+    public static final class Options {
+        public String url = "ws://127.0.0.1:8080/wsin/bench/echo";
+        public int connections = 1000;
+        // new sessions per second while ramping
+        public int connectRate = 2000;
+        // messages per second per session
+        public double rate = 1;
+        // payload bytes, at least 8 for the timestamp
+        public int size = 64;
+        // measure seconds after ramp
+        public int duration = 30;
+        public int workers = 0;
+        public String transport = "auto";
+        // comma separated local ips, one target ip:port can take ~28k connections per local ip
+        public String sources = "";
+
+        /**
+         * @param args key=value pairs, unknown keys are ignored with a warning
+         */
+        public static Options of(final Map<String, String> args) {
+            final Options options = new Options();
+            for (final Map.Entry<String, String> entry : args.entrySet()) {
+                final String value = entry.getValue();
+                switch (entry.getKey()) {
+                case "url":
+                    options.url = value;
+                    break;
+                case "connections":
+                    options.connections = Integer.parseInt(value);
+                    break;
+                case "connectRate":
+                    options.connectRate = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    options.rate = Double.parseDouble(value);
+                    break;
+                case "size":
+                    options.size = Math.max(8, Integer.parseInt(value));
+                    break;
+                case "duration":
+                    options.duration = Integer.parseInt(value);
+                    break;
+                case "workers":
+                    options.workers = Integer.parseInt(value);
+                    break;
+                case "transport":
+                    options.transport = value;
+                    break;
+                case "sources":
+                    options.sources = value;
+                    break;
+                default:
+                    LOG.warn("unknown option {}={}, ignored", entry.getKey(), value);
+                }
+            }
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return "Options [url=" + url + ", connections=" + connections + ", connectRate=" + connectRate
+                    + ", rate=" + rate + ", size=" + size + ", duration=" + duration + ", workers=" + workers
+                    + ", transport=" + transport + ", sources=" + sources + "]";
+        }
+    }
+
+    /**
+     * threads and resident memory of this process with some sessions open
+     */
+    public static final class Footprint {
+        static Footprint sample(final long sessions) {
+            return new Footprint(sessions, ManagementFactory.getThreadMXBean().getThreadCount(), rss());
+        }
+
+        Footprint(final long sessions, final int threads, final long rssBytes) {
+            this.sessions = sessions;
+            this.threads = threads;
+            this.rssBytes = rssBytes;
+        }
+
+        // VmRSS of /proc/self/status, -1 if not on linux
+        private static long rss() {
+            try {
+                for (final String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8)) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            } catch (final Exception e) {
+                LOG.debug("read rss failed, detail: {}", ExceptionUtils.exception2detail(e));
+            }
+            return -1;
+        }
+
+        final long sessions;
+        final int threads;
+        final long rssBytes;
+    }
+
+    public static final class Report {
+        Report(final long sessions, final long failed, final long rampNanos, final long sent, final long received,
+                final long measuredNanos, final LoopHistogram.Snapshot latency,
+                final LoopHistogram.Snapshot handshake, final Footprint early, final Footprint late,
+                final long totalMessages) {
+            this.sessions = sessions;
+            this.failed = failed;
+            this.rampNanos = rampNanos;
+            this.sent = sent;
+            this.received = received;
+            this.measuredNanos = measuredNanos;
+            this.latency = latency;
+            this.handshake = handshake;
+            this.early = early;
+            this.late = late;
+            this.totalMessages = totalMessages;
+        }
+
+        public double sessionsPerSecond() {
+            return rampNanos > 0 ? sessions * 1e9 / rampNanos : 0;
+        }
+
+        /**
+         * @return messages sent and received over the whole run, ramp included
+         */
+        public long totalMessages() {
+            return totalMessages;
+        }
+
+        public double msgsPerSecond() {
+            return measuredNanos > 0 ? received * 1e9 / measuredNanos : 0;
+        }
+
+        /**
+         * @return true if thread count did not grow from a tenth of the sessions to all of them
+         */
+        public boolean threadsFlat() {
+            return late.threads <= early.threads;
+        }
+
+        public double rssBytesPerSession() {
+            final long sessions = late.sessions - early.sessions;
+            return sessions > 0 && early.rssBytes >= 0 ? (double) (late.rssBytes - early.rssBytes) / sessions : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sessions: %d established, %d failed, %.1f sessions/sec%n"
+                    + "handshake(us): p50=%d p99=%d p999=%d max=%d%n"
+                    + "messages: %d sent, %d received, %.1f msgs/sec%n"
+                    + "latency(us): p50=%d p99=%d p999=%d max=%d%n"
+                    + "footprint: %d -> %d sessions, threads %d -> %d (%s), rss %.1fMB -> %.1fMB, %.1fKB/session",
+                    sessions, failed, sessionsPerSecond(),
+                    handshake.valueAt(0.5), handshake.valueAt(0.99), handshake.valueAt(0.999), handshake.max(),
+                    sent, received, msgsPerSecond(),
+                    latency.valueAt(0.5), latency.valueAt(0.99), latency.valueAt(0.999), latency.max(),
+                    early.sessions, late.sessions, early.threads, late.threads, threadsFlat() ? "flat" : "GROWN",
+                    early.rssBytes / 1048576.0, late.rssBytes / 1048576.0, rssBytesPerSession() / 1024);
+        }
+
+        private final long sessions;
+        private final long failed;
+        private final long rampNanos;
+        private final long sent;
+        private final long received;
+        private final long measuredNanos;
+        private final LoopHistogram.Snapshot latency;
+        private final LoopHistogram.Snapshot handshake;
+        private final Footprint early;
+        private final Footprint late;
+        private final long totalMessages;
+    }
+
+    public LoadGenerator(final Options options) {
+        this.options = options;
+    }
+
+    public Report run() throws Exception {
+        LOG.info("run load with {}", options);
+        final URI uri = new URI(options.url);
+        final InetSocketAddress target = new InetSocketAddress(uri.getHost(),
+                uri.getPort() > 0 ? uri.getPort() : 80);
+        final List<InetSocketAddress> sources = new ArrayList<>();
+        for (final String ip : options.sources.split(",")) {
+            if (!ip.trim().isEmpty()) {
+                sources.add(new InetSocketAddress(ip.trim(), 0));
+            }
+        }
+        final Transport transport = Transport.select(options.transport);
+        final EventLoopGroup group = transport.newEventLoopGroup(options.workers);
+        final ChannelGroup channels = new DefaultChannelGroup("wsload", GlobalEventExecutor.INSTANCE);
+        try {
+            final Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(final Channel ch) {
+                        channels.add(ch);
+                        ch.pipeline().addLast(new HttpClientCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(8192));
+                        ch.pipeline().addLast(new Session(WebSocketClientHandshakerFactory.newHandshaker(uri,
+                                WebSocketVersion.V13, null, false, new DefaultHttpHeaders(), 5 * 1024 * 1024)));
+                    }});
+
+            final long rampBegin = System.nanoTime();
+            final long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, options.connectRate);
+            // event loops start threads lazily, at this many sessions all of them are up
+            final long earlySessions = Math.max(options.connections / 10,
+                    4 * Runtime.getRuntime().availableProcessors());
+            Footprint early = null;
+            for (int i = 0; i < options.connections; i++) {
+                if (null == early && established.sum() >= earlySessions) {
+                    early = Footprint.sample(established.sum());
+                }
+                final long wait = rampBegin + i * interval - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                final ChannelFuture future = sources.isEmpty() ? bootstrap.connect(target)
+                        : bootstrap.connect(target, sources.get(i % sources.size()));
+                future.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(final ChannelFuture future) {
+                        if (!future.isSuccess()) {
+                            failed.increment();
+                            LOG.debug("connect {} failed, detail: {}", target,
+                                    ExceptionUtils.exception2detail(future.cause()));
+                        }
+                    }});
+            }
+            final long settleDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (established.sum() + failed.sum() < options.connections && System.nanoTime() < settleDeadline) {
+                if (null == early && established.sum() >= earlySessions) {
+                    early = Footprint.sample(established.sum());
+                }
+                Thread.sleep(10);
+            }
+            final long rampNanos = lastOpenedNanos - rampBegin;
+            LOG.info("ramp up {} session(s), {} failed", established.sum(), failed.sum());
+            final Footprint late = Footprint.sample(established.sum());
+
+            final long sent0 = sent.sum();
+            final long received0 = received.sum();
+            final long measureBegin = System.nanoTime();
+            measuring = true;
+            Thread.sleep(TimeUnit.SECONDS.toMillis(options.duration));
+            measuring = false;
+            final long measuredNanos = System.nanoTime() - measureBegin;
+
+            return new Report(established.sum(), failed.sum(), rampNanos, sent.sum() - sent0,
+                    received.sum() - received0, measuredNanos, latency.snapshot(), handshakes.snapshot(),
+                    null != early ? early : late, late, sent.sum() + received.sum());
+        } finally {
+            channels.close().awaitUninterruptibly();
+            group.shutdownGracefully().awaitUninterruptibly();
+        }
+    }
+
+    private final class Session extends ChannelInboundHandlerAdapter implements Runnable {
+        Session(final WebSocketClientHandshaker handshaker) {
+            this.handshaker = handshaker;
+        }
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+            begin = System.nanoTime();
+            handshaker.handshake(ctx.channel());
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) {
+            if (null != sender) {
+                sender.cancel(false);
+            }
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            try {
+                if (!handshaker.isHandshakeComplete()) {
+                    handshaker.finishHandshake(ctx.channel(), (FullHttpResponse) msg);
+                    onOpened();
+                } else if (msg instanceof BinaryWebSocketFrame) {
+                    final ByteBuf content = ((BinaryWebSocketFrame) msg).content();
+                    if (measuring) {
+                        latency.record((System.nanoTime() - content.getLong(content.readerIndex())) / 1000);
+                    }
+                    received.increment();
+                } else if (msg instanceof CloseWebSocketFrame) {
+                    ctx.close();
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            if (!handshaker.isHandshakeComplete()) {
+                failed.increment();
+            }
+            LOG.debug("session {} closed, detail: {}", ctx.channel(), ExceptionUtils.exception2detail(cause));
+            ctx.close();
+        }
+
+        private void onOpened() {
+            final long now = System.nanoTime();
+            handshakes.record((now - begin) / 1000);
+            established.increment();
+            lastOpenedNanos = now;
+            final long period = (long) (TimeUnit.SECONDS.toNanos(1) / options.rate);
+            // spread sessions over the period
+            sender = ctx.executor().scheduleAtFixedRate(this, ThreadLocalRandom.current().nextLong(period),
+                    period, TimeUnit.NANOSECONDS);
+        }
+
+        // send one message, skipped while channel not writable
+        @Override
+        public void run() {
+            if (!ctx.channel().isWritable()) {
+                return;
+            }
+            final ByteBuf payload = ctx.alloc().buffer(options.size);
+            payload.writeLong(System.nanoTime());
+            payload.writerIndex(options.size);
+            ctx.writeAndFlush(new BinaryWebSocketFrame(payload), ctx.voidPromise());
+            sent.increment();
+        }
+
+        private final WebSocketClientHandshaker handshaker;
+        private ChannelHandlerContext ctx;
+        private long begin;
+        private ScheduledFuture<?> sender;
+    }
+
+    static Map<String, String> parse(final String[] args) {
+        final Map<String, String> parsed = new LinkedHashMap<>();
+        for (final String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq > 0) {
+                parsed.put(arg.substring(0, eq), arg.substring(eq + 1));
+            } else {
+                LOG.warn("invalid argument {}, expect key=value", arg);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * @param args key=value options against a running wsproxy or EchoBackend, eg: url=ws://host:8080/wsin/bench/echo
+     */
+    public static void main(final String[] args) throws Exception {
+        System.out.println(new LoadGenerator(Options.of(parse(args))).run());
+    }
+
+    private final Options options;
+    private final LongAdder established = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LoopHistogram latency = new LoopHistogram();
+    private final LoopHistogram handshakes = new LoopHistogram();
+    private volatile long lastOpenedNanos;
+    private volatile boolean measuring;
+}
@@ -0,0 +1,80 @@
+package org.jocean.wsproxy.bench;
+
+import java.util.Map;
+
+import org.jocean.wsproxy.RouteTable;
+import org.jocean.wsproxy.Transport;
+import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.proxy.ProxySettings;
+import org.jocean.wsproxy.proxy.WebSocketProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * embedded load test on loopback: EchoBackend registered as WSNode bench/echo, wsproxy in front of it,
+ * LoadGenerator through the proxy.
+ * <p>
+ * args are LoadGenerator's key=value options plus proxyPort, backendPort and relay (decoded, streaming or raw),
+ * eg: connections=100000 connectRate=5000 rate=1 sources=127.0.0.1,127.0.0.2
+ * <p>
+ * also reports proxy flushes per relayed frame, each message sent or echoed is relayed once:
+ * 1.0 means every relayed frame cost its own write syscall, less means flushes were coalesced.
+ */
+public final class LoadHarness {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadHarness.class);
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> parsed = LoadGenerator.parse(args);
+        final int proxyPort = Integer.parseInt(option(parsed, "proxyPort", "8080"));
+        final int backendPort = Integer.parseInt(option(parsed, "backendPort", "9090"));
+        final String relay = option(parsed, "relay", "decoded");
+        parsed.put("url", "ws://127.0.0.1:" + proxyPort + "/wsin/bench/echo");
+        final LoadGenerator.Options options = LoadGenerator.Options.of(parsed);
+
+        final EchoBackend backend = new EchoBackend(Transport.select(options.transport), 0);
+        backend.start(backendPort);
+
+        final RouteTable routes = new RouteTable();
+        final WSNode node = new WSNode();
+        node.hostname = "bench";
+        node.service = "echo";
+        node.ip = "127.0.0.1";
+        node.port = backendPort;
+        node.balance = "round-robin";
+        node.hashKey = "path";
+        node.fanoutSlow = "drop";
+        routes.register(node);
+
+        final ProxySettings settings = new ProxySettings();
+        settings.transport = options.transport;
+        settings.rawRelay = "raw".equals(relay);
+        settings.streamingRelay = "streaming".equals(relay);
+        // sessions are closed by the generator before stop
+        settings.drainWindowMillis = 0;
+        final WebSocketProxy proxy = new WebSocketProxy(routes, settings, proxyPort);
+        proxy.start();
+        try {
+            final LoadGenerator.Report report = new LoadGenerator(options).run();
+            LOG.info("relay {} with {}:\n{}", relay, settings, report);
+            System.out.println(report);
+            final long flushes = settings.flushPolicy().flushes();
+            System.out.println(String.format("flushes: %d, %.3f per relayed frame", flushes,
+                    report.totalMessages() > 0 ? (double) flushes / report.totalMessages() : 0));
+            if (!report.threadsFlat()) {
+                LOG.warn("thread count grew with sessions, some per-connection thread in relay path");
+            }
+        } finally {
+            proxy.stop();
+            backend.stop();
+        }
+    }
+
+    private static String option(final Map<String, String> parsed, final String key, final String defaultValue) {
+        final String value = parsed.remove(key);
+        return null != value ? value : defaultValue;
+    }
+
+    private LoadHarness() {
+        // Unused
+    }
+}
@@ -0,0 +1,129 @@
+package org.jocean.wsproxy.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jocean.wsproxy.FlushPolicy;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.proxy.ProxySettings;
+import org.jocean.wsproxy.proxy.RawFrameRelay;
+import org.jocean.wsproxy.proxy.StreamingFrameDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * relay path of one session: wire bytes read from one side, decoded (or scanned when raw),
+ * written and encoded to the other side.
+ * <p>
+ * upstream: masked client frames relayed masked to backend, downstream: unmasked backend frames relayed to client.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+    // messages per socket read
+    static final int BATCH = 64;
+
+    @Param({ Frames.TEXT, Frames.BINARY, Frames.FRAGMENTED })
+    public String kind;
+
+    @Param({ "64", "1024", "16384" })
+    public int size;
+
+    @Param({ "upstream", "downstream" })
+    public String direction;
+
+    // decoded: frame objects (default), streaming: wsproxy.relay.streaming, raw: wsproxy.relay.raw
+    @Param({ "decoded", "streaming", "raw" })
+    public String relay;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final ProxySettings settings = new ProxySettings();
+        final FlushPolicy flushPolicy = settings.flushPolicy();
+        final boolean masked = "upstream".equals(direction);
+
+        out = new EmbeddedChannel(new WebSocket13FrameEncoder(masked));
+        in = new EmbeddedChannel(new WebSocket13FrameDecoder(masked, true, settings.maxFramePayload));
+        switch (relay) {
+        case "raw":
+            new RawFrameRelay(flushPolicy, settings.pendingMaxBytes, false, new ProxyMetrics())
+                .installOn(in.pipeline()).attach(out);
+            break;
+        case "streaming":
+            new StreamingFrameDecoder(masked, settings.maxFragmentSize).installOn(in.pipeline());
+            in.pipeline().addLast(new FrameRelay(flushPolicy.newFlusher(out)));
+            break;
+        default:
+            in.pipeline().addLast(new FrameRelay(flushPolicy.newFlusher(out)));
+        }
+        wire = Frames.encode(kind, size, BATCH, masked);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        in.finishAndReleaseAll();
+        out.finishAndReleaseAll();
+        wire.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int relay() {
+        in.writeInbound(wire.retainedDuplicate());
+        int written = 0;
+        Object msg;
+        while ((msg = out.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * as WebSocketClientHandler's relay: write every data frame, flush once per read.
+     */
+    private static final class FrameRelay extends ChannelInboundHandlerAdapter {
+        FrameRelay(final FlushPolicy.Flusher flusher) {
+            this.flusher = flusher;
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            flusher.write(msg);
+        }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) {
+            flusher.flush();
+        }
+
+        private final FlushPolicy.Flusher flusher;
+    }
+
+    private EmbeddedChannel in;
+    private EmbeddedChannel out;
+    private ByteBuf wire;
+}
@@ -0,0 +1,99 @@
+package org.jocean.wsproxy.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jocean.wsproxy.RouteTable;
+import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.WSService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * route table lookup plus node selection, cycling over all registered (hostname, service).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteLookupBenchmark {
+    private static final int SERVICES_PER_HOST = 4;
+
+    @Param({ "1", "100", "1000" })
+    public int hosts;
+
+    @Param({ "1", "4" })
+    public int nodesPerService;
+
+    @Param({ "round-robin", "least-active", "p2c", "consistent-hash" })
+    public String balance;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        hostnames = new String[hosts * SERVICES_PER_HOST];
+        services = new String[hostnames.length];
+        for (int h = 0; h < hosts; h++) {
+            for (int s = 0; s < SERVICES_PER_HOST; s++) {
+                final int idx = h * SERVICES_PER_HOST + s;
+                hostnames[idx] = "host" + h;
+                services[idx] = "service" + s;
+                for (int n = 0; n < nodesPerService; n++) {
+                    routes.register(node(hostnames[idx], services[idx], n));
+                }
+            }
+        }
+        request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/wsin/host0/service0/room/42");
+    }
+
+    @Benchmark
+    public WSService lookup() {
+        final int idx = next();
+        return routes.lookup(hostnames[idx], services[idx]);
+    }
+
+    @Benchmark
+    public WSNode lookupAndSelect() {
+        final int idx = next();
+        return routes.lookup(hostnames[idx], services[idx]).select(request);
+    }
+
+    private int next() {
+        if (++cursor == hostnames.length) {
+            cursor = 0;
+        }
+        return cursor;
+    }
+
+    private WSNode node(final String hostname, final String service, final int n) {
+        final WSNode node = new WSNode();
+        node.hostname = hostname;
+        node.service = service;
+        node.ip = "10.0.0." + n;
+        node.port = 8080;
+        node.balance = balance;
+        node.hashKey = "path";
+        return node;
+    }
+
+    private final RouteTable routes = new RouteTable();
+    private String[] hostnames;
+    private String[] services;
+    private HttpRequest request;
+    private int cursor;
+}
@@ -0,0 +1,76 @@
+package org.jocean.wsproxy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
+
+/**
+ * socket and channel options applied to both downstream (accepted) and upstream channels
+ */
+public class ChannelTuning {
+
+    /**
+     * @param sendBufferSize 0 means os default
+     * @param receiveBufferSize 0 means os default
+     */
+    public ChannelTuning(final boolean tcpNoDelay, final boolean tcpQuickAck,
+            final int sendBufferSize, final int receiveBufferSize,
+            final int lowWaterMark, final int highWaterMark) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.tcpQuickAck = tcpQuickAck;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.waterMark = new WriteBufferWaterMark(lowWaterMark, highWaterMark);
+    }
+
+    public void apply(final Bootstrap b, final Transport transport) {
+        for (final Map.Entry<ChannelOption<Object>, Object> entry : options(transport).entrySet()) {
+            b.option(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void applyChild(final ServerBootstrap b, final Transport transport) {
+        for (final Map.Entry<ChannelOption<Object>, Object> entry : options(transport).entrySet()) {
+            b.childOption(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<ChannelOption<Object>, Object> options(final Transport transport) {
+        final Map<ChannelOption<?>, Object> options = new LinkedHashMap<>();
+        options.put(ChannelOption.TCP_NODELAY, tcpNoDelay);
+        options.put(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark);
+        if (sendBufferSize > 0) {
+            options.put(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            options.put(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        if (tcpQuickAck) {
+            final ChannelOption<Boolean> quickAck = transport.nativeOption("TCP_QUICKACK");
+            if (null != quickAck) {
+                options.put(quickAck, true);
+            }
+        }
+        return (Map<ChannelOption<Object>, Object>) (Map<?, ?>) options;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ChannelTuning [tcpNoDelay=").append(tcpNoDelay).append(", tcpQuickAck=").append(tcpQuickAck)
+                .append(", sendBufferSize=").append(sendBufferSize).append(", receiveBufferSize=")
+                .append(receiveBufferSize).append(", waterMark=").append(waterMark).append("]");
+        return builder.toString();
+    }
+
+    private final boolean tcpNoDelay;
+    private final boolean tcpQuickAck;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final WriteBufferWaterMark waterMark;
+}
\ No newline at end of file
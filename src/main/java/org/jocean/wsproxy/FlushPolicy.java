@@ -0,0 +1,83 @@
+package org.jocean.wsproxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.channel.Channel;
+
+/**
+ * coalesce flushes of relayed frames: writes are flushed together at the end of the source channel's read loop,
+ * or earlier when maxFrames writes pending, or maxDelayMillis elapsed since the first unflushed write.
+ */
+public class FlushPolicy {
+
+    /**
+     * @param maxFrames flush when this many writes are pending, 1 means flush every write
+     * @param maxDelayMillis flush pending writes at latest after this delay, 0 disables the timer
+     */
+    public FlushPolicy(final int maxFrames, final long maxDelayMillis) {
+        this.maxFrames = Math.max(1, maxFrames);
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public Flusher newFlusher(final Channel target) {
+        return new Flusher(target);
+    }
+
+    /**
+     * @return flushes issued by all flushers of this policy, each one a write syscall at most
+     */
+    public long flushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * not thread safe, must be called from target channel's event loop
+     */
+    public final class Flusher implements Runnable {
+
+        Flusher(final Channel target) {
+            this.target = target;
+        }
+
+        public void write(final Object msg) {
+            target.write(msg);
+            if (++pending >= maxFrames) {
+                flush();
+            } else if (maxDelayMillis > 0 && !scheduled) {
+                scheduled = true;
+                target.eventLoop().schedule(this, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        public void flush() {
+            if (pending > 0) {
+                pending = 0;
+                flushes.increment();
+                target.flush();
+            }
+        }
+
+        @Override
+        public void run() {
+            scheduled = false;
+            flush();
+        }
+
+        private final Channel target;
+        private int pending = 0;
+        private boolean scheduled = false;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("FlushPolicy [maxFrames=").append(maxFrames).append(", maxDelayMillis=").append(maxDelayMillis)
+                .append("]");
+        return builder.toString();
+    }
+
+    private final int maxFrames;
+    private final long maxDelayMillis;
+    private final LongAdder flushes = new LongAdder();
+}
\ No newline at end of file
@@ -0,0 +1,203 @@
+package org.jocean.wsproxy;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+/**
+ * reader idle detection of proxy and upstream channels, like IdleStateHandler's reader idle,
+ * but driven by one shared wheel timer: re-arming is O(1) and event loops' scheduled task queues
+ * don't hold a task per channel.
+ * <p>
+ * a channel not read for pingMillis gets READER_IDLE IdleStateEvent, repeated every pingMillis,
+ * the owner pings the peer if isPing(). once not read for timeoutMillis it gets ALL_IDLE,
+ * and the owner reaps it.
+ * <p>
+ * without pings a healthy peer that only receives would never be read from, so a reap only policy
+ * counts writes as activity too.
+ */
+public class IdlePolicy {
+
+    public IdlePolicy(final Timer timer, final long pingMillis, final long timeoutMillis, final int closeCode) {
+        this(timer, pingMillis, timeoutMillis, closeCode, true);
+    }
+
+    private IdlePolicy(final Timer timer, final long pingMillis, final long timeoutMillis, final int closeCode,
+            final boolean ping) {
+        this.timer = timer;
+        this.pingNanos = TimeUnit.MILLISECONDS.toNanos(pingMillis);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(pingMillis, timeoutMillis));
+        this.closeCode = closeCode;
+        this.ping = ping;
+    }
+
+    /**
+     * same timer and timeouts, without pings, for channels whose frames aren't decoded, eg: raw relay.
+     * writes count as activity, a push only session is kept
+     */
+    public IdlePolicy reapOnly() {
+        return new IdlePolicy(timer, TimeUnit.NANOSECONDS.toMillis(pingNanos),
+                TimeUnit.NANOSECONDS.toMillis(timeoutNanos), closeCode, false);
+    }
+
+    public boolean isPing() {
+        return ping;
+    }
+
+    /**
+     * @return status code of close frame sent to reaped peer
+     */
+    public int closeCode() {
+        return closeCode;
+    }
+
+    public IdleTimer newHandler() {
+        return new IdleTimer();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    /**
+     * must be first in pipeline, so every read counts
+     */
+    public final class IdleTimer extends ChannelDuplexHandler implements TimerTask, Runnable {
+
+        @Override
+        public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isActive() && ctx.channel().isRegistered()) {
+                initialize(ctx);
+            }
+        }
+
+        @Override
+        public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+            destroy();
+        }
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+            initialize(ctx);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            destroy();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+            reading = true;
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+            if (reading) {
+                reading = false;
+                lastReadNanos = System.nanoTime();
+            }
+            ctx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise)
+                throws Exception {
+            if (!ping) {
+                // taken as activity when timer expires, no clock read per write
+                written = true;
+            }
+            ctx.write(msg, promise);
+        }
+
+        private void initialize(final ChannelHandlerContext ctx) {
+            if (null != this.ctx || destroyed) {
+                return;
+            }
+            this.ctx = ctx;
+            lastReadNanos = System.nanoTime();
+            arm(pingNanos);
+        }
+
+        private void destroy() {
+            destroyed = true;
+            if (null != timeout) {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
+
+        private void arm(final long delayNanos) {
+            timeout = timer.newTimeout(this, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run(final Timeout timeout) {
+            // expired on timer's thread, check on channel's event loop
+            ctx.executor().execute(this);
+        }
+
+        @Override
+        public void run() {
+            if (destroyed) {
+                return;
+            }
+            if (reading) {
+                arm(pingNanos);
+                return;
+            }
+            if (written) {
+                written = false;
+                lastReadNanos = System.nanoTime();
+            }
+            final long idleNanos = System.nanoTime() - lastReadNanos;
+            if (idleNanos < pingNanos) {
+                arm(pingNanos - idleNanos);
+                return;
+            }
+            final boolean first = lastReadNanos != lastIdleOf;
+            lastIdleOf = lastReadNanos;
+            arm(pingNanos);
+            if (idleNanos >= timeoutNanos) {
+                ctx.fireUserEventTriggered(first ? IdleStateEvent.FIRST_ALL_IDLE_STATE_EVENT
+                        : IdleStateEvent.ALL_IDLE_STATE_EVENT);
+            } else {
+                ctx.fireUserEventTriggered(first ? IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT
+                        : IdleStateEvent.READER_IDLE_STATE_EVENT);
+            }
+        }
+
+        private ChannelHandlerContext ctx;
+        private Timeout timeout;
+        private boolean reading = false;
+        private boolean destroyed = false;
+        // written since timer last expired, only tracked without pings
+        private boolean written = false;
+        // last read, or last write seen by timer without pings
+        private long lastReadNanos;
+        // lastReadNanos of previous idle event, to tell the first one of an idle period
+        private long lastIdleOf = -1;
+    }
+
+    @Override
+    public String toString() {
+        return "IdlePolicy [pingMillis=" + TimeUnit.NANOSECONDS.toMillis(pingNanos)
+                + ", timeoutMillis=" + TimeUnit.NANOSECONDS.toMillis(timeoutNanos)
+                + ", closeCode=" + closeCode + ", ping=" + ping + "]";
+    }
+
+    private final Timer timer;
+    private final long pingNanos;
+    private final long timeoutNanos;
+    private final int closeCode;
+    private final boolean ping;
+}
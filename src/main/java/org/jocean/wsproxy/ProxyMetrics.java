@@ -0,0 +1,257 @@
+package org.jocean.wsproxy;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+
+/**
+ * counters updated on the relay hot path, LongAdder keeps contention between event loops low,
+ * latencies and queue depths are recorded in per event loop histograms.
+ */
+public class ProxyMetrics {
+
+    /**
+     * data frames relayed from client to backend
+     */
+    public void onClientFrames(final int frames, final long bytes) {
+        clientFrames.add(frames);
+        clientBytes.add(bytes);
+    }
+
+    /**
+     * data frames relayed from backend to client
+     */
+    public void onBackendFrames(final int frames, final long bytes) {
+        backendFrames.add(frames);
+        backendBytes.add(bytes);
+    }
+
+    /**
+     * from http request received to downstream websocket handshake complete
+     */
+    public void recordUpgrade(final long nanos) {
+        upgrade.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordRouteLookup(final long nanos) {
+        routeLookup.record(nanos);
+    }
+
+    /**
+     * tcp connect to backend
+     */
+    public void recordUpstreamConnect(final long nanos) {
+        upstreamConnect.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * from tcp connected to backend websocket handshake complete
+     */
+    public void recordUpstreamHandshake(final long nanos) {
+        upstreamHandshake.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * bytes queued in upstream channel when relayed frames are flushed
+     */
+    public void recordUpstreamQueue(final Channel upstream) {
+        upstreamQueue.record(queuedBytes(upstream));
+    }
+
+    /**
+     * bytes queued in downstream channel when relayed frames are flushed
+     */
+    public void recordDownstreamQueue(final Channel downstream) {
+        downstreamQueue.record(queuedBytes(downstream));
+    }
+
+    private static long queuedBytes(final Channel channel) {
+        final ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return null != buffer ? buffer.totalPendingWriteBytes() : 0;
+    }
+
+    /**
+     * downstream channel became unwritable, reading from upstream paused
+     */
+    public void onDownstreamThrottled() {
+        downstreamThrottled.increment();
+    }
+
+    /**
+     * upstream channel became unwritable, reading from downstream paused
+     */
+    public void onUpstreamThrottled() {
+        upstreamThrottled.increment();
+    }
+
+    /**
+     * session moved to another node after its upstream was lost
+     */
+    public void onUpstreamReconnected() {
+        upstreamReconnected.increment();
+    }
+
+    /**
+     * session took a prestarted upstream connection
+     */
+    public void onWarmHit() {
+        warmHits.increment();
+    }
+
+    /**
+     * session of a node with prestarted connections found none idle
+     */
+    public void onWarmMiss() {
+        warmMisses.increment();
+    }
+
+    /**
+     * fanout subscriber skipped a whole message while not writable
+     */
+    public void onFanoutDropped() {
+        fanoutDropped.increment();
+    }
+
+    /**
+     * fanout subscriber closed as too slow
+     */
+    public void onFanoutDisconnected() {
+        fanoutDisconnected.increment();
+    }
+
+    /**
+     * reading from client paused by rate limits
+     */
+    public void onRateLimited() {
+        rateLimited.increment();
+    }
+
+    /**
+     * upgrade answered 503 as max sessions reached
+     */
+    public void onSessionRejected() {
+        sessionsRejected.increment();
+    }
+
+    /**
+     * downstream or upstream closed as not read within idle timeout
+     */
+    public void onIdleReaped() {
+        idleReaped.increment();
+    }
+
+    public long getDownstreamThrottled() {
+        return downstreamThrottled.sum();
+    }
+
+    public long getUpstreamThrottled() {
+        return upstreamThrottled.sum();
+    }
+
+    public long getUpstreamReconnected() {
+        return upstreamReconnected.sum();
+    }
+
+    public long getWarmHits() {
+        return warmHits.sum();
+    }
+
+    public long getWarmMisses() {
+        return warmMisses.sum();
+    }
+
+    public long getFanoutDropped() {
+        return fanoutDropped.sum();
+    }
+
+    public long getFanoutDisconnected() {
+        return fanoutDisconnected.sum();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    public long getSessionsRejected() {
+        return sessionsRejected.sum();
+    }
+
+    public long getIdleReaped() {
+        return idleReaped.sum();
+    }
+
+    /**
+     * put all counters and histogram percentiles into values, in a stable order
+     */
+    public void collect(final Map<String, Long> values) {
+        values.put("frames.client", clientFrames.sum());
+        values.put("bytes.client", clientBytes.sum());
+        values.put("frames.backend", backendFrames.sum());
+        values.put("bytes.backend", backendBytes.sum());
+        values.put("throttled.downstream", getDownstreamThrottled());
+        values.put("throttled.upstream", getUpstreamThrottled());
+        values.put("upstream.reconnected", getUpstreamReconnected());
+        values.put("warm.hits", getWarmHits());
+        values.put("warm.misses", getWarmMisses());
+        values.put("fanout.dropped", getFanoutDropped());
+        values.put("fanout.disconnected", getFanoutDisconnected());
+        values.put("ratelimited", getRateLimited());
+        values.put("sessions.rejected", getSessionsRejected());
+        values.put("idle.reaped", getIdleReaped());
+        collect(values, "latency.upgrade.us", upgrade);
+        collect(values, "latency.route.ns", routeLookup);
+        collect(values, "latency.upstream.connect.us", upstreamConnect);
+        collect(values, "latency.upstream.handshake.us", upstreamHandshake);
+        collect(values, "queue.upstream.bytes", upstreamQueue);
+        collect(values, "queue.downstream.bytes", downstreamQueue);
+    }
+
+    private static void collect(final Map<String, Long> values, final String name, final LoopHistogram histogram) {
+        final LoopHistogram.Snapshot snapshot = histogram.snapshot();
+        values.put(name + ".count", snapshot.count());
+        values.put(name + ".p50", snapshot.valueAt(0.5));
+        values.put(name + ".p99", snapshot.valueAt(0.99));
+        values.put(name + ".p999", snapshot.valueAt(0.999));
+        values.put(name + ".max", snapshot.max());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ProxyMetrics [downstreamThrottled=").append(getDownstreamThrottled())
+                .append(", upstreamThrottled=").append(getUpstreamThrottled())
+                .append(", upstreamReconnected=").append(getUpstreamReconnected())
+                .append(", warmHits=").append(getWarmHits())
+                .append(", warmMisses=").append(getWarmMisses())
+                .append(", fanoutDropped=").append(getFanoutDropped())
+                .append(", fanoutDisconnected=").append(getFanoutDisconnected())
+                .append(", rateLimited=").append(getRateLimited())
+                .append(", sessionsRejected=").append(getSessionsRejected())
+                .append(", idleReaped=").append(getIdleReaped()).append("]");
+        return builder.toString();
+    }
+
+    private final LongAdder clientFrames = new LongAdder();
+    private final LongAdder clientBytes = new LongAdder();
+    private final LongAdder backendFrames = new LongAdder();
+    private final LongAdder backendBytes = new LongAdder();
+    private final LongAdder downstreamThrottled = new LongAdder();
+    private final LongAdder upstreamThrottled = new LongAdder();
+    private final LongAdder upstreamReconnected = new LongAdder();
+    private final LongAdder warmHits = new LongAdder();
+    private final LongAdder warmMisses = new LongAdder();
+    private final LongAdder fanoutDropped = new LongAdder();
+    private final LongAdder fanoutDisconnected = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder sessionsRejected = new LongAdder();
+    private final LongAdder idleReaped = new LongAdder();
+    private final LoopHistogram upgrade = new LoopHistogram();
+    private final LoopHistogram routeLookup = new LoopHistogram();
+    private final LoopHistogram upstreamConnect = new LoopHistogram();
+    private final LoopHistogram upstreamHandshake = new LoopHistogram();
+    private final LoopHistogram upstreamQueue = new LoopHistogram();
+    private final LoopHistogram downstreamQueue = new LoopHistogram();
+}
\ No newline at end of file
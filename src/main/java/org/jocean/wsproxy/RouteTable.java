@@ -0,0 +1,110 @@
+package org.jocean.wsproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * routes (hostname, service) to WSService, populated by WSNode's init/destroy.
+ * <p>
+ * lookup reads an immutable snapshot without lock or allocation,
+ * register/unregister are rare and rebuild the snapshot under lock (copy-on-write).
+ */
+public class RouteTable {
+    private static final Logger LOG = LoggerFactory.getLogger(RouteTable.class);
+
+    public WSService lookup(final String hostname, final String service) {
+        final Map<String, WSService> services = _routes.get(hostname);
+        return null != services ? services.get(service) : null;
+    }
+
+    public synchronized void register(final WSNode node) {
+        final Map<String, WSService> services = _routes.get(node.hostname);
+        final WSService prev = null != services ? services.get(node.service) : null;
+        final WSService updated = null != prev ? prev.with(node)
+                : new WSService(node.hostname, node.service, ImmutableList.of(node), node);
+        _routes = rebuild(node.hostname, with(services, node.service, updated));
+        LOG.info("register {} to route {}/{}, now {} node(s)", node, node.hostname, node.service,
+                updated.nodes().size());
+    }
+
+    public synchronized void unregister(final WSNode node) {
+        final Map<String, WSService> services = _routes.get(node.hostname);
+        final WSService prev = null != services ? services.get(node.service) : null;
+        if (null == prev || !prev.nodes().contains(node)) {
+            return;
+        }
+        final WSService updated = prev.without(node);
+        _routes = rebuild(node.hostname, null != updated ? with(services, node.service, updated)
+                : without(services, node.service));
+        LOG.info("unregister {} from route {}/{}, remains {} node(s)", node, node.hostname, node.service,
+                null != updated ? updated.nodes().size() : 0);
+    }
+
+    /**
+     * @return snapshot of all routed services
+     */
+    public List<WSService> services() {
+        final List<WSService> services = new ArrayList<>();
+        for (final Map<String, WSService> byService : _routes.values()) {
+            services.addAll(byService.values());
+        }
+        return services;
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Map<String, WSService> services : _routes.values()) {
+            size += services.size();
+        }
+        return size;
+    }
+
+    private Map<String, Map<String, WSService>> rebuild(final String hostname, final Map<String, WSService> services) {
+        final ImmutableMap.Builder<String, Map<String, WSService>> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, Map<String, WSService>> entry : _routes.entrySet()) {
+            if (!entry.getKey().equals(hostname)) {
+                builder.put(entry);
+            }
+        }
+        if (!services.isEmpty()) {
+            builder.put(hostname, services);
+        }
+        return builder.build();
+    }
+
+    private static <V> Map<String, V> with(final Map<String, V> map, final String key, final V value) {
+        final ImmutableMap.Builder<String, V> builder = ImmutableMap.builder();
+        if (null != map) {
+            for (final Map.Entry<String, V> entry : map.entrySet()) {
+                if (!entry.getKey().equals(key)) {
+                    builder.put(entry);
+                }
+            }
+        }
+        return builder.put(key, value).build();
+    }
+
+    private static <V> Map<String, V> without(final Map<String, V> map, final String key) {
+        final ImmutableMap.Builder<String, V> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, V> entry : map.entrySet()) {
+            if (!entry.getKey().equals(key)) {
+                builder.put(entry);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return "RouteTable " + _routes;
+    }
+
+    private volatile Map<String, Map<String, WSService>> _routes = ImmutableMap.of();
+}
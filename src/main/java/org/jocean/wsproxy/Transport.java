@@ -0,0 +1,145 @@
+package org.jocean.wsproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * netty transport used by proxy and upstream channels, native transports are loaded by name,
+ * so they are optional at runtime: add netty-transport-native-epoll or netty-incubator-transport-native-io_uring
+ * to classpath to enable them.
+ */
+public enum Transport {
+    IO_URING("io.netty.incubator.channel.uring.IOUring",
+            "io.netty.incubator.channel.uring.IOUringEventLoopGroup",
+            "io.netty.incubator.channel.uring.IOUringServerSocketChannel",
+            "io.netty.incubator.channel.uring.IOUringSocketChannel",
+            "io.netty.incubator.channel.uring.IOUringChannelOption"),
+    EPOLL("io.netty.channel.epoll.Epoll",
+            "io.netty.channel.epoll.EpollEventLoopGroup",
+            "io.netty.channel.epoll.EpollServerSocketChannel",
+            "io.netty.channel.epoll.EpollSocketChannel",
+            "io.netty.channel.epoll.EpollChannelOption"),
+    NIO(null,
+            NioEventLoopGroup.class.getName(),
+            NioServerSocketChannel.class.getName(),
+            NioSocketChannel.class.getName(),
+            null);
+
+    private static final Logger LOG = LoggerFactory.getLogger(Transport.class);
+
+    Transport(final String availability, final String eventLoopGroup, final String serverChannel,
+            final String socketChannel, final String nativeOptions) {
+        this.availability = availability;
+        this.eventLoopGroup = eventLoopGroup;
+        this.serverChannel = serverChannel;
+        this.socketChannel = socketChannel;
+        this.nativeOptions = nativeOptions;
+    }
+
+    /**
+     * @param name one of "auto", "io_uring", "epoll", "nio", auto picks io_uring, then epoll, then nio
+     */
+    public static Transport select(final String name) {
+        if (null == name || "auto".equalsIgnoreCase(name)) {
+            for (final Transport transport : values()) {
+                if (transport.isAvailable()) {
+                    return transport;
+                }
+            }
+            return NIO;
+        }
+        final Transport transport = valueOf(name.toUpperCase());
+        if (!transport.isAvailable()) {
+            LOG.warn("transport {} not available, fallback to NIO", transport);
+            return NIO;
+        }
+        return transport;
+    }
+
+    /**
+     * @return transport of the given channel, used to register peer channels on the same event loop
+     */
+    public static Transport of(final Channel channel) {
+        final String name = channel.getClass().getName();
+        for (final Transport transport : values()) {
+            if (transport.socketChannel.equals(name) || transport.serverChannel.equals(name)) {
+                return transport;
+            }
+        }
+        return NIO;
+    }
+
+    public boolean isAvailable() {
+        if (null == availability) {
+            return true;
+        }
+        try {
+            return (Boolean) Class.forName(availability).getMethod("isAvailable").invoke(null);
+        } catch (final Throwable e) {
+            return false;
+        }
+    }
+
+    public boolean isNative() {
+        return null != nativeOptions;
+    }
+
+    /**
+     * @param nThreads 0 means netty's default
+     */
+    public EventLoopGroup newEventLoopGroup(final int nThreads) {
+        try {
+            return (EventLoopGroup) Class.forName(eventLoopGroup).getConstructor(int.class).newInstance(nThreads);
+        } catch (final Exception e) {
+            throw new IllegalStateException("can't create event loop group for " + this, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return (Class<? extends ServerChannel>) loadClass(serverChannel);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Class<? extends Channel> socketChannelClass() {
+        return (Class<? extends Channel>) loadClass(socketChannel);
+    }
+
+    /**
+     * @param name native option name, eg: SO_REUSEPORT, TCP_QUICKACK
+     * @return option or null if this transport doesn't support it
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ChannelOption<T> nativeOption(final String name) {
+        if (null == nativeOptions) {
+            return null;
+        }
+        try {
+            return (ChannelOption<T>) Class.forName(nativeOptions).getField(name).get(null);
+        } catch (final Exception e) {
+            return null;
+        }
+    }
+
+    private static Class<?> loadClass(final String name) {
+        try {
+            return Class.forName(name);
+        } catch (final ClassNotFoundException e) {
+            throw new IllegalStateException("transport class " + name + " not found", e);
+        }
+    }
+
+    private final String availability;
+    private final String eventLoopGroup;
+    private final String serverChannel;
+    private final String socketChannel;
+    private final String nativeOptions;
+}
\ No newline at end of file
@@ -1,9 +1,17 @@
 package org.jocean.wsproxy;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.jocean.wsproxy.health.NodeHealth;
 import org.springframework.beans.factory.annotation.Value;
 
 public class WSNode {
 
+    @Inject
+    private RouteTable _routes;
+
     @Value("${hostname}")
     public String hostname;
 
@@ -16,11 +24,92 @@ public class WSNode {
     @Value("${port}")
     public int port;
 
+    // > 0 to multiplex sessions over this many pooled connections, backend serves mux protocol on muxPath
+    @Value("${mux.connections:0}")
+    public int muxConnections;
+
+    @Value("${mux.path:/wsmux}")
+    public String muxPath;
+
+    // > 0 to keep prestarted upstream connections to /wsin/{hostname}/{service} per event loop,
+    // idle count adapts to session arrival rate between min and max
+    @Value("${warm.maxidle:0}")
+    public int warmMaxIdle;
+
+    @Value("${warm.minidle:1}")
+    public int warmMinIdle;
+
+    // idle connections above target are closed after this
+    @Value("${warm.idletimeout:60000}")
+    public long warmIdleTimeoutMillis;
+
+    // ping idle connections so backend and middleboxes keep them, 0 disables
+    @Value("${warm.keepalive:20000}")
+    public long warmKeepaliveMillis;
+
+    // how sessions are spread across nodes of same service: round-robin, least-active, p2c or consistent-hash
+    @Value("${balance:round-robin}")
+    public String balance;
+
+    // consistent-hash key: path, query:{name} or header:{name}
+    @Value("${balance.hashkey:path}")
+    public String hashKey;
+
+    // true to share one upstream connection per path among all sessions, backend to client only,
+    // client data frames are discarded
+    @Value("${fanout:false}")
+    public boolean fanout;
+
+    // fanout subscriber not writable at message start: drop (skip whole message) or disconnect (close 1008)
+    @Value("${fanout.slow:drop}")
+    public String fanoutSlow;
+
+    // connect with wss://, verified by wsproxy.tls.upstream.trust
+    @Value("${tls:false}")
+    public boolean tls;
+
+    /**
+     * @return wss if tls, otherwise ws
+     */
+    public String scheme() {
+        return tls ? "wss" : "ws";
+    }
+
+    public void start() {
+        _routes.register(this);
+    }
+
+    public void stop() {
+        _routes.unregister(this);
+    }
+
+    public NodeHealth health() {
+        return _health;
+    }
+
+    public int activeSessions() {
+        return _activeSessions.get();
+    }
+
+    public void onSessionOpened() {
+        _activeSessions.incrementAndGet();
+    }
+
+    public void onSessionClosed() {
+        _activeSessions.decrementAndGet();
+    }
+
     @Override
     public String toString() {
         final StringBuilder builder = new StringBuilder();
         builder.append("WSNode [hostname=").append(hostname).append(", service=").append(service).append(", ip=")
-                .append(ip).append(", port=").append(port).append("]");
+                .append(ip).append(", port=").append(port).append(", tls=").append(tls)
+                .append(", muxConnections=").append(muxConnections)
+                .append(", balance=").append(balance).append(", activeSessions=").append(_activeSessions.get())
+                .append(", ").append(_health).append("]");
         return builder.toString();
     }
+
+    private final AtomicInteger _activeSessions = new AtomicInteger();
+    private final NodeHealth _health = new NodeHealth();
 }
@@ -0,0 +1,106 @@
+package org.jocean.wsproxy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jocean.wsproxy.balance.LoadBalancer;
+import org.jocean.wsproxy.balance.LoadBalancers;
+
+import com.google.common.collect.ImmutableList;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * immutable set of WSNodes serving same hostname/service, with the balancer built for exactly these nodes.
+ * <p>
+ * strategy and hash key are taken from the latest registered node.
+ */
+public final class WSService {
+
+    WSService(final String hostname, final String service, final List<WSNode> nodes, final WSNode config) {
+        this.hostname = hostname;
+        this.service = service;
+        this.nodes = ImmutableList.copyOf(nodes);
+        this.config = config;
+        this.balancer = LoadBalancers.create(config.balance, config.hashKey, this.nodes);
+    }
+
+    /**
+     * balancer's choice, or another available node when it's ejected,
+     * or still balancer's choice when no node is available at all
+     */
+    public WSNode select(final HttpRequest request) {
+        final WSNode node = balancer.select(request);
+        if (node.health().isAvailable()) {
+            return node;
+        }
+        final WSNode other = selectExcept(Collections.singletonList(node));
+        return null != other ? other : node;
+    }
+
+    /**
+     * @return an available node not in excluded, or null
+     */
+    public WSNode selectExcept(final Collection<WSNode> excluded) {
+        final int start = ThreadLocalRandom.current().nextInt(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            final WSNode node = nodes.get((start + i) % nodes.size());
+            if (node.health().isAvailable() && !excluded.contains(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    public String hostname() {
+        return hostname;
+    }
+
+    public String service() {
+        return service;
+    }
+
+    public List<WSNode> nodes() {
+        return nodes;
+    }
+
+    WSService with(final WSNode node) {
+        final ImmutableList.Builder<WSNode> builder = ImmutableList.builder();
+        for (final WSNode exist : nodes) {
+            if (exist != node) {
+                builder.add(exist);
+            }
+        }
+        return new WSService(hostname, service, builder.add(node).build(), node);
+    }
+
+    /**
+     * @return null if node is the last one
+     */
+    WSService without(final WSNode node) {
+        final ImmutableList.Builder<WSNode> builder = ImmutableList.builder();
+        for (final WSNode exist : nodes) {
+            if (exist != node) {
+                builder.add(exist);
+            }
+        }
+        final List<WSNode> remains = builder.build();
+        if (remains.isEmpty()) {
+            return null;
+        }
+        return new WSService(hostname, service, remains, config != node ? config : remains.get(remains.size() - 1));
+    }
+
+    @Override
+    public String toString() {
+        return "WSService [" + hostname + "/" + service + ", balance=" + config.balance + ", nodes=" + nodes + "]";
+    }
+
+    private final String hostname;
+    private final String service;
+    private final List<WSNode> nodes;
+    private final WSNode config;
+    private final LoadBalancer balancer;
+}
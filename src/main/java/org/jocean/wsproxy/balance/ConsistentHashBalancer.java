@@ -0,0 +1,80 @@
+package org.jocean.wsproxy.balance;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jocean.wsproxy.WSNode;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * sticky sessions: same key goes to same node while membership is stable,
+ * and only keys of an added or removed node move when it changes.
+ * <p>
+ * key is taken from request by spec: "path", "query:{name}" or "header:{name}",
+ * requests without the key fall back to hashing the full uri.
+ */
+class ConsistentHashBalancer implements LoadBalancer {
+
+    private static final int VIRTUAL_NODES = 160;
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    ConsistentHashBalancer(final List<WSNode> nodes, final String keySpec) {
+        final int size = nodes.size() * VIRTUAL_NODES;
+        final long[] entries = new long[size];
+        int idx = 0;
+        for (int n = 0; n < nodes.size(); n++) {
+            final WSNode node = nodes.get(n);
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                final int hash = HASH.hashString(node.ip + ":" + node.port + "#" + v, StandardCharsets.UTF_8).asInt();
+                // hash in high bits for ordering, node index in low bits
+                entries[idx++] = ((long) hash << 32) | n;
+            }
+        }
+        Arrays.sort(entries);
+        this.hashes = new int[size];
+        this.ring = new WSNode[size];
+        for (int i = 0; i < size; i++) {
+            this.hashes[i] = (int) (entries[i] >> 32);
+            this.ring[i] = nodes.get((int) entries[i]);
+        }
+
+        final int colon = keySpec.indexOf(':');
+        this.keyType = colon > 0 ? keySpec.substring(0, colon) : keySpec;
+        this.keyName = colon > 0 ? keySpec.substring(colon + 1) : null;
+    }
+
+    @Override
+    public WSNode select(final HttpRequest request) {
+        final int hash = HASH.hashString(keyOf(request), StandardCharsets.UTF_8).asInt();
+        int idx = Arrays.binarySearch(hashes, hash);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        return ring[idx < ring.length ? idx : 0];
+    }
+
+    private String keyOf(final HttpRequest request) {
+        String key = null;
+        if ("header".equals(keyType)) {
+            key = request.headers().get(keyName);
+        } else if ("query".equals(keyType)) {
+            final List<String> values = new QueryStringDecoder(request.uri()).parameters().get(keyName);
+            key = null != values && !values.isEmpty() ? values.get(0) : null;
+        } else if ("path".equals(keyType)) {
+            final int query = request.uri().indexOf('?');
+            key = query >= 0 ? request.uri().substring(0, query) : request.uri();
+        }
+        return null != key ? key : request.uri();
+    }
+
+    private final int[] hashes;
+    private final WSNode[] ring;
+    private final String keyType;
+    private final String keyName;
+}
@@ -0,0 +1,36 @@
+package org.jocean.wsproxy.balance;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jocean.wsproxy.WSNode;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * node with fewest live sessions, scan starts at a random node so ties don't always favor the first one
+ */
+class LeastActiveBalancer implements LoadBalancer {
+
+    LeastActiveBalancer(final List<WSNode> nodes) {
+        this.nodes = nodes.toArray(new WSNode[0]);
+    }
+
+    @Override
+    public WSNode select(final HttpRequest request) {
+        final int start = ThreadLocalRandom.current().nextInt(nodes.length);
+        WSNode selected = nodes[start];
+        int least = selected.activeSessions();
+        for (int i = 1; i < nodes.length && least > 0; i++) {
+            final WSNode node = nodes[(start + i) % nodes.length];
+            final int active = node.activeSessions();
+            if (active < least) {
+                selected = node;
+                least = active;
+            }
+        }
+        return selected;
+    }
+
+    private final WSNode[] nodes;
+}
@@ -0,0 +1,19 @@
+package org.jocean.wsproxy.balance;
+
+import org.jocean.wsproxy.WSNode;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * selects one of a service's nodes for a new session, built per node set and rebuilt when membership changes.
+ * <p>
+ * invoked concurrently from all proxy event loops.
+ */
+public interface LoadBalancer {
+
+    /**
+     * @param request upgrade request of the new session
+     * @return selected node, never null
+     */
+    WSNode select(HttpRequest request);
+}
@@ -0,0 +1,54 @@
+package org.jocean.wsproxy.balance;
+
+import java.util.List;
+
+import org.jocean.wsproxy.WSNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+public final class LoadBalancers {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadBalancers.class);
+
+    /**
+     * @param strategy round-robin, least-active, p2c or consistent-hash, unknown falls back to round-robin
+     * @param hashKey key spec for consistent-hash
+     * @param nodes non empty
+     */
+    public static LoadBalancer create(final String strategy, final String hashKey, final List<WSNode> nodes) {
+        if (nodes.size() == 1) {
+            return new SingleNodeBalancer(nodes.get(0));
+        }
+        switch (strategy) {
+        case "round-robin":
+            return new RoundRobinBalancer(nodes);
+        case "least-active":
+            return new LeastActiveBalancer(nodes);
+        case "p2c":
+            return new PowerOfTwoChoicesBalancer(nodes);
+        case "consistent-hash":
+            return new ConsistentHashBalancer(nodes, hashKey);
+        default:
+            LOG.warn("unknown balance strategy {}, use round-robin", strategy);
+            return new RoundRobinBalancer(nodes);
+        }
+    }
+
+    private static final class SingleNodeBalancer implements LoadBalancer {
+        SingleNodeBalancer(final WSNode node) {
+            this.node = node;
+        }
+
+        @Override
+        public WSNode select(final HttpRequest request) {
+            return node;
+        }
+
+        private final WSNode node;
+    }
+
+    private LoadBalancers() {
+        // Unused
+    }
+}
@@ -0,0 +1,33 @@
+package org.jocean.wsproxy.balance;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jocean.wsproxy.WSNode;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * less loaded of two random nodes: close to least-active, without scanning all nodes
+ * or herding every event loop onto the same momentarily least loaded node
+ */
+class PowerOfTwoChoicesBalancer implements LoadBalancer {
+
+    PowerOfTwoChoicesBalancer(final List<WSNode> nodes) {
+        this.nodes = nodes.toArray(new WSNode[0]);
+    }
+
+    @Override
+    public WSNode select(final HttpRequest request) {
+        if (nodes.length == 1) {
+            return nodes[0];
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(nodes.length);
+        // second index differs from first
+        final int second = (first + 1 + random.nextInt(nodes.length - 1)) % nodes.length;
+        return nodes[first].activeSessions() <= nodes[second].activeSessions() ? nodes[first] : nodes[second];
+    }
+
+    private final WSNode[] nodes;
+}
@@ -0,0 +1,23 @@
+package org.jocean.wsproxy.balance;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jocean.wsproxy.WSNode;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+class RoundRobinBalancer implements LoadBalancer {
+
+    RoundRobinBalancer(final List<WSNode> nodes) {
+        this.nodes = nodes.toArray(new WSNode[0]);
+    }
+
+    @Override
+    public WSNode select(final HttpRequest request) {
+        return nodes[(next.getAndIncrement() & Integer.MAX_VALUE) % nodes.length];
+    }
+
+    private final WSNode[] nodes;
+    private final AtomicInteger next = new AtomicInteger();
+}
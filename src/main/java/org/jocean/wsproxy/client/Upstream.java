@@ -0,0 +1,41 @@
+package org.jocean.wsproxy.client;
+
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * the upstream side of a proxied session, frames written here reach the backend
+ */
+public interface Upstream {
+
+    /**
+     * user event fired on downstream's pipeline when isWritable() changes, the session decides whether to
+     * resume reading, it may still be paused by rate limiting or a pending reconnect
+     */
+    Object WRITABILITY_CHANGED = new Object() {
+        @Override
+        public String toString() {
+            return "WRITABILITY_CHANGED";
+        }};
+
+    /**
+     * retain and write frame, flush is coalesced, call flush() when source channel's read complete
+     */
+    void write(WebSocketFrame frame);
+
+    void flush();
+
+    /**
+     * pause or resume relaying frames from backend to downstream
+     */
+    void setAutoRead(boolean autoRead);
+
+    /**
+     * @return false while frames written to backend are piling up
+     */
+    boolean isWritable();
+
+    /**
+     * close the upstream session, without blocking
+     */
+    void stop();
+}
\ No newline at end of file
@@ -0,0 +1,204 @@
+package org.jocean.wsproxy.client;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+import org.jocean.wsproxy.ChannelTuning;
+import org.jocean.wsproxy.FlushPolicy;
+import org.jocean.wsproxy.IdlePolicy;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.Transport;
+import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.deflate.DeflateConfig;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+
+/**
+ * idle prestarted upstream connections of one WSNode on one event loop, not thread safe, only used on that loop.
+ * <p>
+ * target idle count follows recent session arrival rate times handshake latency, bounded by node's min/max idle.
+ */
+final class WarmPool {
+    private static final Logger LOG = LoggerFactory.getLogger(WarmPool.class);
+
+    // weight of latest tick in arrival rate and handshake latency averages
+    private static final double ALPHA = 0.2;
+
+    WarmPool(final WSNode node, final URI uri, final EventLoop eventLoop, final Transport transport,
+            final ChannelTuning tuning, final FlushPolicy flushPolicy, final ProxyMetrics metrics,
+            final Supplier<ChannelHandler> decoderFactory, final DeflateConfig deflate, final boolean reconnectable,
+            final long connectTimeoutMillis, final IdlePolicy idlePolicy, final ReloadableSslContext tls,
+            final long closeTimeoutMillis) {
+        this.node = node;
+        this.uri = uri;
+        this.eventLoop = eventLoop;
+        this.transport = transport;
+        this.tuning = tuning;
+        this.flushPolicy = flushPolicy;
+        this.metrics = metrics;
+        this.decoderFactory = decoderFactory;
+        this.deflate = deflate;
+        this.reconnectable = reconnectable;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.idlePolicy = idlePolicy;
+        this.tls = tls;
+        this.closeTimeoutMillis = closeTimeoutMillis;
+    }
+
+    /**
+     * @return ready connection not yet bound, or null if none idle
+     */
+    WebSocketClient take() {
+        arrivals++;
+        while (!idle.isEmpty()) {
+            // most recently used end, oldest ones are left for eviction
+            final Idle entry = idle.pollLast();
+            if (entry.client.channel().isActive()) {
+                maintain();
+                return entry.client;
+            }
+        }
+        maintain();
+        return null;
+    }
+
+    /**
+     * called every tick on eventLoop
+     */
+    void tick(final long tickMillis) {
+        rate = (1 - ALPHA) * rate + ALPHA * (arrivals * 1000.0 / tickMillis);
+        arrivals = 0;
+        if (closed) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final int target = target();
+        // evict oldest idle above target
+        final Iterator<Idle> iter = idle.iterator();
+        while (iter.hasNext()) {
+            final Idle entry = iter.next();
+            if (idle.size() > target && now - entry.since >= node.warmIdleTimeoutMillis) {
+                iter.remove();
+                entry.client.stop();
+            } else if (node.warmKeepaliveMillis > 0 && now - entry.lastPing >= node.warmKeepaliveMillis) {
+                entry.lastPing = now;
+                entry.client.ping();
+            }
+        }
+        maintain();
+    }
+
+    void close() {
+        closed = true;
+        for (final Idle entry : idle) {
+            entry.client.stop();
+        }
+        idle.clear();
+    }
+
+    EventLoop eventLoop() {
+        return eventLoop;
+    }
+
+    int idleCount() {
+        return idle.size();
+    }
+
+    private int target() {
+        final int wanted = node.warmMinIdle + (int) Math.ceil(rate * handshakeMillis / 1000.0);
+        return Math.min(node.warmMaxIdle, Math.max(node.warmMinIdle, wanted));
+    }
+
+    private void maintain() {
+        if (closed || !node.health().isAvailable()) {
+            return;
+        }
+        final int target = target();
+        while (idle.size() + connecting < target) {
+            prestart();
+        }
+    }
+
+    private void prestart() {
+        connecting++;
+        final long begin = System.currentTimeMillis();
+        final WebSocketClient client = new WebSocketClient(tuning, flushPolicy, metrics, reconnectable,
+                idlePolicy, tls, closeTimeoutMillis);
+        client.prestart(uri, eventLoop, transport, null != decoderFactory ? decoderFactory.get() : null,
+                deflate, connectTimeoutMillis)
+            .addListener(new FutureListener<Channel>() {
+                @Override
+                public void operationComplete(final Future<Channel> future) throws Exception {
+                    connecting--;
+                    if (!future.isSuccess()) {
+                        LOG.debug("prestart upstream {} failed: {}", uri, future.cause().toString());
+                        return;
+                    }
+                    handshakeMillis = (1 - ALPHA) * handshakeMillis + ALPHA * (System.currentTimeMillis() - begin);
+                    if (closed) {
+                        client.stop();
+                        return;
+                    }
+                    final Idle entry = new Idle(client);
+                    idle.addLast(entry);
+                    client.closeFuture().addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(final ChannelFuture future) throws Exception {
+                            // no-op if already taken
+                            idle.remove(entry);
+                        }});
+                }});
+    }
+
+    @Override
+    public String toString() {
+        return "WarmPool [uri=" + uri + ", idle=" + idle.size() + ", connecting=" + connecting
+                + ", rate=" + rate + ", handshakeMillis=" + handshakeMillis + "]";
+    }
+
+    private static final class Idle {
+        Idle(final WebSocketClient client) {
+            this.client = client;
+            this.since = System.currentTimeMillis();
+            this.lastPing = this.since;
+        }
+
+        final WebSocketClient client;
+        final long since;
+        long lastPing;
+    }
+
+    private final WSNode node;
+    private final URI uri;
+    private final EventLoop eventLoop;
+    private final Transport transport;
+    private final ChannelTuning tuning;
+    private final FlushPolicy flushPolicy;
+    private final ProxyMetrics metrics;
+    private final Supplier<ChannelHandler> decoderFactory;
+    private final DeflateConfig deflate;
+    private final boolean reconnectable;
+    private final long connectTimeoutMillis;
+    private final IdlePolicy idlePolicy;
+    private final ReloadableSslContext tls;
+    private final long closeTimeoutMillis;
+
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+    private int connecting = 0;
+    private int arrivals = 0;
+    // sessions per second
+    private double rate = 0;
+    private double handshakeMillis = 0;
+    private boolean closed = false;
+}
@@ -0,0 +1,180 @@
+package org.jocean.wsproxy.client;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.jocean.wsproxy.ChannelTuning;
+import org.jocean.wsproxy.FlushPolicy;
+import org.jocean.wsproxy.IdlePolicy;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.RouteTable;
+import org.jocean.wsproxy.Transport;
+import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.WSService;
+import org.jocean.wsproxy.deflate.DeflateConfig;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * prestarted upstream connections for every routed WSNode with warm.maxidle > 0, one WarmPool per event loop,
+ * so a session takes a connection already registered on its own loop.
+ * <p>
+ * only connections to {pathPrefix}{hostname}/{service} are prestarted,
+ * sessions requesting a longer path always connect on demand.
+ */
+public class WarmPools {
+    private static final Logger LOG = LoggerFactory.getLogger(WarmPools.class);
+
+    private static final long TICK_MILLIS = 1000;
+
+    public WarmPools(final RouteTable routes, final EventLoopGroup group, final Transport transport,
+            final String pathPrefix, final ChannelTuning tuning, final FlushPolicy flushPolicy,
+            final ProxyMetrics metrics, final Supplier<ChannelHandler> decoderFactory, final DeflateConfig deflate,
+            final boolean reconnectable, final long connectTimeoutMillis, final IdlePolicy idlePolicy,
+            final ReloadableSslContext tls, final long closeTimeoutMillis) {
+        this.routes = routes;
+        this.group = group;
+        this.transport = transport;
+        this.pathPrefix = pathPrefix;
+        this.tuning = tuning;
+        this.flushPolicy = flushPolicy;
+        this.metrics = metrics;
+        this.decoderFactory = decoderFactory;
+        this.deflate = deflate;
+        this.reconnectable = reconnectable;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.idlePolicy = idlePolicy;
+        this.tls = tls;
+        this.closeTimeoutMillis = closeTimeoutMillis;
+    }
+
+    public void start() {
+        _scheduled = group.next().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tickAll();
+            }}, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (null != _scheduled) {
+            _scheduled.cancel(false);
+            _scheduled = null;
+        }
+        for (final Map<EventLoop, WarmPool> pools : nodePools.values()) {
+            closeAll(pools);
+        }
+        nodePools.clear();
+    }
+
+    /**
+     * must be called on eventLoop
+     * @return bound-ready connection to node for path, or null to connect on demand
+     */
+    public WebSocketClient take(final WSNode node, final String path, final EventLoop eventLoop) {
+        final Map<EventLoop, WarmPool> pools = nodePools.get(node);
+        if (null == pools || !path.equals(pathOf(node))) {
+            return null;
+        }
+        final WarmPool pool = pools.get(eventLoop);
+        final WebSocketClient client = null != pool ? pool.take() : null;
+        if (null != client) {
+            metrics.onWarmHit();
+        } else {
+            metrics.onWarmMiss();
+        }
+        return client;
+    }
+
+    private String pathOf(final WSNode node) {
+        return pathPrefix + node.hostname + "/" + node.service;
+    }
+
+    private void tickAll() {
+        final Set<WSNode> warmNodes = new HashSet<>();
+        for (final WSService service : routes.services()) {
+            for (final WSNode node : service.nodes()) {
+                if (node.warmMaxIdle > 0 && node.muxConnections <= 0) {
+                    warmNodes.add(node);
+                    if (!nodePools.containsKey(node)) {
+                        nodePools.put(node, createPools(node));
+                        LOG.info("prestart upstream connections for {}", node);
+                    }
+                }
+            }
+        }
+        final Iterator<Map.Entry<WSNode, Map<EventLoop, WarmPool>>> iter = nodePools.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<WSNode, Map<EventLoop, WarmPool>> entry = iter.next();
+            if (!warmNodes.contains(entry.getKey())) {
+                iter.remove();
+                closeAll(entry.getValue());
+                LOG.info("stop prestarted upstream connections for {}", entry.getKey());
+            }
+        }
+        for (final Map<EventLoop, WarmPool> pools : nodePools.values()) {
+            for (final WarmPool pool : pools.values()) {
+                pool.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pool.tick(TICK_MILLIS);
+                    }});
+            }
+        }
+    }
+
+    private Map<EventLoop, WarmPool> createPools(final WSNode node) {
+        final URI uri = URI.create(node.scheme() + "://" + node.ip + ":" + node.port + pathOf(node));
+        // read only once published
+        final Map<EventLoop, WarmPool> pools = new HashMap<>();
+        for (final EventExecutor executor : group) {
+            final EventLoop eventLoop = (EventLoop) executor;
+            pools.put(eventLoop, new WarmPool(node, uri, eventLoop, transport, tuning, flushPolicy, metrics,
+                    decoderFactory, deflate, reconnectable, connectTimeoutMillis, idlePolicy, tls,
+                    closeTimeoutMillis));
+        }
+        return pools;
+    }
+
+    private static void closeAll(final Map<EventLoop, WarmPool> pools) {
+        for (final WarmPool pool : pools.values()) {
+            pool.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    pool.close();
+                }});
+        }
+    }
+
+    private final RouteTable routes;
+    private final EventLoopGroup group;
+    private final Transport transport;
+    private final String pathPrefix;
+    private final ChannelTuning tuning;
+    private final FlushPolicy flushPolicy;
+    private final ProxyMetrics metrics;
+    private final Supplier<ChannelHandler> decoderFactory;
+    private final DeflateConfig deflate;
+    private final boolean reconnectable;
+    private final long connectTimeoutMillis;
+    private final IdlePolicy idlePolicy;
+    private final ReloadableSslContext tls;
+    private final long closeTimeoutMillis;
+    private final ConcurrentMap<WSNode, Map<EventLoop, WarmPool>> nodePools = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> _scheduled;
+}
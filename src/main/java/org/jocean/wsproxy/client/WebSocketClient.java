@@ -17,26 +17,44 @@
 package org.jocean.wsproxy.client;
 
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jocean.wsproxy.ChannelTuning;
+import org.jocean.wsproxy.FlushPolicy;
+import org.jocean.wsproxy.IdlePolicy;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.Transport;
+import org.jocean.wsproxy.deflate.DeflateConfig;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+import org.jocean.wsproxy.trace.SessionTrace;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
-import io.netty.handler.codec.http.websocketx.extensions.compression.WebSocketClientCompressionHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.opentracing.Span;
 
-public final class WebSocketClient {
+public final class WebSocketClient implements Upstream {
 
     /*
     static final String URL = System.getProperty("url", "ws://127.0.0.1:8080/websocket");
@@ -126,9 +144,70 @@ public final class WebSocketClient {
     }
     */
 
-    public void start(final URI uri, final ChannelHandlerContext peerctx) throws InterruptedException {
+    /**
+     * @param reconnectable backend going away closes only upstream, caller reconnects via closeFuture()
+     * @param idle pings and reaps idle upstream, null disables
+     * @param tls used for wss:// uri
+     * @param closeTimeoutMillis on stop, close upstream if backend doesn't close it within after close frame
+     */
+    public WebSocketClient(final ChannelTuning tuning, final FlushPolicy flushPolicy,
+            final ProxyMetrics metrics, final boolean reconnectable, final IdlePolicy idle,
+            final ReloadableSslContext tls, final long closeTimeoutMillis) {
+        this.tuning = tuning;
+        this.flushPolicy = flushPolicy;
+        this.metrics = metrics;
+        this.reconnectable = reconnectable;
+        this.idle = idle;
+        this.tls = tls;
+        this.closeTimeoutMillis = closeTimeoutMillis;
+    }
+
+    /**
+     * connect and handshake to uri without blocking, the upstream channel is registered on peerctx's event loop,
+     * so frames relayed between peer and upstream never cross threads.
+     * @param frameDecoder if not null, replaces websocket frame decoder right after handshake,
+     *      eg: to relay frames at wire level or as streaming fragments
+     * @param deflate negotiate permessage-deflate with upstream, null for none
+     * @param timeoutMillis fail if connect and handshake not complete within, 0 means no limit
+     * @param trace null if session not traced
+     * @return future notified with upstream channel when websocket handshake complete
+     */
+    public Future<Channel> start(final URI uri, final ChannelHandlerContext peerctx, final ChannelHandler frameDecoder,
+            final DeflateConfig deflate, final long timeoutMillis, final SessionTrace trace) {
+        // upstream channel must be of the same transport as the event loop it's registered on
+        return connect(uri, peerctx.channel().eventLoop(), Transport.of(peerctx.channel()), peerctx, frameDecoder,
+                deflate, timeoutMillis, trace);
+    }
+
+    /**
+     * like start, but without peer: connection is kept idle until bind(),
+     * frames received meanwhile are held and relayed on bind.
+     */
+    public Future<Channel> prestart(final URI uri, final EventLoop eventLoop, final Transport transport,
+            final ChannelHandler frameDecoder, final DeflateConfig deflate, final long timeoutMillis) {
+        return connect(uri, eventLoop, transport, null, frameDecoder, deflate, timeoutMillis, null);
+    }
+
+    /**
+     * relay prestarted connection to peerctx, must be called on the connection's event loop
+     */
+    public void bind(final ChannelHandlerContext peerctx) {
+        handler.bind(peerctx, flushPolicy.newFlusher(peerctx.channel()));
+    }
+
+    /**
+     * keepalive of idle prestarted connection
+     */
+    public void ping() {
+        upstream.writeAndFlush(new PingWebSocketFrame());
+    }
+
+    private Future<Channel> connect(final URI uri, final EventLoop eventLoop, final Transport transport,
+            final ChannelHandlerContext peerctx, final ChannelHandler frameDecoder,
+            final DeflateConfig deflate, final long timeoutMillis, final SessionTrace trace) {
         final String scheme = uri.getScheme() == null? "ws" : uri.getScheme();
-//        final String host = uri.getHost() == null? "127.0.0.1" : uri.getHost();
+        final String host = uri.getHost() == null? "127.0.0.1" : uri.getHost();
+        final boolean ssl = "wss".equalsIgnoreCase(scheme);
         final int port;
         if (uri.getPort() == -1) {
             if ("ws".equalsIgnoreCase(scheme)) {
@@ -142,50 +221,171 @@ public final class WebSocketClient {
             port = uri.getPort();
         }
 
-        group = new NioEventLoopGroup();
         // Connect with V13 (RFC 6455 aka HyBi-17). You can change it to V08 or V00.
         // If you change it to V00, ping is not supported and remember to change
         // HttpResponseDecoder to WebSocketHttpResponseDecoder in the pipeline.
+        final HttpHeaders headers = new DefaultHttpHeaders();
         final WebSocketClientHandler handler =
                 new WebSocketClientHandler(
                         WebSocketClientHandshakerFactory.newHandshaker(
-                                uri, WebSocketVersion.V13, null, true, new DefaultHttpHeaders()), peerctx);
+                                uri, WebSocketVersion.V13, null, true, headers),
+                        peerctx, null != peerctx ? flushPolicy.newFlusher(peerctx.channel()) : null,
+                        frameDecoder, metrics, reconnectable, idle, trace, headers);
 
+        final Promise<Channel> promise = eventLoop.newPromise();
         final Bootstrap b = new Bootstrap();
-        b.group(group)
-         .channel(NioSocketChannel.class)
-         .handler(new ChannelInitializer<SocketChannel>() {
+        b.group(eventLoop)
+         .channel(transport.socketChannelClass())
+         .handler(new ChannelInitializer<Channel>() {
              @Override
-             protected void initChannel(final SocketChannel ch) {
+             protected void initChannel(final Channel ch) {
                  final ChannelPipeline p = ch.pipeline();
-//                     if (sslCtx != null) {
-//                         p.addLast(sslCtx.newHandler(ch.alloc(), host, port));
-//                     }
-                 p.addLast(
-                         new HttpClientCodec(),
-                         new HttpObjectAggregator(8192),
-                         WebSocketClientCompressionHandler.INSTANCE,
-                         handler);
+                 if (null != idle) {
+                     p.addLast(idle.newHandler());
+                 }
+                 if (ssl) {
+                     // cached session of host:port resumed on reconnect
+                     p.addLast(tls.newHandler(ch.alloc(), host, port));
+                 }
+                 p.addLast(new HttpClientCodec(), new HttpObjectAggregator(8192));
+                 if (null != deflate) {
+                     p.addLast(deflate.newClientHandler());
+                 }
+                 p.addLast(handler);
              }
          });
+        tuning.apply(b, transport);
+        if (timeoutMillis > 0) {
+            b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+        }
 
-        upstream = b.connect(uri.getHost(), port).sync().channel();
-        handler.handshakeFuture().sync();
+        this.handler = handler;
+        final long begin = System.nanoTime();
+        final Span connectSpan = null != trace ? trace.startPhase("upstream.connect") : null;
+        final ChannelFuture connectFuture = b.connect(uri.getHost(), port);
+        upstream = connectFuture.channel();
+        flusher = flushPolicy.newFlusher(upstream);
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                SessionTrace.finish(connectSpan, future.cause());
+                if (!future.isSuccess()) {
+                    promise.tryFailure(future.cause());
+                    return;
+                }
+                final long connected = System.nanoTime();
+                metrics.recordUpstreamConnect(connected - begin);
+                handler.handshakeFuture().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(final ChannelFuture future) throws Exception {
+                        if (future.isSuccess()) {
+                            metrics.recordUpstreamHandshake(System.nanoTime() - connected);
+                            promise.trySuccess(future.channel());
+                        } else {
+                            future.channel().close();
+                            promise.tryFailure(future.cause());
+                        }
+                    }});
+            }});
+        if (timeoutMillis > 0) {
+            // connected but backend doesn't answer the handshake
+            final ScheduledFuture<?> timeout = upstream.eventLoop().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (promise.tryFailure(new TimeoutException("upstream handshake timeout after "
+                            + timeoutMillis + " ms"))) {
+                        upstream.close();
+                    }
+                }}, timeoutMillis, TimeUnit.MILLISECONDS);
+            promise.addListener(new FutureListener<Channel>() {
+                @Override
+                public void operationComplete(final Future<Channel> future) throws Exception {
+                    timeout.cancel(false);
+                }});
+        }
+        return promise;
     }
 
-    public void stop() throws InterruptedException {
-        try {
+    @Override
+    public void stop() {
+        if (null == upstream) {
+            return;
+        }
+        stopped = true;
+        if (upstream.isActive()) {
+            flusher.flush();
             upstream.writeAndFlush(new CloseWebSocketFrame());
-            upstream.closeFuture().sync();
-        } finally {
-            group.shutdownGracefully();
+            // backend should close after echoing close frame, don't wait for it forever
+            final ScheduledFuture<?> timeout = upstream.eventLoop().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    upstream.close();
+                }}, closeTimeoutMillis, TimeUnit.MILLISECONDS);
+            upstream.closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(final ChannelFuture future) throws Exception {
+                    timeout.cancel(false);
+                }});
+        } else {
+            upstream.close();
         }
     }
 
-    public void send(final WebSocketFrame frame) {
-        upstream.writeAndFlush(frame.retain());
+    /**
+     * flush is coalesced by FlushPolicy, call flush() when source channel's read complete
+     */
+    @Override
+    public void write(final WebSocketFrame frame) {
+        flusher.write(frame.retain());
+    }
+
+    @Override
+    public void flush() {
+        metrics.recordUpstreamQueue(upstream);
+        flusher.flush();
+    }
+
+    @Override
+    public void setAutoRead(final boolean autoRead) {
+        upstream.config().setAutoRead(autoRead);
+    }
+
+    @Override
+    public boolean isWritable() {
+        return upstream.isWritable();
+    }
+
+    public Channel channel() {
+        return upstream;
+    }
+
+    public ChannelFuture closeFuture() {
+        return upstream.closeFuture();
+    }
+
+    /**
+     * @return true if closed by stop() or by backend's close relayed to peer, false if lost
+     */
+    public boolean isStopped() {
+        return stopped || (null != handler && handler.isCloseRelayed());
+    }
+
+    /**
+     * @return true if a fragmented message from upstream is partly relayed, it can't be resumed on another node
+     */
+    public boolean isMidMessage() {
+        return null != handler && handler.isMidMessage();
     }
 
-    EventLoopGroup group;
+    private final ChannelTuning tuning;
+    private final FlushPolicy flushPolicy;
+    private final ProxyMetrics metrics;
+    private final boolean reconnectable;
+    private final IdlePolicy idle;
+    private final ReloadableSslContext tls;
+    private final long closeTimeoutMillis;
+    private WebSocketClientHandler handler;
+    private boolean stopped = false;
     Channel upstream;
+    FlushPolicy.Flusher flusher;
 }
\ No newline at end of file
@@ -37,33 +37,105 @@
 
 package org.jocean.wsproxy.client;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jocean.wsproxy.FlushPolicy;
+import org.jocean.wsproxy.IdlePolicy;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.trace.SessionTrace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameDecoder;
 import io.netty.handler.codec.http.websocketx.WebSocketHandshakeException;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.CharsetUtil;
+import io.opentracing.Span;
 
 public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
     private static final Logger LOG = LoggerFactory.getLogger(WebSocketClientHandler.class);
 
+    private static final int MAX_HELD_FRAMES = 16;
+
     private final WebSocketClientHandshaker handshaker;
     private ChannelPromise handshakeFuture;
-    private final ChannelHandlerContext peerctx;
+    // null until bound when connection is prestarted
+    private ChannelHandlerContext peerctx;
+    private FlushPolicy.Flusher peerFlusher;
+    // frames received before bound
+    private List<WebSocketFrame> held;
+    private final ChannelHandler frameDecoder;
+    private final ProxyMetrics metrics;
+    private final boolean reconnectable;
+    private final IdlePolicy idle;
+    private final SessionTrace trace;
+    // custom headers of handshaker, trace context is put here right before handshake request is sent
+    private final HttpHeaders handshakeHeaders;
+    private Span handshakeSpan;
+    // last relayed data frame wasn't final, peer is in the middle of a fragmented message
+    private boolean midMessage = false;
+    private boolean closeRelayed = false;
 
-    public WebSocketClientHandler(final WebSocketClientHandshaker handshaker, final ChannelHandlerContext peerctx) {
+    /**
+     * @param reconnectable backend going away (1001, 1011-1013) is not relayed to peer, only upstream is closed
+     * @param idle null if upstream isn't watched for idle
+     * @param trace null if session not traced
+     * @param handshakeHeaders custom headers handshaker was created with
+     */
+    public WebSocketClientHandler(final WebSocketClientHandshaker handshaker, final ChannelHandlerContext peerctx,
+            final FlushPolicy.Flusher peerFlusher, final ChannelHandler frameDecoder, final ProxyMetrics metrics,
+            final boolean reconnectable, final IdlePolicy idle, final SessionTrace trace,
+            final HttpHeaders handshakeHeaders) {
         this.handshaker = handshaker;
         this.peerctx = peerctx;
+        this.peerFlusher = peerFlusher;
+        this.frameDecoder = frameDecoder;
+        this.metrics = metrics;
+        this.reconnectable = reconnectable;
+        this.idle = idle;
+        this.trace = trace;
+        this.handshakeHeaders = handshakeHeaders;
+    }
+
+    /**
+     * set peer of prestarted connection and relay frames held so far
+     */
+    void bind(final ChannelHandlerContext peerctx, final FlushPolicy.Flusher peerFlusher) {
+        this.peerctx = peerctx;
+        this.peerFlusher = peerFlusher;
+        if (null != held) {
+            for (final WebSocketFrame frame : held) {
+                peerFlusher.write(frame);
+            }
+            held = null;
+            peerFlusher.flush();
+        }
+    }
+
+    public boolean isMidMessage() {
+        return midMessage;
+    }
+
+    public boolean isCloseRelayed() {
+        return closeRelayed;
     }
 
     public ChannelFuture handshakeFuture() {
@@ -77,12 +149,36 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
 
     @Override
     public void channelActive(final ChannelHandlerContext ctx) {
+        if (null != trace) {
+            handshakeSpan = trace.startUpstreamHandshake(handshaker.uri().toString(), handshakeHeaders);
+        }
         handshaker.handshake(ctx.channel());
     }
 
     @Override
     public void channelInactive(final ChannelHandlerContext ctx) {
-        LOG.info("WebSocket Client disconnected!");
+        LOG.debug("WebSocket Client disconnected!");
+        if (null != handshakeSpan) {
+            finishHandshakeSpan(new IllegalStateException("closed before handshake complete"));
+        }
+        if (null != held) {
+            for (final WebSocketFrame frame : held) {
+                frame.release();
+            }
+            held = null;
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+        if (handshaker.isHandshakeComplete() && null != peerctx) {
+            // stop reading from downstream while upstream can't keep up
+            if (!ctx.channel().isWritable()) {
+                metrics.onUpstreamThrottled();
+            }
+            peerctx.channel().pipeline().fireUserEventTriggered(Upstream.WRITABILITY_CHANGED);
+        }
+        super.channelWritabilityChanged(ctx);
     }
 
     @Override
@@ -91,10 +187,16 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
         if (!handshaker.isHandshakeComplete()) {
             try {
                 handshaker.finishHandshake(ch, (FullHttpResponse) msg);
-                LOG.info("WebSocket Client connected!");
+                if (null != frameDecoder) {
+                    // bytes following handshake response haven't reached the fresh decoder yet, so it's safe to swap
+                    ctx.pipeline().replace(WebSocketFrameDecoder.class, "ws-upstream-decoder", frameDecoder);
+                }
+                LOG.debug("WebSocket Client connected!");
+                finishHandshakeSpan(null);
                 handshakeFuture.setSuccess();
             } catch (final WebSocketHandshakeException e) {
                 LOG.info("WebSocket Client failed to connect");
+                finishHandshakeSpan(e);
                 handshakeFuture.setFailure(e);
             }
             return;
@@ -108,31 +210,98 @@ public class WebSocketClientHandler extends SimpleChannelInboundHandler<Object>
         }
 
         final WebSocketFrame frame = (WebSocketFrame) msg;
-        if (frame instanceof TextWebSocketFrame) {
-            final TextWebSocketFrame textFrame = (TextWebSocketFrame) frame;
-            LOG.debug("WebSocket Client received message: {}", textFrame.text());
-            if (null != frame) {
-                peerctx.writeAndFlush(frame.retain());
-            }
+        if (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame
+                || frame instanceof ContinuationWebSocketFrame) {
+            // relay fragment by fragment as received, never aggregate the whole message
+            midMessage = !frame.isFinalFragment();
+            relay(ch, frame);
+        } else if (frame instanceof PingWebSocketFrame) {
+            // answered here, pings of downstream are answered by proxy as well
+            ctx.writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
         } else if (frame instanceof PongWebSocketFrame) {
-            LOG.info("WebSocket Client received pong");
-            if (null != peerctx) {
-                peerctx.writeAndFlush(frame.retain());
-            }
+            // answer of proxy's own keepalive, not relayed
+            LOG.debug("WebSocket Client received pong");
         } else if (frame instanceof CloseWebSocketFrame) {
-            LOG.info("WebSocket Client received closing");
-            if (null != peerctx) {
-                peerctx.writeAndFlush(frame.retain());
-                peerctx.close();
+            LOG.debug("WebSocket Client received closing");
+            if (reconnectable && isGoingAway(((CloseWebSocketFrame) frame).statusCode())) {
+                // peer stays open, session is moved to another node
+                ch.close();
+                return;
+            }
+            if (null == peerctx) {
+                ch.close();
+                return;
             }
+            closeRelayed = true;
+            peerFlusher.flush();
+            peerctx.writeAndFlush(frame.retain());
+            peerctx.close();
             ch.close();
         }
     }
 
+    private void finishHandshakeSpan(final Throwable cause) {
+        if (null != handshakeSpan) {
+            SessionTrace.finish(handshakeSpan, cause);
+            handshakeSpan = null;
+        }
+    }
+
+    private void relay(final Channel ch, final WebSocketFrame frame) {
+        metrics.onBackendFrames(1, frame.content().readableBytes());
+        if (null != trace && !(frame instanceof ContinuationWebSocketFrame)) {
+            trace.onMessage("backend", frame.content().readableBytes());
+        }
+        if (null != peerctx) {
+            peerFlusher.write(frame.retain());
+            return;
+        }
+        if (null == held) {
+            held = new ArrayList<>();
+        }
+        if (held.size() >= MAX_HELD_FRAMES) {
+            LOG.warn("prestarted upstream {} sent more than {} frames before bound, close it", ch, MAX_HELD_FRAMES);
+            ch.close();
+            return;
+        }
+        held.add(frame.retain());
+    }
+
+    private static boolean isGoingAway(final int statusCode) {
+        // going away, internal error, service restart, try again later
+        return 1001 == statusCode || (statusCode >= 1011 && statusCode <= 1013);
+    }
+
+    @Override
+    public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            if (IdleState.ALL_IDLE == ((IdleStateEvent) evt).state()) {
+                LOG.debug("upstream {} idle too long, close it", ctx.channel());
+                metrics.onIdleReaped();
+                ctx.close();
+            } else if (handshaker.isHandshakeComplete() && idle.isPing()) {
+                ctx.writeAndFlush(new PingWebSocketFrame());
+            }
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+        // one flush for all frames relayed during this read loop
+        if (null != peerFlusher) {
+            metrics.recordDownstreamQueue(peerctx.channel());
+            peerFlusher.flush();
+        }
+        super.channelReadComplete(ctx);
+    }
+
     @Override
     public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
         cause.printStackTrace();
         if (!handshakeFuture.isDone()) {
+            finishHandshakeSpan(cause);
             handshakeFuture.setFailure(cause);
         }
         ctx.close();
@@ -0,0 +1,46 @@
+package org.jocean.wsproxy.deflate;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketClientExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketClientExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+
+/**
+ * offers permessage-deflate to upstream, asking for no context takeover on both sides when configured
+ */
+final class DeflateClientExtensionHandshaker implements WebSocketClientExtensionHandshaker {
+
+    DeflateClientExtensionHandshaker(final DeflateConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public WebSocketExtensionData newRequestData() {
+        final Map<String, String> params = new HashMap<>(2);
+        if (config.noContext) {
+            params.put(DeflateExtension.CLIENT_NO_CONTEXT, null);
+            params.put(DeflateExtension.SERVER_NO_CONTEXT, null);
+        }
+        return new WebSocketExtensionData(DeflateExtension.NAME, params);
+    }
+
+    @Override
+    public WebSocketClientExtension handshakeExtension(final WebSocketExtensionData extensionData) {
+        if (!DeflateExtension.NAME.equals(extensionData.name())) {
+            return null;
+        }
+        final Map<String, String> params = extensionData.parameters();
+        final String clientWindow = params.get(DeflateExtension.CLIENT_MAX_WINDOW);
+        if (null != clientWindow && !"15".equals(clientWindow)) {
+            // jdk Deflater always uses 32K window
+            return null;
+        }
+        final boolean clientNoContext = config.noContext || params.containsKey(DeflateExtension.CLIENT_NO_CONTEXT);
+        final boolean serverNoContext = params.containsKey(DeflateExtension.SERVER_NO_CONTEXT);
+        return new DeflateExtension(config, false, clientNoContext, serverNoContext);
+    }
+
+    private final DeflateConfig config;
+}
@@ -0,0 +1,47 @@
+package org.jocean.wsproxy.deflate;
+
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketClientExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+
+/**
+ * permessage-deflate (RFC 7692) settings shared by downstream and upstream channels.
+ * <p>
+ * only 15 window bits is supported, offers requiring a smaller window for our compressor are declined.
+ */
+public class DeflateConfig {
+
+    /**
+     * @param minSize messages whose first frame is smaller are sent uncompressed
+     * @param noContext compress every message on its own, compressor is borrowed from pool per message
+     *      and compressed messages may be relayed without inflate/deflate
+     * @param maxInflatedSize max payload of one inflated message, all its fragments together
+     */
+    public DeflateConfig(final int level, final int minSize, final boolean noContext, final int maxPooled,
+            final int maxInflatedSize) {
+        this.level = level;
+        this.minSize = minSize;
+        this.noContext = noContext;
+        this.maxInflatedSize = maxInflatedSize;
+        this.pool = new ZlibPool(level, maxPooled);
+    }
+
+    public WebSocketServerExtensionHandler newServerHandler() {
+        return new WebSocketServerExtensionHandler(new DeflateServerExtensionHandshaker(this));
+    }
+
+    public WebSocketClientExtensionHandler newClientHandler() {
+        return new WebSocketClientExtensionHandler(new DeflateClientExtensionHandshaker(this));
+    }
+
+    @Override
+    public String toString() {
+        return "DeflateConfig [level=" + level + ", minSize=" + minSize + ", noContext=" + noContext
+                + ", maxInflatedSize=" + maxInflatedSize + "]";
+    }
+
+    final int level;
+    final int minSize;
+    final boolean noContext;
+    final int maxInflatedSize;
+    final ZlibPool pool;
+}
@@ -0,0 +1,66 @@
+package org.jocean.wsproxy.deflate;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketClientExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionDecoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+
+/**
+ * negotiated permessage-deflate of one channel
+ */
+final class DeflateExtension implements WebSocketServerExtension, WebSocketClientExtension {
+
+    static final String NAME = "permessage-deflate";
+    static final String SERVER_NO_CONTEXT = "server_no_context_takeover";
+    static final String CLIENT_NO_CONTEXT = "client_no_context_takeover";
+    static final String SERVER_MAX_WINDOW = "server_max_window_bits";
+    static final String CLIENT_MAX_WINDOW = "client_max_window_bits";
+
+    /**
+     * @param localNoContext our compressor resets after every message
+     * @param peerNoContext peer's compressor resets after every message
+     */
+    DeflateExtension(final DeflateConfig config, final boolean server, final boolean localNoContext,
+            final boolean peerNoContext) {
+        this.config = config;
+        this.server = server;
+        this.localNoContext = localNoContext;
+        this.peerNoContext = peerNoContext;
+    }
+
+    @Override
+    public int rsv() {
+        return RSV1;
+    }
+
+    @Override
+    public WebSocketExtensionEncoder newExtensionEncoder() {
+        return new DeflateFrameEncoder(config, localNoContext);
+    }
+
+    @Override
+    public WebSocketExtensionDecoder newExtensionDecoder() {
+        return new DeflateFrameDecoder(config, peerNoContext);
+    }
+
+    @Override
+    public WebSocketExtensionData newReponseData() {
+        final Map<String, String> params = new HashMap<>(2);
+        if (localNoContext) {
+            params.put(server ? SERVER_NO_CONTEXT : CLIENT_NO_CONTEXT, null);
+        }
+        if (peerNoContext) {
+            params.put(server ? CLIENT_NO_CONTEXT : SERVER_NO_CONTEXT, null);
+        }
+        return new WebSocketExtensionData(NAME, params);
+    }
+
+    private final DeflateConfig config;
+    private final boolean server;
+    private final boolean localNoContext;
+    private final boolean peerNoContext;
+}
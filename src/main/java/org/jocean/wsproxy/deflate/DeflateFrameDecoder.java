@@ -0,0 +1,137 @@
+package org.jocean.wsproxy.deflate;
+
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionDecoder;
+
+/**
+ * inflates incoming compressed messages, or in passthrough mode keeps them compressed for relaying as is.
+ */
+public class DeflateFrameDecoder extends WebSocketExtensionDecoder {
+
+    private static final int NONE = 0;
+    private static final int PLAIN = 1;
+    private static final int INFLATING = 2;
+    private static final int PASSING = 3;
+
+    private static final byte[] FRAME_TAIL = new byte[] { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+    DeflateFrameDecoder(final DeflateConfig config, final boolean peerNoContext) {
+        this.config = config;
+        this.peerNoContext = peerNoContext;
+    }
+
+    /**
+     * @return true if peer compresses every message on its own
+     */
+    public boolean isPeerNoContext() {
+        return peerNoContext;
+    }
+
+    /**
+     * takes effect from next message, only valid when peer compresses messages on its own
+     */
+    public void setPassthrough(final boolean passthrough) {
+        this.passthrough = passthrough && peerNoContext;
+    }
+
+    @Override
+    public boolean acceptInboundMessage(final Object msg) throws Exception {
+        return msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame
+                || msg instanceof ContinuationWebSocketFrame;
+    }
+
+    @Override
+    protected void decode(final ChannelHandlerContext ctx, final WebSocketFrame frame, final List<Object> out)
+            throws Exception {
+        if (!(frame instanceof ContinuationWebSocketFrame)) {
+            inflatedBytes = 0;
+            if ((frame.rsv() & WebSocketExtension.RSV1) == 0) {
+                state = PLAIN;
+            } else {
+                state = passthrough ? PASSING : INFLATING;
+            }
+        }
+
+        if (INFLATING == state) {
+            if (null == inflater) {
+                inflater = config.pool.borrowInflater();
+            }
+            final ByteBuf inflated = inflate(ctx, frame.content(), frame.isFinalFragment());
+            out.add(DeflateFrameEncoder.newFrame(frame, frame.rsv() & ~WebSocketExtension.RSV1, inflated));
+        } else {
+            out.add(frame.retain());
+        }
+
+        if (frame.isFinalFragment()) {
+            if (INFLATING == state && peerNoContext) {
+                config.pool.release(inflater);
+                inflater = null;
+            }
+            state = NONE;
+        }
+    }
+
+    private ByteBuf inflate(final ChannelHandlerContext ctx, final ByteBuf content, final boolean fin)
+            throws DataFormatException {
+        final int len = content.readableBytes();
+        if (fin || !content.hasArray()) {
+            final byte[] input = new byte[len + (fin ? FRAME_TAIL.length : 0)];
+            content.getBytes(content.readerIndex(), input, 0, len);
+            if (fin) {
+                System.arraycopy(FRAME_TAIL, 0, input, len, FRAME_TAIL.length);
+            }
+            inflater.setInput(input);
+        } else {
+            inflater.setInput(content.array(), content.arrayOffset() + content.readerIndex(), len);
+        }
+        final ByteBuf out = ctx.alloc().heapBuffer(len * 2 + 64);
+        try {
+            for (;;) {
+                out.ensureWritable(1024);
+                final int n = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(),
+                        out.writableBytes());
+                out.writerIndex(out.writerIndex() + n);
+                // limit applies to the whole message, a bomb may be split into many small frames
+                if (inflatedBytes + out.readableBytes() > config.maxInflatedSize) {
+                    throw new TooLongFrameException("inflated message exceeds " + config.maxInflatedSize + " bytes");
+                }
+                if (0 == n && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            inflatedBytes += out.readableBytes();
+            return out;
+        } catch (final DataFormatException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+        if (null != inflater) {
+            config.pool.release(inflater);
+            inflater = null;
+        }
+        super.handlerRemoved(ctx);
+    }
+
+    private final DeflateConfig config;
+    private final boolean peerNoContext;
+    private boolean passthrough = false;
+    private Inflater inflater;
+    private int state = NONE;
+    // inflated payload of current message so far
+    private long inflatedBytes = 0;
+}
@@ -0,0 +1,139 @@
+package org.jocean.wsproxy.deflate;
+
+import java.util.List;
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+
+/**
+ * compresses outgoing messages, whether a message is compressed is decided by the size of its first frame.
+ * <p>
+ * messages already compressed (RSV1 set, relayed from a peer with compatible parameters) are passed as is.
+ */
+public class DeflateFrameEncoder extends WebSocketExtensionEncoder {
+
+    private static final int NONE = 0;
+    private static final int PLAIN = 1;
+    private static final int COMPRESSING = 2;
+    private static final int PASSING = 3;
+
+    DeflateFrameEncoder(final DeflateConfig config, final boolean noContext) {
+        this.config = config;
+        this.noContext = noContext;
+    }
+
+    /**
+     * @return true if every message is compressed on its own, so peer's window never refers to earlier messages
+     */
+    public boolean isNoContext() {
+        return noContext;
+    }
+
+    @Override
+    public boolean acceptOutboundMessage(final Object msg) throws Exception {
+        return msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame
+                || msg instanceof ContinuationWebSocketFrame;
+    }
+
+    @Override
+    protected void encode(final ChannelHandlerContext ctx, final WebSocketFrame frame, final List<Object> out)
+            throws Exception {
+        if (!(frame instanceof ContinuationWebSocketFrame)) {
+            // first frame of a message
+            if ((frame.rsv() & WebSocketExtension.RSV1) != 0) {
+                state = PASSING;
+            } else if (frame.content().readableBytes() < config.minSize) {
+                state = PLAIN;
+            } else {
+                state = COMPRESSING;
+            }
+        }
+
+        if (COMPRESSING == state) {
+            if (null == deflater) {
+                deflater = config.pool.borrowDeflater();
+            }
+            final ByteBuf compressed = deflate(ctx, frame.content(), frame.isFinalFragment());
+            final int rsv = frame instanceof ContinuationWebSocketFrame ? frame.rsv()
+                    : frame.rsv() | WebSocketExtension.RSV1;
+            out.add(newFrame(frame, rsv, compressed));
+        } else {
+            out.add(frame.retain());
+        }
+
+        if (frame.isFinalFragment()) {
+            if (COMPRESSING == state && noContext) {
+                config.pool.release(deflater);
+                deflater = null;
+            }
+            state = NONE;
+        }
+    }
+
+    private ByteBuf deflate(final ChannelHandlerContext ctx, final ByteBuf content, final boolean fin) {
+        final int len = content.readableBytes();
+        if (content.hasArray()) {
+            deflater.setInput(content.array(), content.arrayOffset() + content.readerIndex(), len);
+        } else {
+            final byte[] input = new byte[len];
+            content.getBytes(content.readerIndex(), input);
+            deflater.setInput(input);
+        }
+        final ByteBuf out = ctx.alloc().heapBuffer(len / 2 + 64);
+        try {
+            for (;;) {
+                out.ensureWritable(256);
+                final int writable = out.writableBytes();
+                final int n = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), writable,
+                        Deflater.SYNC_FLUSH);
+                out.writerIndex(out.writerIndex() + n);
+                // sync flush is complete once output space is left over
+                if (n < writable) {
+                    break;
+                }
+            }
+            if (fin) {
+                // message ends with the empty stored block 00 00 ff ff, stripped as RFC 7692 7.2.1
+                out.writerIndex(out.writerIndex() - 4);
+                if (!out.isReadable()) {
+                    out.writeByte(0);
+                }
+            }
+            return out;
+        } catch (final RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    static WebSocketFrame newFrame(final WebSocketFrame frame, final int rsv, final ByteBuf content) {
+        if (frame instanceof TextWebSocketFrame) {
+            return new TextWebSocketFrame(frame.isFinalFragment(), rsv, content);
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            return new BinaryWebSocketFrame(frame.isFinalFragment(), rsv, content);
+        } else {
+            return new ContinuationWebSocketFrame(frame.isFinalFragment(), rsv, content);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+        if (null != deflater) {
+            config.pool.release(deflater);
+            deflater = null;
+        }
+        super.handlerRemoved(ctx);
+    }
+
+    private final DeflateConfig config;
+    private final boolean noContext;
+    private Deflater deflater;
+    private int state = NONE;
+}
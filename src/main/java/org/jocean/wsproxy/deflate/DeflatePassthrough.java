@@ -0,0 +1,35 @@
+package org.jocean.wsproxy.deflate;
+
+import io.netty.channel.Channel;
+
+/**
+ * lets compressed messages be relayed between two channels without inflate/deflate.
+ * <p>
+ * a direction passes through when its source compresses every message on its own
+ * and the target's encoder does too, so the target peer's inflate window never refers
+ * to messages compressed by a different compressor.
+ */
+public final class DeflatePassthrough {
+
+    /**
+     * call when both channels are handshaked, before relaying
+     * @param fromDownstream also pass through messages from downstream,
+     *      must be false if downstream's messages may be relayed to another upstream later
+     */
+    public static void link(final Channel downstream, final Channel upstream, final boolean fromDownstream) {
+        final DeflateFrameDecoder downDecoder = downstream.pipeline().get(DeflateFrameDecoder.class);
+        final DeflateFrameEncoder downEncoder = downstream.pipeline().get(DeflateFrameEncoder.class);
+        final DeflateFrameDecoder upDecoder = upstream.pipeline().get(DeflateFrameDecoder.class);
+        final DeflateFrameEncoder upEncoder = upstream.pipeline().get(DeflateFrameEncoder.class);
+        if (null != upDecoder) {
+            upDecoder.setPassthrough(null != downEncoder && downEncoder.isNoContext());
+        }
+        if (null != downDecoder) {
+            downDecoder.setPassthrough(fromDownstream && null != upEncoder && upEncoder.isNoContext());
+        }
+    }
+
+    private DeflatePassthrough() {
+        // Unused
+    }
+}
@@ -0,0 +1,36 @@
+package org.jocean.wsproxy.deflate;
+
+import java.util.Map;
+
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+
+/**
+ * accepts client's permessage-deflate offer, adding server_no_context_takeover when configured,
+ * and client_no_context_takeover when the client offered it.
+ */
+final class DeflateServerExtensionHandshaker implements WebSocketServerExtensionHandshaker {
+
+    DeflateServerExtensionHandshaker(final DeflateConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public WebSocketServerExtension handshakeExtension(final WebSocketExtensionData extensionData) {
+        if (!DeflateExtension.NAME.equals(extensionData.name())) {
+            return null;
+        }
+        final Map<String, String> params = extensionData.parameters();
+        final String serverWindow = params.get(DeflateExtension.SERVER_MAX_WINDOW);
+        if (null != serverWindow && !"15".equals(serverWindow)) {
+            // jdk Deflater always uses 32K window
+            return null;
+        }
+        final boolean serverNoContext = config.noContext || params.containsKey(DeflateExtension.SERVER_NO_CONTEXT);
+        final boolean clientNoContext = config.noContext && params.containsKey(DeflateExtension.CLIENT_NO_CONTEXT);
+        return new DeflateExtension(config, true, serverNoContext, clientNoContext);
+    }
+
+    private final DeflateConfig config;
+}
@@ -0,0 +1,65 @@
+package org.jocean.wsproxy.deflate;
+
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * raw (nowrap) Deflater/Inflater reused across sessions, pooled per event loop thread so borrowing never locks.
+ * <p>
+ * borrow and release on the same thread, released instances are reset, instances over maxPooled are ended.
+ */
+public final class ZlibPool {
+
+    public ZlibPool(final int level, final int maxPooled) {
+        this.level = level;
+        this.maxPooled = maxPooled;
+    }
+
+    public Deflater borrowDeflater() {
+        final Deflater deflater = deflaters.get().pollLast();
+        return null != deflater ? deflater : new Deflater(level, true);
+    }
+
+    public void release(final Deflater deflater) {
+        final ArrayDeque<Deflater> pooled = deflaters.get();
+        if (pooled.size() < maxPooled) {
+            deflater.reset();
+            pooled.addLast(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    public Inflater borrowInflater() {
+        final Inflater inflater = inflaters.get().pollLast();
+        return null != inflater ? inflater : new Inflater(true);
+    }
+
+    public void release(final Inflater inflater) {
+        final ArrayDeque<Inflater> pooled = inflaters.get();
+        if (pooled.size() < maxPooled) {
+            inflater.reset();
+            pooled.addLast(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+
+    private final int level;
+    private final int maxPooled;
+
+    private final FastThreadLocal<ArrayDeque<Deflater>> deflaters = new FastThreadLocal<ArrayDeque<Deflater>>() {
+        @Override
+        protected ArrayDeque<Deflater> initialValue() {
+            return new ArrayDeque<>();
+        }};
+
+    private final FastThreadLocal<ArrayDeque<Inflater>> inflaters = new FastThreadLocal<ArrayDeque<Inflater>>() {
+        @Override
+        protected ArrayDeque<Inflater> initialValue() {
+            return new ArrayDeque<>();
+        }};
+}
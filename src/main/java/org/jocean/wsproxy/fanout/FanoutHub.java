@@ -0,0 +1,414 @@
+package org.jocean.wsproxy.fanout;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jocean.idiom.ExceptionUtils;
+import org.jocean.wsproxy.ChannelTuning;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.Transport;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * one upstream connection whose frames are pushed to every subscribed downstream channel.
+ * <p>
+ * each frame is encoded once into wire bytes, frames read in one upstream read loop are handed
+ * to each subscriber event loop as a single task, and written there to all its subscribers as
+ * retained duplicates of the same buffers.
+ */
+public final class FanoutHub {
+    private static final Logger LOG = LoggerFactory.getLogger(FanoutHub.class);
+
+    FanoutHub(final FanoutHubs hubs, final String key, final URI uri, final EventLoop eventLoop,
+            final boolean disconnectSlow, final ProxyMetrics metrics) {
+        this.hubs = hubs;
+        this.key = key;
+        this.uri = uri;
+        this.eventLoop = eventLoop;
+        this.disconnectSlow = disconnectSlow;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param tls used for wss:// uri
+     * @param timeoutMillis close subscribers if connect and handshake not complete within, 0 means no limit
+     */
+    void connect(final Transport transport, final ChannelTuning tuning, final ReloadableSslContext tls,
+            final long timeoutMillis) {
+        final WebSocketClientHandshaker handshaker = WebSocketClientHandshakerFactory.newHandshaker(
+                uri, WebSocketVersion.V13, null, false, new DefaultHttpHeaders());
+        final Bootstrap b = new Bootstrap();
+        b.group(eventLoop)
+         .channel(transport.socketChannelClass())
+         .handler(new ChannelInitializer<Channel>() {
+             @Override
+             protected void initChannel(final Channel ch) {
+                 if ("wss".equalsIgnoreCase(uri.getScheme())) {
+                     ch.pipeline().addLast(tls.newHandler(ch.alloc(), uri.getHost(), uri.getPort()));
+                 }
+                 ch.pipeline().addLast(new HttpClientCodec(), new HttpObjectAggregator(8192),
+                         new FanoutUpstreamHandler(handshaker));
+             }
+         });
+        tuning.apply(b, transport);
+        if (timeoutMillis > 0) {
+            b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+        }
+        final ChannelFuture connectFuture = b.connect(uri.getHost(), uri.getPort());
+        upstream = connectFuture.channel();
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    LOG.warn("fanout upstream {} unavailable, detail: {}", uri,
+                            ExceptionUtils.exception2detail(future.cause()));
+                    closeAll(1011, "upstream unavailable");
+                }
+            }});
+        if (timeoutMillis > 0) {
+            // connected but backend doesn't answer the handshake
+            final ScheduledFuture<?> timeout = eventLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!handshaker.isHandshakeComplete() && !closed) {
+                        LOG.warn("fanout upstream {} handshake timeout after {} ms", uri, timeoutMillis);
+                        closeAll(1011, "upstream unavailable");
+                        upstream.close();
+                    }
+                }}, timeoutMillis, TimeUnit.MILLISECONDS);
+            upstream.closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(final ChannelFuture future) throws Exception {
+                    timeout.cancel(false);
+                }});
+        }
+    }
+
+    /**
+     * must be called on downstream's event loop
+     * @return false if hub is closing, subscribe to a new one
+     */
+    boolean subscribe(final Channel downstream) {
+        // closeAll sets closed before visiting groups, so a subscriber added here is always reached
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            subscriberCount++;
+            LoopSubscribers group = groups.get(downstream.eventLoop());
+            if (null == group) {
+                group = new LoopSubscribers(downstream.eventLoop());
+                groups.put(downstream.eventLoop(), group);
+            }
+            group.add(downstream);
+        }
+        return true;
+    }
+
+    /**
+     * must be called on downstream's event loop, upstream is closed with the last subscriber
+     */
+    public void unsubscribe(final Channel downstream) {
+        final LoopSubscribers group = groups.get(downstream.eventLoop());
+        if (null == group || !group.remove(downstream)) {
+            return;
+        }
+        onRemoved();
+    }
+
+    private void onRemoved() {
+        synchronized (this) {
+            if (--subscriberCount > 0 || closed) {
+                return;
+            }
+            closed = true;
+        }
+        LOG.info("last subscriber of fanout {} left, close upstream", uri);
+        hubs.remove(key, this);
+        if (null != upstream) {
+            upstream.close();
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (null != upstream) {
+            upstream.close();
+        }
+    }
+
+    public int subscriberCount() {
+        synchronized (this) {
+            return subscriberCount;
+        }
+    }
+
+    private void closeAll(final int code, final String reason) {
+        synchronized (this) {
+            closed = true;
+        }
+        hubs.remove(key, this);
+        for (final LoopSubscribers group : groups.values()) {
+            group.eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    group.closeAll(code, reason);
+                }});
+        }
+    }
+
+    private void dispatch(final List<Wire> batch) {
+        for (final LoopSubscribers group : groups.values()) {
+            for (final Wire wire : batch) {
+                wire.buf.retain();
+            }
+            group.eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        group.deliver(batch);
+                    } finally {
+                        for (final Wire wire : batch) {
+                            wire.buf.release();
+                        }
+                    }
+                }});
+        }
+        for (final Wire wire : batch) {
+            wire.buf.release();
+        }
+    }
+
+    /**
+     * server to client frame: no mask, no extension bits, header and payload as one composite buffer
+     */
+    private static ByteBuf encode(final ByteBufAllocator alloc, final WebSocketFrame frame) {
+        final ByteBuf content = frame.content();
+        final int len = content.readableBytes();
+        final int opcode = frame instanceof TextWebSocketFrame ? 0x1 : frame instanceof BinaryWebSocketFrame ? 0x2 : 0x0;
+        final ByteBuf header = alloc.buffer(10);
+        header.writeByte((frame.isFinalFragment() ? 0x80 : 0) | opcode);
+        if (len <= 125) {
+            header.writeByte(len);
+        } else if (len <= 0xFFFF) {
+            header.writeByte(126);
+            header.writeShort(len);
+        } else {
+            header.writeByte(127);
+            header.writeLong(len);
+        }
+        return alloc.compositeBuffer(2).addComponents(true, header, content.retain());
+    }
+
+    private static final class Wire {
+        Wire(final ByteBuf buf, final boolean first, final boolean fin) {
+            this.buf = buf;
+            this.first = first;
+            this.fin = fin;
+        }
+
+        final ByteBuf buf;
+        // starts a message
+        final boolean first;
+        final boolean fin;
+    }
+
+    private static final class Subscriber {
+        Subscriber(final Channel channel) {
+            this.channel = channel;
+        }
+
+        final Channel channel;
+        // joined or dropped in the middle of a message, skip until next message starts
+        boolean skipping = true;
+    }
+
+    /**
+     * subscribers on one event loop, only touched on that loop
+     */
+    private final class LoopSubscribers {
+        LoopSubscribers(final EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+        }
+
+        void add(final Channel channel) {
+            subscribers.add(new Subscriber(channel));
+        }
+
+        boolean remove(final Channel channel) {
+            final Iterator<Subscriber> iter = subscribers.iterator();
+            while (iter.hasNext()) {
+                if (iter.next().channel == channel) {
+                    iter.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void deliver(final List<Wire> batch) {
+            final Iterator<Subscriber> iter = subscribers.iterator();
+            while (iter.hasNext()) {
+                final Subscriber subscriber = iter.next();
+                final Channel channel = subscriber.channel;
+                boolean written = false;
+                for (final Wire wire : batch) {
+                    if (wire.first) {
+                        if (channel.isWritable()) {
+                            subscriber.skipping = false;
+                        } else if (disconnectSlow) {
+                            metrics.onFanoutDisconnected();
+                            channel.writeAndFlush(new CloseWebSocketFrame(1008, "slow consumer"))
+                                .addListener(ChannelFutureListener.CLOSE);
+                            iter.remove();
+                            onRemoved();
+                            break;
+                        } else {
+                            metrics.onFanoutDropped();
+                            subscriber.skipping = true;
+                        }
+                    }
+                    if (!subscriber.skipping) {
+                        channel.write(wire.buf.retainedDuplicate());
+                        written = true;
+                    }
+                }
+                if (written) {
+                    channel.flush();
+                }
+            }
+        }
+
+        void closeAll(final int code, final String reason) {
+            for (final Subscriber subscriber : subscribers) {
+                subscriber.channel.writeAndFlush(new CloseWebSocketFrame(code, reason))
+                    .addListener(ChannelFutureListener.CLOSE);
+            }
+            subscribers.clear();
+        }
+
+        final EventLoop eventLoop;
+        private final List<Subscriber> subscribers = new ArrayList<>();
+    }
+
+    private final class FanoutUpstreamHandler extends SimpleChannelInboundHandler<Object> {
+
+        FanoutUpstreamHandler(final WebSocketClientHandshaker handshaker) {
+            this.handshaker = handshaker;
+        }
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+            handshaker.handshake(ctx.channel());
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+            if (!handshaker.isHandshakeComplete()) {
+                handshaker.finishHandshake(ctx.channel(), (FullHttpResponse) msg);
+                LOG.info("fanout upstream {} connected", uri);
+                return;
+            }
+            if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame
+                    || msg instanceof ContinuationWebSocketFrame) {
+                final WebSocketFrame frame = (WebSocketFrame) msg;
+                metrics.onBackendFrames(1, frame.content().readableBytes());
+                batch.add(new Wire(encode(ctx.alloc(), frame), !(frame instanceof ContinuationWebSocketFrame),
+                        frame.isFinalFragment()));
+            } else if (msg instanceof PingWebSocketFrame) {
+                ctx.writeAndFlush(new PongWebSocketFrame(((PingWebSocketFrame) msg).content().retain()));
+            } else if (msg instanceof CloseWebSocketFrame) {
+                final CloseWebSocketFrame close = (CloseWebSocketFrame) msg;
+                closeCode = close.statusCode();
+                closeReason = close.reasonText();
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+            if (!batch.isEmpty()) {
+                final List<Wire> frames = batch;
+                batch = new ArrayList<>();
+                dispatch(frames);
+            }
+            ctx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            for (final Wire wire : batch) {
+                wire.buf.release();
+            }
+            batch.clear();
+            if (!closed) {
+                LOG.info("fanout upstream {} closed with {} subscriber(s)", uri, subscriberCount());
+                closeAll(closeCode > 0 ? closeCode : 1011, null != closeReason ? closeReason : "upstream lost");
+            }
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            LOG.warn("exception on fanout upstream {}, detail: {}", uri, ExceptionUtils.exception2detail(cause));
+            ctx.close();
+        }
+
+        private final WebSocketClientHandshaker handshaker;
+        private List<Wire> batch = new ArrayList<>();
+        private int closeCode = -1;
+        private String closeReason;
+    }
+
+    @Override
+    public String toString() {
+        return "FanoutHub [uri=" + uri + ", subscribers=" + subscriberCount() + "]";
+    }
+
+    private final FanoutHubs hubs;
+    private final String key;
+    private final URI uri;
+    private final EventLoop eventLoop;
+    private final boolean disconnectSlow;
+    private final ProxyMetrics metrics;
+    private final ConcurrentMap<EventLoop, LoopSubscribers> groups = new ConcurrentHashMap<>();
+    private volatile Channel upstream;
+    private int subscriberCount = 0;
+    private volatile boolean closed = false;
+}
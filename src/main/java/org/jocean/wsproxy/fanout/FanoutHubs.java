@@ -0,0 +1,74 @@
+package org.jocean.wsproxy.fanout;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jocean.wsproxy.ChannelTuning;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.Transport;
+import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+
+import io.netty.channel.Channel;
+
+/**
+ * one FanoutHub per requested upstream path of fanout services
+ */
+public class FanoutHubs {
+
+    /**
+     * @param tls for WSNodes with tls on
+     * @param connectTimeoutMillis limit for upstream connect and handshake, 0 means no limit
+     */
+    public FanoutHubs(final ChannelTuning tuning, final ProxyMetrics metrics, final ReloadableSslContext tls,
+            final long connectTimeoutMillis) {
+        this.tuning = tuning;
+        this.tls = tls;
+        this.metrics = metrics;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * must be called on downstream's event loop, a new hub connects node on downstream's event loop
+     * @param path upstream path, sessions requesting the same path share one hub
+     */
+    public FanoutHub subscribe(final WSNode node, final String path, final Channel downstream) {
+        final String key = node.hostname + "/" + node.service + path;
+        for (;;) {
+            FanoutHub hub = hubs.get(key);
+            if (null == hub) {
+                final FanoutHub created = new FanoutHub(this, key,
+                        URI.create(node.scheme() + "://" + node.ip + ":" + node.port + path), downstream.eventLoop(),
+                        "disconnect".equals(node.fanoutSlow), metrics);
+                hub = hubs.putIfAbsent(key, created);
+                if (null == hub) {
+                    hub = created;
+                    hub.connect(Transport.of(downstream), tuning, tls, connectTimeoutMillis);
+                }
+            }
+            if (hub.subscribe(downstream)) {
+                return hub;
+            }
+            // hub is closing, it removes itself
+            hubs.remove(key, hub);
+        }
+    }
+
+    public void close() {
+        for (final FanoutHub hub : hubs.values()) {
+            hub.close();
+        }
+        hubs.clear();
+    }
+
+    void remove(final String key, final FanoutHub hub) {
+        hubs.remove(key, hub);
+    }
+
+    private final ChannelTuning tuning;
+    private final ReloadableSslContext tls;
+    private final ProxyMetrics metrics;
+    private final long connectTimeoutMillis;
+    private final ConcurrentMap<String, FanoutHub> hubs = new ConcurrentHashMap<>();
+}
@@ -0,0 +1,91 @@
+package org.jocean.wsproxy.health;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jocean.wsproxy.RouteTable;
+import org.jocean.wsproxy.Transport;
+import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.WSService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * active health checks: every interval, tcp connect to each routed node and close right away,
+ * probes are spread across the proxy event loops and never block them.
+ */
+public class HealthChecker {
+    private static final Logger LOG = LoggerFactory.getLogger(HealthChecker.class);
+
+    public HealthChecker(final RouteTable routes, final HealthPolicy policy, final Transport transport,
+            final EventLoopGroup group, final long intervalMillis, final int timeoutMillis) {
+        this.routes = routes;
+        this.policy = policy;
+        this.transport = transport;
+        this.group = group;
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void start() {
+        if (intervalMillis <= 0) {
+            LOG.info("active health check disabled");
+            return;
+        }
+        _scheduled = group.next().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probeAll();
+            }}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (null != _scheduled) {
+            _scheduled.cancel(false);
+            _scheduled = null;
+        }
+    }
+
+    private void probeAll() {
+        for (final WSService service : routes.services()) {
+            for (final WSNode node : service.nodes()) {
+                probe(group.next(), node);
+            }
+        }
+    }
+
+    private void probe(final EventLoop eventLoop, final WSNode node) {
+        final Bootstrap b = new Bootstrap();
+        b.group(eventLoop)
+         .channel(transport.socketChannelClass())
+         .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
+         .handler(new ChannelInboundHandlerAdapter());
+        b.connect(node.ip, node.port).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    policy.onSuccess(node);
+                    future.channel().close();
+                } else {
+                    LOG.debug("probe {} failed: {}", node, future.cause().toString());
+                    policy.onFailure(node);
+                }
+            }});
+    }
+
+    private final RouteTable routes;
+    private final HealthPolicy policy;
+    private final Transport transport;
+    private final EventLoopGroup group;
+    private final long intervalMillis;
+    private final int timeoutMillis;
+    private ScheduledFuture<?> _scheduled;
+}
@@ -0,0 +1,40 @@
+package org.jocean.wsproxy.health;
+
+import org.jocean.wsproxy.WSNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * outlier ejection: node with maxFailures consecutive failures is taken out of balancing for a backoff period,
+ * doubling from baseEjectionMillis up to maxEjectionMillis while it keeps failing after coming back.
+ */
+public class HealthPolicy {
+    private static final Logger LOG = LoggerFactory.getLogger(HealthPolicy.class);
+
+    public HealthPolicy(final int maxFailures, final long baseEjectionMillis, final long maxEjectionMillis) {
+        this.maxFailures = Math.max(1, maxFailures);
+        this.baseEjectionMillis = baseEjectionMillis;
+        this.maxEjectionMillis = Math.max(baseEjectionMillis, maxEjectionMillis);
+    }
+
+    public void onSuccess(final WSNode node) {
+        node.health().onSuccess();
+    }
+
+    public void onFailure(final WSNode node) {
+        final long ejection = node.health().onFailure(maxFailures, baseEjectionMillis, maxEjectionMillis);
+        if (ejection > 0) {
+            LOG.warn("eject {} for {} ms after {} consecutive failures", node, ejection, maxFailures);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HealthPolicy [maxFailures=" + maxFailures + ", baseEjectionMillis=" + baseEjectionMillis
+                + ", maxEjectionMillis=" + maxEjectionMillis + "]";
+    }
+
+    private final int maxFailures;
+    private final long baseEjectionMillis;
+    private final long maxEjectionMillis;
+}
@@ -0,0 +1,60 @@
+package org.jocean.wsproxy.health;
+
+/**
+ * health state of one WSNode, fed by real upstream connects (passive) and probes (active).
+ * <p>
+ * reads are lock free, state changes after failures are rare and synchronized.
+ */
+public final class NodeHealth {
+
+    public boolean isAvailable() {
+        final long ejectedUntil = _ejectedUntil;
+        return 0 == ejectedUntil || System.currentTimeMillis() >= ejectedUntil;
+    }
+
+    public int consecutiveFailures() {
+        return _consecutiveFailures;
+    }
+
+    public int ejections() {
+        return _ejections;
+    }
+
+    void onSuccess() {
+        // avoid contended writes on the common healthy path
+        if (0 != _consecutiveFailures || (0 != _ejections && isAvailable())) {
+            synchronized (this) {
+                _consecutiveFailures = 0;
+                if (isAvailable()) {
+                    _ejections = 0;
+                    _ejectedUntil = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return ejection millis if node ejected by this failure, or 0
+     */
+    synchronized long onFailure(final int maxFailures, final long baseEjectionMillis, final long maxEjectionMillis) {
+        if (++_consecutiveFailures < maxFailures || !isAvailable()) {
+            return 0;
+        }
+        // backoff doubles with each ejection in a row
+        final long ejection = Math.min(maxEjectionMillis, baseEjectionMillis << Math.min(_ejections, 16));
+        _ejectedUntil = System.currentTimeMillis() + ejection;
+        _ejections++;
+        _consecutiveFailures = 0;
+        return ejection;
+    }
+
+    @Override
+    public String toString() {
+        return "NodeHealth [available=" + isAvailable() + ", consecutiveFailures=" + _consecutiveFailures
+                + ", ejections=" + _ejections + "]";
+    }
+
+    private volatile int _consecutiveFailures = 0;
+    private volatile int _ejections = 0;
+    private volatile long _ejectedUntil = 0;
+}
@@ -0,0 +1,141 @@
+package org.jocean.wsproxy.limit;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * global cap of concurrent sessions, and token bucket limits of client to backend traffic
+ * per session, per source ip and per service.
+ * <p>
+ * ip and service buckets are kept per event loop and shared by the sessions on that loop,
+ * their rate is split evenly across loops, so the hot path takes no lock and touches no shared counter.
+ * a shared bucket lives as long as a session on its loop references it.
+ */
+public class AdmissionControl {
+
+    /**
+     * @param loops number of event loops sessions are spread across
+     * @param maxSessions 0 means unlimited
+     * @param limits msgs/sec and bytes/sec of session, ip, service in this order, 0 disables one
+     */
+    public AdmissionControl(final int loops, final int maxSessions,
+            final long sessionMsgs, final long sessionBytes,
+            final long ipMsgs, final long ipBytes,
+            final long serviceMsgs, final long serviceBytes) {
+        this.maxSessions = maxSessions;
+        this.sessionMsgs = sessionMsgs;
+        this.sessionBytes = sessionBytes;
+        this.ipMsgs = (double) ipMsgs / loops;
+        this.ipBytes = (double) ipBytes / loops;
+        this.serviceMsgs = (double) serviceMsgs / loops;
+        this.serviceBytes = (double) serviceBytes / loops;
+    }
+
+    /**
+     * @return false if max sessions reached, otherwise release() must be called when session ends
+     */
+    public boolean tryAdmit() {
+        if (maxSessions <= 0) {
+            sessions.incrementAndGet();
+            return true;
+        }
+        for (;;) {
+            final int current = sessions.get();
+            if (current >= maxSessions) {
+                return false;
+            }
+            if (sessions.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        sessions.decrementAndGet();
+    }
+
+    public int sessions() {
+        return sessions.get();
+    }
+
+    /**
+     * must be called on session's event loop
+     * @return null if no rate limit configured
+     */
+    public SessionLimiter newSession(final String ip, final String service) {
+        if (sessionMsgs <= 0 && sessionBytes <= 0 && ipMsgs <= 0 && ipBytes <= 0
+                && serviceMsgs <= 0 && serviceBytes <= 0) {
+            return null;
+        }
+        final long now = System.nanoTime();
+        final LoopBuckets loop = loopBuckets.get();
+        return new SessionLimiter(
+                sessionMsgs > 0 ? new TokenBucket(sessionMsgs, now) : null,
+                sessionBytes > 0 ? new TokenBucket(sessionBytes, now) : null,
+                ipMsgs > 0 || ipBytes > 0 ? loop.acquire(loop.byIp, ip, ipMsgs, ipBytes, now) : null,
+                serviceMsgs > 0 || serviceBytes > 0
+                    ? loop.acquire(loop.byService, service, serviceMsgs, serviceBytes, now) : null);
+    }
+
+    /**
+     * buckets shared by sessions of one event loop
+     */
+    static final class SharedBuckets {
+        SharedBuckets(final Map<String, SharedBuckets> owner, final String key,
+                final TokenBucket msgs, final TokenBucket bytes) {
+            this.owner = owner;
+            this.key = key;
+            this.msgs = msgs;
+            this.bytes = bytes;
+        }
+
+        void release() {
+            if (--refs == 0) {
+                owner.remove(key);
+            }
+        }
+
+        private final Map<String, SharedBuckets> owner;
+        private final String key;
+        final TokenBucket msgs;
+        final TokenBucket bytes;
+        private int refs = 0;
+    }
+
+    private static final class LoopBuckets {
+        SharedBuckets acquire(final Map<String, SharedBuckets> buckets, final String key,
+                final double msgs, final double bytes, final long now) {
+            SharedBuckets shared = buckets.get(key);
+            if (null == shared) {
+                shared = new SharedBuckets(buckets, key,
+                        msgs > 0 ? new TokenBucket(msgs, now) : null,
+                        bytes > 0 ? new TokenBucket(bytes, now) : null);
+                buckets.put(key, shared);
+            }
+            shared.refs++;
+            return shared;
+        }
+
+        final Map<String, SharedBuckets> byIp = new HashMap<>();
+        final Map<String, SharedBuckets> byService = new HashMap<>();
+    }
+
+    private final FastThreadLocal<LoopBuckets> loopBuckets = new FastThreadLocal<LoopBuckets>() {
+        @Override
+        protected LoopBuckets initialValue() {
+            return new LoopBuckets();
+        }
+    };
+
+    private final int maxSessions;
+    private final long sessionMsgs;
+    private final long sessionBytes;
+    private final double ipMsgs;
+    private final double ipBytes;
+    private final double serviceMsgs;
+    private final double serviceBytes;
+    private final AtomicInteger sessions = new AtomicInteger(0);
+}
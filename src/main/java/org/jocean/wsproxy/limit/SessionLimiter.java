@@ -0,0 +1,55 @@
+package org.jocean.wsproxy.limit;
+
+/**
+ * rate limits applied to one session, used on the session's event loop only
+ */
+public final class SessionLimiter {
+
+    SessionLimiter(final TokenBucket msgs, final TokenBucket bytes,
+            final AdmissionControl.SharedBuckets ip, final AdmissionControl.SharedBuckets service) {
+        this.msgs = msgs;
+        this.bytes = bytes;
+        this.ip = ip;
+        this.service = service;
+    }
+
+    /**
+     * charge one frame to all buckets of the session
+     * @param messageStart first frame of a message, messages are counted once
+     * @return nanos to pause reading from client, 0 if within limits
+     */
+    public long onFrame(final boolean messageStart, final int size, final long nowNanos) {
+        long wait = consume(messageStart ? msgs : null, 1, nowNanos);
+        wait = Math.max(wait, consume(bytes, size, nowNanos));
+        if (null != ip) {
+            wait = Math.max(wait, consume(messageStart ? ip.msgs : null, 1, nowNanos));
+            wait = Math.max(wait, consume(ip.bytes, size, nowNanos));
+        }
+        if (null != service) {
+            wait = Math.max(wait, consume(messageStart ? service.msgs : null, 1, nowNanos));
+            wait = Math.max(wait, consume(service.bytes, size, nowNanos));
+        }
+        return wait;
+    }
+
+    /**
+     * must be called once when session ends, on session's event loop
+     */
+    public void release() {
+        if (null != ip) {
+            ip.release();
+        }
+        if (null != service) {
+            service.release();
+        }
+    }
+
+    private static long consume(final TokenBucket bucket, final long amount, final long nowNanos) {
+        return null != bucket ? bucket.consume(amount, nowNanos) : 0;
+    }
+
+    private final TokenBucket msgs;
+    private final TokenBucket bytes;
+    private final AdmissionControl.SharedBuckets ip;
+    private final AdmissionControl.SharedBuckets service;
+}
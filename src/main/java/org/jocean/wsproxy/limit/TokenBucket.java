@@ -0,0 +1,42 @@
+package org.jocean.wsproxy.limit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * token bucket refilled at a fixed rate up to one second of tokens, not thread safe:
+ * every bucket is used on a single event loop.
+ * <p>
+ * consume never refuses, the balance goes into debt instead, so a frame already read is still relayed
+ * and the caller pauses reading until the debt is paid back.
+ */
+public final class TokenBucket {
+
+    /**
+     * @param ratePerSecond tokens added per second, also the capacity
+     */
+    public TokenBucket(final double ratePerSecond, final long nowNanos) {
+        this.rate = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = ratePerSecond;
+        this.tokens = ratePerSecond;
+        this.lastNanos = nowNanos;
+    }
+
+    /**
+     * @return nanos until balance is no longer negative, 0 if not in debt
+     */
+    public long consume(final long amount, final long nowNanos) {
+        tokens = Math.min(capacity, tokens + (nowNanos - lastNanos) * rate) - amount;
+        lastNanos = nowNanos;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket [tokens=" + (long) tokens + "/" + (long) capacity + "]";
+    }
+
+    private final double rate;
+    private final double capacity;
+    private double tokens;
+    private long lastNanos;
+}
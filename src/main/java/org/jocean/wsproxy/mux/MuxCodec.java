@@ -0,0 +1,135 @@
+package org.jocean.wsproxy.mux;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+
+/**
+ * encode and decode mux envelopes, see package doc for the layout
+ */
+public final class MuxCodec {
+
+    public static final byte OPEN = 1;
+    public static final byte CLOSE = 2;
+    public static final byte DATA = 3;
+
+    private static final int FIN = 0x80;
+
+    private static final int OPCODE_CONT = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    public static WebSocketFrame open(final ByteBufAllocator alloc, final long sid, final String path) {
+        final ByteBuf buf = alloc.buffer(9 + ByteBufUtil.utf8MaxBytes(path));
+        buf.writeByte(OPEN).writeLong(sid);
+        ByteBufUtil.writeUtf8(buf, path);
+        return new BinaryWebSocketFrame(buf);
+    }
+
+    public static WebSocketFrame close(final ByteBufAllocator alloc, final long sid, final int code,
+            final String reason) {
+        final String text = null != reason ? reason : "";
+        final ByteBuf buf = alloc.buffer(11 + ByteBufUtil.utf8MaxBytes(text));
+        buf.writeByte(CLOSE).writeLong(sid).writeShort(code);
+        ByteBufUtil.writeUtf8(buf, text);
+        return new BinaryWebSocketFrame(buf);
+    }
+
+    /**
+     * frame's content is retained and wrapped without copy, frame itself is not released
+     */
+    public static WebSocketFrame data(final ByteBufAllocator alloc, final long sid, final WebSocketFrame frame) {
+        final ByteBuf header = alloc.buffer(10);
+        header.writeByte(DATA).writeLong(sid).writeByte((frame.isFinalFragment() ? FIN : 0) | opcodeOf(frame));
+        return new BinaryWebSocketFrame(Unpooled.wrappedBuffer(header, frame.content().retain()));
+    }
+
+    /**
+     * @return false if envelope too short to carry type and session id
+     */
+    public static boolean isValid(final ByteBuf envelope) {
+        return envelope.readableBytes() >= 9;
+    }
+
+    public static byte typeOf(final ByteBuf envelope) {
+        return envelope.getByte(envelope.readerIndex());
+    }
+
+    public static long sessionOf(final ByteBuf envelope) {
+        return envelope.getLong(envelope.readerIndex() + 1);
+    }
+
+    public static String pathOf(final ByteBuf envelope) {
+        return envelope.toString(envelope.readerIndex() + 9, envelope.readableBytes() - 9, CharsetUtil.UTF_8);
+    }
+
+    public static int closeCodeOf(final ByteBuf envelope) {
+        return envelope.readableBytes() >= 11 ? envelope.getUnsignedShort(envelope.readerIndex() + 9) : 1000;
+    }
+
+    public static String closeReasonOf(final ByteBuf envelope) {
+        return envelope.readableBytes() > 11
+                ? envelope.toString(envelope.readerIndex() + 11, envelope.readableBytes() - 11, CharsetUtil.UTF_8)
+                : "";
+    }
+
+    /**
+     * @return frame carried by DATA envelope, its content is a retained slice of envelope,
+     *      null if envelope has no flags or an unknown opcode
+     */
+    public static WebSocketFrame frameOf(final ByteBuf envelope) {
+        if (envelope.readableBytes() < 10) {
+            return null;
+        }
+        final int flags = envelope.getUnsignedByte(envelope.readerIndex() + 9);
+        final boolean fin = (flags & FIN) != 0;
+        final ByteBuf payload = envelope.retainedSlice(envelope.readerIndex() + 10, envelope.readableBytes() - 10);
+        switch (flags & 0x0f) {
+        case OPCODE_TEXT:
+            return new TextWebSocketFrame(fin, 0, payload);
+        case OPCODE_BINARY:
+            return new BinaryWebSocketFrame(fin, 0, payload);
+        case OPCODE_PING:
+            return new PingWebSocketFrame(payload);
+        case OPCODE_PONG:
+            return new PongWebSocketFrame(payload);
+        case OPCODE_CONT:
+            return new ContinuationWebSocketFrame(fin, 0, payload);
+        default:
+            payload.release();
+            return null;
+        }
+    }
+
+    private static int opcodeOf(final WebSocketFrame frame) {
+        if (frame instanceof TextWebSocketFrame) {
+            return OPCODE_TEXT;
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            return OPCODE_BINARY;
+        } else if (frame instanceof PingWebSocketFrame) {
+            return OPCODE_PING;
+        } else if (frame instanceof PongWebSocketFrame) {
+            return OPCODE_PONG;
+        } else if (frame instanceof ContinuationWebSocketFrame) {
+            return OPCODE_CONT;
+        } else if (frame instanceof CloseWebSocketFrame) {
+            throw new IllegalArgumentException("close frame must be sent as CLOSE envelope");
+        }
+        throw new IllegalArgumentException("unknown frame type: " + frame);
+    }
+
+    private MuxCodec() {
+        // Unused
+    }
+}
\ No newline at end of file
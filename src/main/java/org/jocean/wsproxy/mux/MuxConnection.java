@@ -0,0 +1,279 @@
+package org.jocean.wsproxy.mux;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jocean.idiom.ExceptionUtils;
+import org.jocean.wsproxy.ChannelTuning;
+import org.jocean.wsproxy.Transport;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * one websocket connection to a WSNode carrying many MuxSessions
+ */
+final class MuxConnection {
+    private static final Logger LOG = LoggerFactory.getLogger(MuxConnection.class);
+
+    MuxConnection(final MuxPool pool, final EventLoop eventLoop) {
+        this.pool = pool;
+        this.eventLoop = eventLoop;
+        this.handshakeFuture = eventLoop.newPromise();
+    }
+
+    /**
+     * @param transport must match eventLoop's transport
+     * @param tls used for wss:// uri
+     * @param timeoutMillis fail if connect and handshake not complete within, 0 means no limit
+     * @return future notified when websocket handshake with backend complete
+     */
+    Future<Void> connect(final URI uri, final Transport transport, final ChannelTuning tuning,
+            final ReloadableSslContext tls, final long timeoutMillis) {
+        final WebSocketClientHandshaker handshaker = WebSocketClientHandshakerFactory.newHandshaker(
+                uri, WebSocketVersion.V13, null, false, new DefaultHttpHeaders());
+        final Bootstrap b = new Bootstrap();
+        b.group(eventLoop)
+         .channel(transport.socketChannelClass())
+         .handler(new ChannelInitializer<Channel>() {
+             @Override
+             protected void initChannel(final Channel ch) {
+                 if ("wss".equalsIgnoreCase(uri.getScheme())) {
+                     ch.pipeline().addLast(tls.newHandler(ch.alloc(), uri.getHost(), uri.getPort()));
+                 }
+                 ch.pipeline().addLast(new HttpClientCodec(), new HttpObjectAggregator(8192),
+                         new MuxConnectionHandler(handshaker));
+             }
+         });
+        tuning.apply(b, transport);
+        if (timeoutMillis > 0) {
+            b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+        }
+
+        final ChannelFuture connectFuture = b.connect(uri.getHost(), uri.getPort());
+        channel = connectFuture.channel();
+        // a channel never active gets no channelInactive, free the slot here so the next session reconnects
+        handshakeFuture.addListener(new GenericFutureListener<Future<Void>>() {
+            @Override
+            public void operationComplete(final Future<Void> future) throws Exception {
+                if (!future.isSuccess()) {
+                    pool.remove(MuxConnection.this);
+                    channel.close();
+                }
+            }});
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    handshakeFuture.tryFailure(future.cause());
+                }
+            }});
+        if (timeoutMillis > 0) {
+            // connected but backend doesn't answer the handshake
+            final ScheduledFuture<?> timeout = eventLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    handshakeFuture.tryFailure(new TimeoutException("mux handshake timeout after "
+                            + timeoutMillis + " ms"));
+                }}, timeoutMillis, TimeUnit.MILLISECONDS);
+            handshakeFuture.addListener(new GenericFutureListener<Future<Void>>() {
+                @Override
+                public void operationComplete(final Future<Void> future) throws Exception {
+                    timeout.cancel(false);
+                }});
+        }
+        return handshakeFuture;
+    }
+
+    Future<Void> handshakeFuture() {
+        return handshakeFuture;
+    }
+
+    EventLoop eventLoop() {
+        return eventLoop;
+    }
+
+    boolean isWritable() {
+        return channel.isWritable();
+    }
+
+    /**
+     * register session and send OPEN, must be called from connection's event loop
+     */
+    void open(final MuxSession session, final String path) {
+        sessions.put(session.id(), session);
+        channel.writeAndFlush(MuxCodec.open(channel.alloc(), session.id(), path));
+    }
+
+    void write(final WebSocketFrame envelope) {
+        channel.write(envelope);
+    }
+
+    void flush() {
+        channel.flush();
+    }
+
+    void close(final MuxSession session, final int code, final String reason) {
+        if (null != sessions.remove(session.id()) && channel.isActive()) {
+            channel.writeAndFlush(MuxCodec.close(channel.alloc(), session.id(), code, reason));
+        }
+    }
+
+    void close() {
+        channel.close();
+    }
+
+    int sessionCount() {
+        return sessions.size();
+    }
+
+    private final class MuxConnectionHandler extends SimpleChannelInboundHandler<Object> {
+
+        MuxConnectionHandler(final WebSocketClientHandshaker handshaker) {
+            this.handshaker = handshaker;
+        }
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+            handshaker.handshake(ctx.channel());
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+            if (!handshaker.isHandshakeComplete()) {
+                try {
+                    handshaker.finishHandshake(ctx.channel(), (FullHttpResponse) msg);
+                    LOG.info("mux connection {} to {} connected", ctx.channel(), pool);
+                    handshakeFuture.trySuccess(null);
+                } catch (final Exception e) {
+                    handshakeFuture.tryFailure(e);
+                    ctx.close();
+                }
+                return;
+            }
+            if (msg instanceof BinaryWebSocketFrame) {
+                onEnvelope(((BinaryWebSocketFrame) msg).content());
+            } else if (msg instanceof PingWebSocketFrame) {
+                ctx.writeAndFlush(new PongWebSocketFrame(((PingWebSocketFrame) msg).content().retain()));
+            } else if (msg instanceof CloseWebSocketFrame) {
+                ctx.close();
+            }
+        }
+
+        private void onEnvelope(final ByteBuf envelope) {
+            if (!MuxCodec.isValid(envelope)) {
+                LOG.warn("truncated mux envelope on {}, ignored", channel);
+                return;
+            }
+            final MuxSession session = sessions.get(MuxCodec.sessionOf(envelope));
+            if (null == session) {
+                return;
+            }
+            switch (MuxCodec.typeOf(envelope)) {
+            case MuxCodec.DATA: {
+                final WebSocketFrame frame = MuxCodec.frameOf(envelope);
+                if (null == frame) {
+                    // only this session is broken, others on the connection go on
+                    LOG.warn("invalid DATA envelope for {} on {}, close it", session, channel);
+                    close(session, 1002, "invalid mux frame");
+                    session.onClose(1002, "invalid mux frame");
+                    break;
+                }
+                session.onFrame(frame);
+                touched.add(session);
+                break;
+            }
+            case MuxCodec.CLOSE:
+                sessions.remove(session.id());
+                session.onClose(MuxCodec.closeCodeOf(envelope), MuxCodec.closeReasonOf(envelope));
+                break;
+            default:
+                LOG.warn("unexpected mux envelope type {} on {}", MuxCodec.typeOf(envelope), channel);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+            // one flush per touched downstream for all frames demuxed in this read loop
+            for (final MuxSession session : touched) {
+                session.flushDownstream();
+            }
+            touched.clear();
+            ctx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+            // connection is shared, every downstream decides whether to pause or resume reading
+            for (final MuxSession session : sessions.values()) {
+                session.onWritabilityChanged();
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            LOG.info("mux connection {} to {} closed, {} session(s) lost", ctx.channel(), pool, sessions.size());
+            pool.remove(MuxConnection.this);
+            handshakeFuture.tryFailure(new IllegalStateException("mux connection closed"));
+            final List<MuxSession> lost = new ArrayList<>(sessions.values());
+            sessions.clear();
+            for (final MuxSession session : lost) {
+                session.onClose(1011, "upstream connection lost");
+            }
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            LOG.warn("exception on mux connection {}, detail: {}", ctx.channel(),
+                    ExceptionUtils.exception2detail(cause));
+            handshakeFuture.tryFailure(cause);
+            ctx.close();
+        }
+
+        private final WebSocketClientHandshaker handshaker;
+        private final Set<MuxSession> touched = Collections.newSetFromMap(new IdentityHashMap<MuxSession, Boolean>());
+    }
+
+    private final MuxPool pool;
+    private final EventLoop eventLoop;
+    private final Map<Long, MuxSession> sessions = new ConcurrentHashMap<>();
+    private final Promise<Void> handshakeFuture;
+    private Channel channel;
+}
\ No newline at end of file
@@ -0,0 +1,120 @@
+package org.jocean.wsproxy.mux;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+
+/**
+ * backend side demultiplexer, add it to a websocket server pipeline after handshake on the mux path,
+ * eg: behind WebSocketServerProtocolHandler. one instance per mux connection.
+ */
+public class MuxDemuxHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
+    private static final Logger LOG = LoggerFactory.getLogger(MuxDemuxHandler.class);
+
+    public MuxDemuxHandler(final MuxListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, final WebSocketFrame frame) throws Exception {
+        if (frame instanceof BinaryWebSocketFrame) {
+            onEnvelope(ctx, frame.content());
+        } else if (frame instanceof PingWebSocketFrame) {
+            ctx.writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
+        } else if (frame instanceof CloseWebSocketFrame) {
+            ctx.writeAndFlush(frame.retain());
+            ctx.close();
+        }
+    }
+
+    private void onEnvelope(final ChannelHandlerContext ctx, final ByteBuf envelope) {
+        if (!MuxCodec.isValid(envelope)) {
+            LOG.warn("truncated mux envelope on {}, ignored", ctx.channel());
+            return;
+        }
+        final long id = MuxCodec.sessionOf(envelope);
+        switch (MuxCodec.typeOf(envelope)) {
+        case MuxCodec.OPEN: {
+            if (streams.containsKey(id)) {
+                // keep the stream in use, refuse only the duplicate
+                LOG.warn("duplicate mux session id {} on {}, refused", id, ctx.channel());
+                ctx.write(MuxCodec.close(ctx.alloc(), id, 1002, "duplicate mux session id"));
+                break;
+            }
+            final MuxStream stream = new MuxStream(id, ctx.channel(), this);
+            streams.put(id, stream);
+            listener.onOpen(stream, MuxCodec.pathOf(envelope));
+            break;
+        }
+        case MuxCodec.DATA: {
+            final MuxStream stream = streams.get(id);
+            if (null != stream) {
+                final WebSocketFrame frame = MuxCodec.frameOf(envelope);
+                if (null == frame) {
+                    // only this stream is broken, others on the connection go on
+                    LOG.warn("invalid DATA envelope for {}, close it", stream);
+                    stream.close(1002, "invalid mux frame");
+                    listener.onClose(stream, 1002, "invalid mux frame");
+                    break;
+                }
+                try {
+                    listener.onFrame(stream, frame);
+                } finally {
+                    frame.release();
+                }
+            }
+            break;
+        }
+        case MuxCodec.CLOSE: {
+            final MuxStream stream = streams.remove(id);
+            if (null != stream) {
+                listener.onClose(stream, MuxCodec.closeCodeOf(envelope), MuxCodec.closeReasonOf(envelope));
+            }
+            break;
+        }
+        default:
+            LOG.warn("unknown mux envelope type {} on {}", MuxCodec.typeOf(envelope), ctx.channel());
+        }
+    }
+
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        final List<MuxStream> lost = new ArrayList<>(streams.values());
+        streams.clear();
+        for (final MuxStream stream : lost) {
+            listener.onClose(stream, 1006, "mux connection lost");
+        }
+        ctx.fireChannelInactive();
+    }
+
+    boolean remove(final long id) {
+        return null != streams.remove(id);
+    }
+
+    public int streamCount() {
+        return streams.size();
+    }
+
+    private final MuxListener listener;
+    // only touched on the connection's event loop
+    private final LongObjectMap<MuxStream> streams = new LongObjectHashMap<>();
+}
\ No newline at end of file
@@ -0,0 +1,21 @@
+package org.jocean.wsproxy.mux;
+
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * backend side callbacks of demultiplexed sessions, all invoked on the mux connection's event loop
+ */
+public interface MuxListener {
+
+    /**
+     * @param path path and query the client requested on the proxy
+     */
+    void onOpen(MuxStream stream, String path);
+
+    /**
+     * frame is released after return, retain it to keep
+     */
+    void onFrame(MuxStream stream, WebSocketFrame frame);
+
+    void onClose(MuxStream stream, int code, String reason);
+}
\ No newline at end of file
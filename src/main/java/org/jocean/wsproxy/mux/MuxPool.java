@@ -0,0 +1,133 @@
+package org.jocean.wsproxy.mux;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jocean.wsproxy.ChannelTuning;
+import org.jocean.wsproxy.Transport;
+import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.health.HealthPolicy;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+/**
+ * up to size mux connections to one WSNode. a new session prefers the connection living on its own event loop,
+ * so its frames don't cross threads, connections are created lazily on the loop of the session needing them.
+ * <p>
+ * a lost or failed connection leaves its slot empty, the next session opened reconnects it. every handshake
+ * outcome feeds node's health, so a failing node is ejected from balancing like with direct connections.
+ */
+public class MuxPool {
+
+    MuxPool(final WSNode node, final URI uri, final ChannelTuning tuning, final ReloadableSslContext tls,
+            final long connectTimeoutMillis, final int maxPendingBytes, final HealthPolicy healthPolicy) {
+        this.node = node;
+        this.uri = uri;
+        this.tuning = tuning;
+        this.tls = tls;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.maxPendingBytes = maxPendingBytes;
+        this.healthPolicy = healthPolicy;
+        this.connections = new MuxConnection[Math.max(1, node.muxConnections)];
+    }
+
+    /**
+     * @param path path and query of the downstream request, sent to backend in OPEN
+     */
+    public MuxSession open(final Channel downstream, final String path) {
+        final MuxConnection connection = select(downstream);
+        final MuxSession session = new MuxSession(ids.incrementAndGet(), connection, downstream,
+                maxPendingBytes);
+        connection.handshakeFuture().addListener(new GenericFutureListener<Future<Void>>() {
+            @Override
+            public void operationComplete(final Future<Void> future) throws Exception {
+                if (future.isSuccess()) {
+                    connection.open(session, path);
+                    session.markReady();
+                } else {
+                    session.markFailed(future.cause());
+                }
+            }});
+        return session;
+    }
+
+    public synchronized int sessionCount() {
+        int count = 0;
+        for (final MuxConnection connection : connections) {
+            if (null != connection) {
+                count += connection.sessionCount();
+            }
+        }
+        return count;
+    }
+
+    public synchronized void close() {
+        for (int i = 0; i < connections.length; i++) {
+            if (null != connections[i]) {
+                connections[i].close();
+                connections[i] = null;
+            }
+        }
+    }
+
+    synchronized void remove(final MuxConnection connection) {
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] == connection) {
+                connections[i] = null;
+            }
+        }
+    }
+
+    private synchronized MuxConnection select(final Channel downstream) {
+        final EventLoop eventLoop = downstream.eventLoop();
+        int empty = -1;
+        for (int i = 0; i < connections.length; i++) {
+            if (null == connections[i]) {
+                if (empty < 0) {
+                    empty = i;
+                }
+            } else if (connections[i].eventLoop() == eventLoop) {
+                return connections[i];
+            }
+        }
+        if (empty >= 0) {
+            final MuxConnection connection = new MuxConnection(this, eventLoop);
+            connections[empty] = connection;
+            connection.connect(uri, Transport.of(downstream), tuning, tls, connectTimeoutMillis)
+                .addListener(new GenericFutureListener<Future<Void>>() {
+                    @Override
+                    public void operationComplete(final Future<Void> future) throws Exception {
+                        if (future.isSuccess()) {
+                            healthPolicy.onSuccess(node);
+                        } else {
+                            healthPolicy.onFailure(node);
+                        }
+                    }});
+            return connection;
+        }
+        next = (next + 1) % connections.length;
+        return connections[next];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("MuxPool [uri=").append(uri).append(", size=").append(connections.length).append("]");
+        return builder.toString();
+    }
+
+    private final WSNode node;
+    private final URI uri;
+    private final ChannelTuning tuning;
+    private final ReloadableSslContext tls;
+    private final long connectTimeoutMillis;
+    private final int maxPendingBytes;
+    private final HealthPolicy healthPolicy;
+    private final MuxConnection[] connections;
+    private final AtomicLong ids = new AtomicLong();
+    private int next = 0;
+}
\ No newline at end of file
@@ -0,0 +1,58 @@
+package org.jocean.wsproxy.mux;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jocean.wsproxy.ChannelTuning;
+import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.health.HealthPolicy;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+
+/**
+ * one MuxPool per WSNode configured with mux connections
+ */
+public class MuxPools {
+
+    /**
+     * @param tls for WSNodes with tls on
+     * @param connectTimeoutMillis connect and handshake budget of a mux connection, 0 means no limit
+     * @param maxPendingBytes bytes relayed to a paused session's downstream before it's closed, 0 means no limit
+     * @param healthPolicy fed with every mux connection's handshake outcome
+     */
+    public MuxPools(final ChannelTuning tuning, final ReloadableSslContext tls, final long connectTimeoutMillis,
+            final int maxPendingBytes, final HealthPolicy healthPolicy) {
+        this.tuning = tuning;
+        this.tls = tls;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.maxPendingBytes = maxPendingBytes;
+        this.healthPolicy = healthPolicy;
+    }
+
+    public MuxPool poolOf(final WSNode node) {
+        MuxPool pool = pools.get(node);
+        if (null == pool) {
+            final MuxPool created = new MuxPool(node, URI.create(node.scheme() + "://" + node.ip + ":" + node.port
+                    + node.muxPath), tuning, tls, connectTimeoutMillis, maxPendingBytes, healthPolicy);
+            pool = pools.putIfAbsent(node, created);
+            if (null == pool) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    public void close() {
+        for (final MuxPool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+    }
+
+    private final ChannelTuning tuning;
+    private final ReloadableSslContext tls;
+    private final long connectTimeoutMillis;
+    private final int maxPendingBytes;
+    private final HealthPolicy healthPolicy;
+    private final ConcurrentMap<WSNode, MuxPool> pools = new ConcurrentHashMap<>();
+}
\ No newline at end of file
@@ -0,0 +1,137 @@
+package org.jocean.wsproxy.mux;
+
+import org.jocean.wsproxy.client.Upstream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * proxy side of one multiplexed session, frames are carried as DATA envelopes over a shared MuxConnection.
+ * <p>
+ * the connection can't stop reading for one slow downstream, so while the session is paused its frames are
+ * still written to downstream, up to maxPendingBytes, then the session is closed alone.
+ */
+public class MuxSession implements Upstream {
+    private static final Logger LOG = LoggerFactory.getLogger(MuxSession.class);
+
+    /**
+     * @param maxPendingBytes bytes relayed to downstream while paused, 0 means no limit
+     */
+    MuxSession(final long id, final MuxConnection connection, final Channel downstream,
+            final int maxPendingBytes) {
+        this.id = id;
+        this.connection = connection;
+        this.downstream = downstream;
+        this.maxPendingBytes = maxPendingBytes;
+        this.ready = downstream.eventLoop().newPromise();
+    }
+
+    public long id() {
+        return id;
+    }
+
+    /**
+     * @return future notified when OPEN sent to backend
+     */
+    public Future<Void> readyFuture() {
+        return ready;
+    }
+
+    @Override
+    public void write(final WebSocketFrame frame) {
+        connection.write(MuxCodec.data(downstream.alloc(), id, frame));
+    }
+
+    @Override
+    public void flush() {
+        connection.flush();
+    }
+
+    /**
+     * connection is shared by other sessions, pausing only starts counting frames against maxPendingBytes
+     */
+    @Override
+    public void setAutoRead(final boolean autoRead) {
+        paused = !autoRead;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return connection.isWritable();
+    }
+
+    @Override
+    public void stop() {
+        if (!closed) {
+            closed = true;
+            connection.close(this, 1000, "");
+        }
+    }
+
+    void markReady() {
+        ready.trySuccess(null);
+    }
+
+    void markFailed(final Throwable cause) {
+        ready.tryFailure(cause);
+    }
+
+    // invoked on connection's event loop
+
+    void onFrame(final WebSocketFrame frame) {
+        if (!paused) {
+            pausedBytes = 0;
+        } else if (maxPendingBytes > 0
+                && (pausedBytes += frame.content().readableBytes()) > maxPendingBytes) {
+            frame.release();
+            if (!closed) {
+                LOG.warn("{} paused with over {} bytes pending, close it", this, maxPendingBytes);
+                closed = true;
+                connection.close(this, 1008, "downstream too slow");
+                downstream.close();
+            }
+            return;
+        }
+        downstream.write(frame);
+    }
+
+    void flushDownstream() {
+        downstream.flush();
+    }
+
+    void onWritabilityChanged() {
+        downstream.pipeline().fireUserEventTriggered(WRITABILITY_CHANGED);
+    }
+
+    void onClose(final int code, final String reason) {
+        closed = true;
+        ready.tryFailure(new IllegalStateException("mux session closed by upstream: " + code + " " + reason));
+        if (downstream.isActive()) {
+            downstream.writeAndFlush(new CloseWebSocketFrame(code, reason)).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("MuxSession [id=").append(id).append(", downstream=").append(downstream).append("]");
+        return builder.toString();
+    }
+
+    private final long id;
+    private final MuxConnection connection;
+    private final Channel downstream;
+    private final int maxPendingBytes;
+    private final Promise<Void> ready;
+    private volatile boolean closed = false;
+    // set on downstream's event loop
+    private volatile boolean paused = false;
+    // only touched on connection's event loop
+    private long pausedBytes = 0;
+}
\ No newline at end of file
@@ -0,0 +1,70 @@
+package org.jocean.wsproxy.mux;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * backend side of one multiplexed session
+ */
+public class MuxStream {
+
+    MuxStream(final long id, final Channel channel, final MuxDemuxHandler demux) {
+        this.id = id;
+        this.channel = channel;
+        this.demux = demux;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    /**
+     * mux connection carrying this stream
+     */
+    public Channel channel() {
+        return channel;
+    }
+
+    /**
+     * send frame to the client of this stream, frame is released, flushed on read complete or flush()
+     */
+    public void write(final WebSocketFrame frame) {
+        try {
+            channel.write(MuxCodec.data(channel.alloc(), id, frame));
+        } finally {
+            frame.release();
+        }
+    }
+
+    public void flush() {
+        channel.flush();
+    }
+
+    /**
+     * close the client session of this stream, may be called from any thread
+     */
+    public void close(final int code, final String reason) {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    close(code, reason);
+                }});
+            return;
+        }
+        if (demux.remove(id)) {
+            channel.writeAndFlush(MuxCodec.close(channel.alloc(), id, code, reason));
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("MuxStream [id=").append(id).append(", channel=").append(channel).append("]");
+        return builder.toString();
+    }
+
+    private final long id;
+    private final Channel channel;
+    private final MuxDemuxHandler demux;
+}
\ No newline at end of file
@@ -0,0 +1,14 @@
+/**
+ * multiplexed upstream protocol: many downstream sessions share a few websocket connections to one WSNode.
+ * every envelope is a binary websocket frame:
+ * <pre>
+ * byte type (OPEN=1, CLOSE=2, DATA=3) | long session id | body
+ * OPEN  body: utf8 path and query of the downstream request
+ * CLOSE body: short status code | utf8 reason
+ * DATA  body: byte flags (0x80 FIN | opcode) | payload
+ * </pre>
+ * proxy side: {@link org.jocean.wsproxy.mux.MuxPools}, backend side: {@link org.jocean.wsproxy.mux.MuxDemuxHandler}.
+ * @author isdom
+ *
+ */
+package org.jocean.wsproxy.mux;
\ No newline at end of file
@@ -0,0 +1,109 @@
+package org.jocean.wsproxy.proxy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.RouteTable;
+import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.WSService;
+import org.jocean.wsproxy.limit.AdmissionControl;
+
+/**
+ * read only view of proxy metrics, as jmx attributes and as plain text for /metrics.
+ * values are read when asked for, nothing is computed on the relay path.
+ */
+public class MetricsView implements DynamicMBean {
+
+    public MetricsView(final ProxyMetrics metrics, final RouteTable routes, final AdmissionControl admission) {
+        this.metrics = metrics;
+        this.routes = routes;
+        this.admission = admission;
+    }
+
+    public Map<String, Long> snapshot() {
+        final Map<String, Long> values = new LinkedHashMap<>();
+        values.put("sessions.active", (long) admission.sessions());
+        for (final WSService service : routes.services()) {
+            for (final WSNode node : service.nodes()) {
+                values.put("sessions." + service.hostname() + "/" + service.service() + "/" + node.ip + ":" + node.port,
+                        (long) node.activeSessions());
+            }
+        }
+        metrics.collect(values);
+        return values;
+    }
+
+    /**
+     * @return one "name value" line per metric
+     */
+    public String render() {
+        final StringBuilder builder = new StringBuilder(4096);
+        for (final Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        final Long value = snapshot().get(attribute);
+        if (null == value) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final Map<String, Long> values = snapshot();
+        final AttributeList list = new AttributeList();
+        for (final String attribute : attributes) {
+            final Long value = values.get(attribute);
+            if (null != value) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        // nodes come and go, attributes follow current routes
+        final Map<String, Long> values = snapshot();
+        final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int idx = 0;
+        for (final String name : values.keySet()) {
+            attributes[idx++] = new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "websocket proxy metrics", attributes, null, null, null);
+    }
+
+    private final ProxyMetrics metrics;
+    private final RouteTable routes;
+    private final AdmissionControl admission;
+}
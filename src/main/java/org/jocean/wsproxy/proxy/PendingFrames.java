@@ -0,0 +1,72 @@
+package org.jocean.wsproxy.proxy;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.jocean.wsproxy.client.Upstream;
+
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * frames received from downstream before upstream is ready, bounded by frame count and payload bytes.
+ * not thread safe, only accessed from the downstream channel's event loop.
+ */
+class PendingFrames {
+
+    PendingFrames(final int maxFrames, final int maxBytes) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * retain and enqueue frame
+     * @return false if limits exceeded, frame is NOT retained in that case
+     */
+    boolean offer(final WebSocketFrame frame) {
+        final int size = frame.content().readableBytes();
+        if (frames.size() >= maxFrames || bytes + size > maxBytes) {
+            return false;
+        }
+        frames.add(frame.retain());
+        bytes += size;
+        return true;
+    }
+
+    /**
+     * write all pending frames to upstream in order, then flush once
+     */
+    void flushTo(final Upstream upstream) {
+        if (frames.isEmpty()) {
+            return;
+        }
+        WebSocketFrame frame;
+        while ((frame = frames.poll()) != null) {
+            upstream.write(frame);
+            // write() retain frame itself
+            frame.release();
+        }
+        bytes = 0;
+        upstream.flush();
+    }
+
+    void clear() {
+        WebSocketFrame frame;
+        while ((frame = frames.poll()) != null) {
+            frame.release();
+        }
+        bytes = 0;
+    }
+
+    int size() {
+        return frames.size();
+    }
+
+    int bytes() {
+        return bytes;
+    }
+
+    private final int maxFrames;
+    private final int maxBytes;
+    private final Queue<WebSocketFrame> frames = new ArrayDeque<>();
+    private int bytes = 0;
+}
\ No newline at end of file
@@ -0,0 +1,356 @@
+package org.jocean.wsproxy.proxy;
+
+import java.io.File;
+
+import javax.net.ssl.SSLException;
+
+import org.jocean.wsproxy.ChannelTuning;
+import org.jocean.wsproxy.FlushPolicy;
+import org.jocean.wsproxy.deflate.DeflateConfig;
+import org.jocean.wsproxy.health.HealthPolicy;
+import org.jocean.wsproxy.limit.AdmissionControl;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * tunables shared by all proxy sessions, defaults apply when not created by spring
+ */
+public class ProxySettings {
+
+    // auto, io_uring, epoll or nio
+    @Value("${wsproxy.transport:auto}")
+    public String transport = "auto";
+
+    // number of listening channels bound with SO_REUSEPORT, only effective on native transports
+    @Value("${wsproxy.acceptors:1}")
+    public int acceptors = 1;
+
+    // proxy event loop threads, 0 means netty's default
+    @Value("${wsproxy.workers:0}")
+    public int workers = 0;
+
+    @Value("${wsproxy.tcp.nodelay:true}")
+    public boolean tcpNoDelay = true;
+
+    @Value("${wsproxy.tcp.quickack:false}")
+    public boolean tcpQuickAck = false;
+
+    // 0 means os default
+    @Value("${wsproxy.so.sndbuf:0}")
+    public int sendBufferSize = 0;
+
+    @Value("${wsproxy.so.rcvbuf:0}")
+    public int receiveBufferSize = 0;
+
+    @Value("${wsproxy.pending.maxframes:64}")
+    public int pendingMaxFrames = 64;
+
+    @Value("${wsproxy.pending.maxbytes:1048576}")
+    public int pendingMaxBytes = 1024 * 1024;
+
+    // outbound buffer watermarks for both downstream and upstream channels,
+    // reading from the peer is paused while a channel is above high watermark
+    @Value("${wsproxy.watermark.low:32768}")
+    public int lowWaterMark = 32 * 1024;
+
+    @Value("${wsproxy.watermark.high:65536}")
+    public int highWaterMark = 64 * 1024;
+
+    // relayed frames are flushed once per read loop, or earlier when so many frames pending
+    @Value("${wsproxy.flush.maxframes:64}")
+    public int flushMaxFrames = 64;
+
+    // upper bound of flush delay for pending frames, 0 means only flush on read complete or maxframes
+    @Value("${wsproxy.flush.maxdelay:0}")
+    public long flushMaxDelayMillis = 0;
+
+    public ChannelTuning channelTuning() {
+        return new ChannelTuning(tcpNoDelay, tcpQuickAck, sendBufferSize, receiveBufferSize,
+                lowWaterMark, highWaterMark);
+    }
+
+    /**
+     * one policy shared by all sessions, so its flush count covers the whole proxy
+     */
+    public synchronized FlushPolicy flushPolicy() {
+        if (null == flushPolicy) {
+            flushPolicy = new FlushPolicy(flushMaxFrames, flushMaxDelayMillis);
+        }
+        return flushPolicy;
+    }
+
+    // relay frames at wire level after both handshakes, without decoding and re-encoding payloads
+    @Value("${wsproxy.relay.raw:false}")
+    public boolean rawRelay = false;
+
+    // relay large frames as fragments while their bytes arrive, instead of decoding whole frames
+    @Value("${wsproxy.relay.streaming:false}")
+    public boolean streamingRelay = false;
+
+    @Value("${wsproxy.fragment.maxsize:65536}")
+    public int maxFragmentSize = 64 * 1024;
+
+    // max payload of a whole frame when not streaming
+    @Value("${wsproxy.frame.maxpayload:5242880}")
+    public int maxFramePayload = 5 * 1024 * 1024;
+
+    // time budget of connecting upstream for a new session, including retries on other nodes
+    @Value("${wsproxy.upstream.budget:3000}")
+    public long upstreamBudgetMillis = 3000;
+
+    // upstream not closed by backend this long after close frame sent is closed without handshake
+    @Value("${wsproxy.upstream.closetimeout:3000}")
+    public long upstreamCloseTimeoutMillis = 3000;
+
+    // active tcp probe of every node, 0 disables
+    @Value("${wsproxy.health.interval:5000}")
+    public long healthIntervalMillis = 5000;
+
+    @Value("${wsproxy.health.timeout:1000}")
+    public int healthTimeoutMillis = 1000;
+
+    // consecutive connect/handshake/probe failures to eject a node
+    @Value("${wsproxy.health.failures:3}")
+    public int healthMaxFailures = 3;
+
+    @Value("${wsproxy.health.eject.base:5000}")
+    public long ejectionBaseMillis = 5000;
+
+    @Value("${wsproxy.health.eject.max:60000}")
+    public long ejectionMaxMillis = 60000;
+
+    // keep downstream open and reconnect another node of the service when upstream is lost,
+    // client frames are buffered meanwhile within pending limits, not available with raw relay
+    @Value("${wsproxy.reconnect:false}")
+    public boolean reconnect = false;
+
+    // negotiate permessage-deflate with clients, upstream always offers it unless raw relay
+    @Value("${wsproxy.deflate.downstream:false}")
+    public boolean deflateDownstream = false;
+
+    @Value("${wsproxy.deflate.level:6}")
+    public int deflateLevel = 6;
+
+    // messages whose first frame is smaller are sent uncompressed
+    @Value("${wsproxy.deflate.minsize:256}")
+    public int deflateMinSize = 256;
+
+    // compress each message on its own: compressors are pooled per message instead of held per session,
+    // and compressed messages pass between peers without inflate/deflate
+    @Value("${wsproxy.deflate.nocontext:true}")
+    public boolean deflateNoContext = true;
+
+    // pooled compressors and decompressors per event loop
+    @Value("${wsproxy.deflate.pool:64}")
+    public int deflatePoolSize = 64;
+
+    private volatile DeflateConfig _deflateConfig;
+
+    /**
+     * shared by all channels, holds the compressor pools
+     * @return null with raw relay, frames aren't decoded then
+     */
+    public DeflateConfig deflateConfig() {
+        if (rawRelay) {
+            return null;
+        }
+        DeflateConfig config = _deflateConfig;
+        if (null == config) {
+            synchronized (this) {
+                config = _deflateConfig;
+                if (null == config) {
+                    config = new DeflateConfig(deflateLevel, deflateMinSize, deflateNoContext, deflatePoolSize,
+                            maxFramePayload);
+                    _deflateConfig = config;
+                }
+            }
+        }
+        return config;
+    }
+
+    // concurrent sessions of the proxy, upgrade beyond it is answered 503, 0 means unlimited
+    @Value("${wsproxy.sessions.max:0}")
+    public int maxSessions = 0;
+
+    // client to backend limits in messages/sec and bytes/sec, reading from client is paused
+    // while over a limit, 0 disables
+    @Value("${wsproxy.limit.session.msgs:0}")
+    public long sessionMsgsPerSecond = 0;
+
+    @Value("${wsproxy.limit.session.bytes:0}")
+    public long sessionBytesPerSecond = 0;
+
+    // shared by sessions from the same source ip, enforced per event loop with the rate split evenly
+    @Value("${wsproxy.limit.ip.msgs:0}")
+    public long ipMsgsPerSecond = 0;
+
+    @Value("${wsproxy.limit.ip.bytes:0}")
+    public long ipBytesPerSecond = 0;
+
+    // shared by sessions of the same service, enforced per event loop with the rate split evenly
+    @Value("${wsproxy.limit.service.msgs:0}")
+    public long serviceMsgsPerSecond = 0;
+
+    @Value("${wsproxy.limit.service.bytes:0}")
+    public long serviceBytesPerSecond = 0;
+
+    // ping client or backend after not reading from it this long, 0 disables idle handling,
+    // pings of both peers are answered by proxy
+    @Value("${wsproxy.idle.ping:30000}")
+    public long idlePingMillis = 30000;
+
+    // close client or backend leg after not reading from it this long
+    @Value("${wsproxy.idle.timeout:90000}")
+    public long idleTimeoutMillis = 90000;
+
+    // status code of close frame sent to idle client
+    @Value("${wsproxy.idle.closecode:1001}")
+    public int idleCloseCode = 1001;
+
+    // on stop, sessions are sent 1001 going away in batches spread over this window,
+    // so clients don't all reconnect at once
+    @Value("${wsproxy.drain.window:30000}")
+    public long drainWindowMillis = 30000;
+
+    @Value("${wsproxy.drain.interval:1000}")
+    public long drainIntervalMillis = 1000;
+
+    // sessions still open this long after the window are closed without handshake
+    @Value("${wsproxy.drain.timeout:10000}")
+    public long drainTimeoutMillis = 10000;
+
+    // trace sessions with the Tracer bean, or with jaeger configured by JAEGER_* environment if none
+    @Value("${wsproxy.tracing:false}")
+    public boolean tracing = false;
+
+    // in sampled sessions, trace every n-th message of each side, 0 disables message spans
+    @Value("${wsproxy.tracing.messages:0}")
+    public int traceMessageEvery = 0;
+
+    // pem certificate chain and pkcs8 key, downstream accepts wss:// instead of ws:// when set
+    @Value("${wsproxy.tls.cert:}")
+    public String tlsCert = "";
+
+    @Value("${wsproxy.tls.key:}")
+    public String tlsKey = "";
+
+    // empty if key not encrypted
+    @Value("${wsproxy.tls.key.password:}")
+    public String tlsKeyPassword = "";
+
+    // auto, openssl or jdk: auto and openssl use netty-tcnative when available
+    @Value("${wsproxy.tls.provider:auto}")
+    public String tlsProvider = "auto";
+
+    // sessions cached for resumption, both legs
+    @Value("${wsproxy.tls.session.cache:20480}")
+    public long tlsSessionCacheSize = 20480;
+
+    @Value("${wsproxy.tls.session.timeout:300}")
+    public long tlsSessionTimeoutSeconds = 300;
+
+    // comma separated ALPN protocols, empty disables ALPN
+    @Value("${wsproxy.tls.alpn:http/1.1}")
+    public String tlsAlpn = "http/1.1";
+
+    // check tls files for change this often, new sessions use reloaded certificate, 0 disables
+    @Value("${wsproxy.tls.reload:10000}")
+    public long tlsReloadMillis = 10000;
+
+    // pem CA certificates to verify WSNodes with tls on, empty means jdk default trust store
+    @Value("${wsproxy.tls.upstream.trust:}")
+    public String tlsUpstreamTrust = "";
+
+    // index sessions by client for targeted operations: "query:{name}", "header:{name}" or "ip", empty disables
+    @Value("${wsproxy.session.clientkey:}")
+    public String sessionClientKey = "";
+
+    public AdmissionControl admissionControl(final int loops) {
+        return new AdmissionControl(loops, maxSessions, sessionMsgsPerSecond, sessionBytesPerSecond,
+                ipMsgsPerSecond, ipBytesPerSecond, serviceMsgsPerSecond, serviceBytesPerSecond);
+    }
+
+    /**
+     * @return null if downstream tls not configured
+     */
+    public ReloadableSslContext downstreamTls() throws SSLException {
+        return tlsCert.isEmpty() ? null : ReloadableSslContext.forServer(new File(tlsCert), new File(tlsKey),
+                tlsKeyPassword.isEmpty() ? null : tlsKeyPassword, tlsProvider, tlsSessionCacheSize,
+                tlsSessionTimeoutSeconds, tlsAlpn);
+    }
+
+    /**
+     * for WSNodes with tls on
+     */
+    public ReloadableSslContext upstreamTls() throws SSLException {
+        return ReloadableSslContext.forClient(tlsUpstreamTrust.isEmpty() ? null : new File(tlsUpstreamTrust),
+                tlsProvider, tlsSessionCacheSize, tlsSessionTimeoutSeconds, tlsAlpn);
+    }
+
+    public HealthPolicy healthPolicy() {
+        return new HealthPolicy(healthMaxFailures, ejectionBaseMillis, ejectionMaxMillis);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ProxySettings [transport=").append(transport)
+                .append(", acceptors=").append(acceptors)
+                .append(", workers=").append(workers)
+                .append(", tcpNoDelay=").append(tcpNoDelay)
+                .append(", tcpQuickAck=").append(tcpQuickAck)
+                .append(", sendBufferSize=").append(sendBufferSize)
+                .append(", receiveBufferSize=").append(receiveBufferSize)
+                .append(", pendingMaxFrames=").append(pendingMaxFrames)
+                .append(", pendingMaxBytes=").append(pendingMaxBytes)
+                .append(", lowWaterMark=").append(lowWaterMark)
+                .append(", highWaterMark=").append(highWaterMark)
+                .append(", flushMaxFrames=").append(flushMaxFrames)
+                .append(", flushMaxDelayMillis=").append(flushMaxDelayMillis)
+                .append(", rawRelay=").append(rawRelay)
+                .append(", streamingRelay=").append(streamingRelay)
+                .append(", maxFragmentSize=").append(maxFragmentSize)
+                .append(", maxFramePayload=").append(maxFramePayload)
+                .append(", upstreamBudgetMillis=").append(upstreamBudgetMillis)
+                .append(", upstreamCloseTimeoutMillis=").append(upstreamCloseTimeoutMillis)
+                .append(", reconnect=").append(reconnect)
+                .append(", deflateDownstream=").append(deflateDownstream)
+                .append(", deflateLevel=").append(deflateLevel)
+                .append(", deflateMinSize=").append(deflateMinSize)
+                .append(", deflateNoContext=").append(deflateNoContext)
+                .append(", deflatePoolSize=").append(deflatePoolSize)
+                .append(", healthIntervalMillis=").append(healthIntervalMillis)
+                .append(", healthTimeoutMillis=").append(healthTimeoutMillis)
+                .append(", healthMaxFailures=").append(healthMaxFailures)
+                .append(", ejectionBaseMillis=").append(ejectionBaseMillis)
+                .append(", ejectionMaxMillis=").append(ejectionMaxMillis)
+                .append(", maxSessions=").append(maxSessions)
+                .append(", sessionMsgsPerSecond=").append(sessionMsgsPerSecond)
+                .append(", sessionBytesPerSecond=").append(sessionBytesPerSecond)
+                .append(", ipMsgsPerSecond=").append(ipMsgsPerSecond)
+                .append(", ipBytesPerSecond=").append(ipBytesPerSecond)
+                .append(", serviceMsgsPerSecond=").append(serviceMsgsPerSecond)
+                .append(", serviceBytesPerSecond=").append(serviceBytesPerSecond)
+                .append(", idlePingMillis=").append(idlePingMillis)
+                .append(", idleTimeoutMillis=").append(idleTimeoutMillis)
+                .append(", idleCloseCode=").append(idleCloseCode)
+                .append(", drainWindowMillis=").append(drainWindowMillis)
+                .append(", drainIntervalMillis=").append(drainIntervalMillis)
+                .append(", drainTimeoutMillis=").append(drainTimeoutMillis)
+                .append(", tracing=").append(tracing)
+                .append(", traceMessageEvery=").append(traceMessageEvery)
+                .append(", tlsCert=").append(tlsCert)
+                .append(", tlsKey=").append(tlsKey)
+                .append(", tlsProvider=").append(tlsProvider)
+                .append(", tlsSessionCacheSize=").append(tlsSessionCacheSize)
+                .append(", tlsSessionTimeoutSeconds=").append(tlsSessionTimeoutSeconds)
+                .append(", tlsAlpn=").append(tlsAlpn)
+                .append(", tlsReloadMillis=").append(tlsReloadMillis)
+                .append(", tlsUpstreamTrust=").append(tlsUpstreamTrust)
+                .append(", sessionClientKey=").append(sessionClientKey).append("]");
+        return builder.toString();
+    }
+
+    // built on first use, once settings are injected
+    private FlushPolicy flushPolicy;
+}
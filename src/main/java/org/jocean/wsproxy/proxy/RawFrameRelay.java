@@ -0,0 +1,209 @@
+package org.jocean.wsproxy.proxy;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.jocean.wsproxy.FlushPolicy;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameDecoder;
+
+/**
+ * relay websocket frames at wire level after handshake: received buffers are written to peer as is,
+ * payloads are never unmasked, aggregated or copied. only frame headers are parsed to track close frames.
+ * <p>
+ * client to server frames keep the browser's masking key, which is still a fresh random key per frame
+ * as RFC 6455 requires, so the server unmasks them just like frames sent by the browser directly.
+ * server to client frames are unmasked on both legs.
+ * <p>
+ * requires neither leg negotiated extensions, since RSV bits and payloads pass through untouched.
+ * not thread safe, must be used from the channel's event loop.
+ */
+public class RawFrameRelay extends ChannelInboundHandlerAdapter {
+    private static final Logger LOG = LoggerFactory.getLogger(RawFrameRelay.class);
+
+    private static final int OPCODE_CLOSE = 0x8;
+
+    /**
+     * @param maxPendingBytes max bytes kept while peer not attached
+     * @param closePeerOnClose close peer channel after close frame or channel closed, true on upstream side
+     */
+    public RawFrameRelay(final FlushPolicy flushPolicy, final int maxPendingBytes, final boolean closePeerOnClose,
+            final ProxyMetrics metrics) {
+        this.flushPolicy = flushPolicy;
+        this.maxPendingBytes = maxPendingBytes;
+        this.closePeerOnClose = closePeerOnClose;
+        this.metrics = metrics;
+    }
+
+    /**
+     * replace websocket frame decoder in pipeline with relay, must be called right after handshake
+     * and before any frame received, so decoder holds no partial frame.
+     */
+    public RawFrameRelay installOn(final ChannelPipeline pipeline) {
+        pipeline.replace(WebSocketFrameDecoder.class, "raw-relay", this);
+        return this;
+    }
+
+    /**
+     * start relay to peer, buffers received before are written and flushed at once
+     */
+    public void attach(final Channel peer) {
+        this.peer = peer;
+        this.flusher = flushPolicy.newFlusher(peer);
+        ByteBuf buf;
+        while ((buf = pending.poll()) != null) {
+            flusher.write(buf);
+        }
+        pendingBytes = 0;
+        flusher.flush();
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        final ByteBuf buf = (ByteBuf) msg;
+        final int bytes = buf.readableBytes();
+        scanned = 0;
+        final boolean closeFrame = scan(buf);
+        if (closePeerOnClose) {
+            metrics.onBackendFrames(scanned, bytes);
+        } else {
+            metrics.onClientFrames(scanned, bytes);
+        }
+        if (null != flusher) {
+            flusher.write(buf);
+        } else {
+            pendingBytes += buf.readableBytes();
+            pending.add(buf);
+            if (pendingBytes > maxPendingBytes) {
+                LOG.warn("raw relay pending bytes {} exceed limit {}, close {}", pendingBytes, maxPendingBytes,
+                        ctx.channel());
+                releasePending();
+                ctx.close();
+                return;
+            }
+        }
+        if (closeFrame && closePeerOnClose) {
+            closePeer();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+        if (null != flusher) {
+            flusher.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        releasePending();
+        if (closePeerOnClose) {
+            closePeer();
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+        releasePending();
+    }
+
+    private void closePeer() {
+        if (null != peer && peer.isActive()) {
+            flusher.flush();
+            // close after all relayed bytes written
+            peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private void releasePending() {
+        ByteBuf buf;
+        while ((buf = pending.poll()) != null) {
+            buf.release();
+        }
+        pendingBytes = 0;
+    }
+
+    /**
+     * walk frame headers in buf without moving its reader index
+     * @return true if a close frame header found
+     */
+    private boolean scan(final ByteBuf buf) {
+        boolean closeFrame = false;
+        int idx = buf.readerIndex();
+        final int end = buf.writerIndex();
+        while (idx < end) {
+            if (remaining > 0) {
+                final int skip = (int) Math.min(remaining, end - idx);
+                idx += skip;
+                remaining -= skip;
+                continue;
+            }
+            header[headerLen++] = buf.getByte(idx++);
+            if (headerLen == headerSize()) {
+                if ((header[0] & 0x0f) == OPCODE_CLOSE) {
+                    closeFrame = true;
+                }
+                remaining = payloadLength();
+                headerLen = 0;
+                scanned++;
+            }
+        }
+        return closeFrame;
+    }
+
+    private int headerSize() {
+        if (headerLen < 2) {
+            return 2;
+        }
+        final int len7 = header[1] & 0x7f;
+        final int extended = len7 == 126 ? 2 : len7 == 127 ? 8 : 0;
+        final int mask = (header[1] & 0x80) != 0 ? 4 : 0;
+        return 2 + extended + mask;
+    }
+
+    private long payloadLength() {
+        final int len7 = header[1] & 0x7f;
+        if (len7 < 126) {
+            return len7;
+        }
+        final int bytes = len7 == 126 ? 2 : 8;
+        long len = 0;
+        for (int i = 0; i < bytes; i++) {
+            len = (len << 8) | (header[2 + i] & 0xff);
+        }
+        return len;
+    }
+
+    private final FlushPolicy flushPolicy;
+    private final int maxPendingBytes;
+    private final boolean closePeerOnClose;
+    private final ProxyMetrics metrics;
+
+    private Channel peer;
+    private FlushPolicy.Flusher flusher;
+    private final Queue<ByteBuf> pending = new ArrayDeque<>();
+    private int pendingBytes = 0;
+    // frame headers completed in current buffer
+    private int scanned = 0;
+
+    // frame header parse state
+    private final byte[] header = new byte[14];
+    private int headerLen = 0;
+    private long remaining = 0;
+}
\ No newline at end of file
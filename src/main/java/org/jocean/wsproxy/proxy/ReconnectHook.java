@@ -0,0 +1,23 @@
+package org.jocean.wsproxy.proxy;
+
+import java.util.List;
+
+import org.jocean.wsproxy.WSNode;
+
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * optional bean, lets backend re-establish session state after the proxy reconnected a session to another node.
+ */
+public interface ReconnectHook {
+
+    /**
+     * called on downstream's event loop when the replacement upstream is ready,
+     * before frames buffered during reconnect are relayed to it.
+     * @param wsuri uri requested by client
+     * @param lost node the session was connected to
+     * @param replacement node the session is connected to now
+     * @return frames sent to replacement first, eg: resume token or replayed subscriptions, empty for none
+     */
+    List<WebSocketFrame> onReconnected(String wsuri, WSNode lost, WSNode replacement);
+}
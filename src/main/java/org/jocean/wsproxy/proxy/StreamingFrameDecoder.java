@@ -0,0 +1,230 @@
+package org.jocean.wsproxy.proxy;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameDecoder;
+
+/**
+ * websocket frame decoder which never waits for a whole data frame: payload is emitted as a sequence of
+ * fragments (at most maxFragmentSize bytes each) as soon as bytes arrive, so time to first byte and heap per
+ * session don't depend on message size. control frames are emitted whole.
+ * <p>
+ * masked payloads are unmasked in place on a retained slice of the received buffer, no copy is made,
+ * eight bytes at a time as WebSocket08FrameDecoder does.
+ */
+public class StreamingFrameDecoder extends ByteToMessageDecoder implements WebSocketFrameDecoder {
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingFrameDecoder.class);
+
+    private static final int OPCODE_CONT = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    // don't emit fragments smaller than this unless it completes the frame
+    private static final int MIN_FRAGMENT_SIZE = 1024;
+
+    /**
+     * @param expectMasked true for frames from clients, false for frames from servers
+     */
+    public StreamingFrameDecoder(final boolean expectMasked, final int maxFragmentSize) {
+        this.expectMasked = expectMasked;
+        this.maxFragmentSize = maxFragmentSize;
+    }
+
+    /**
+     * replace websocket frame decoder in pipeline, must be called right after handshake
+     * and before any frame received, so the replaced decoder holds no partial frame.
+     */
+    public StreamingFrameDecoder installOn(final ChannelPipeline pipeline) {
+        pipeline.replace(WebSocketFrameDecoder.class, "ws-streaming-decoder", this);
+        return this;
+    }
+
+    @Override
+    protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
+        if (failed) {
+            in.skipBytes(in.readableBytes());
+            return;
+        }
+        for (;;) {
+            if (remaining < 0) {
+                if (!readHeader(ctx, in, out)) {
+                    return;
+                }
+            } else {
+                final int available = (int) Math.min(in.readableBytes(), Math.min(remaining, maxFragmentSize));
+                if (available < remaining && available < Math.min(maxFragmentSize, MIN_FRAGMENT_SIZE)) {
+                    return;
+                }
+                out.add(nextFragment(in, available));
+                if (remaining == 0) {
+                    remaining = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if more bytes needed
+     */
+    private boolean readHeader(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) {
+        if (in.readableBytes() < 2) {
+            return false;
+        }
+        final int idx = in.readerIndex();
+        final int b0 = in.getUnsignedByte(idx);
+        final int b1 = in.getUnsignedByte(idx + 1);
+        final boolean masked = (b1 & 0x80) != 0;
+        final int len7 = b1 & 0x7f;
+        final int headerSize = 2 + (len7 == 126 ? 2 : len7 == 127 ? 8 : 0) + (masked ? 4 : 0);
+        if (in.readableBytes() < headerSize) {
+            return false;
+        }
+        final long length = len7 == 126 ? in.getUnsignedShort(idx + 2) : len7 == 127 ? in.getLong(idx + 2) : len7;
+        final boolean fin = (b0 & 0x80) != 0;
+        final int rsv = (b0 & 0x70) >> 4;
+        final int opcode = b0 & 0x0f;
+
+        if (masked != expectMasked) {
+            return protocolViolation(ctx, in, "unexpected mask flag");
+        }
+        if (length < 0) {
+            return protocolViolation(ctx, in, "invalid payload length");
+        }
+        if (opcode >= OPCODE_CLOSE) {
+            if (!fin) {
+                return protocolViolation(ctx, in, "fragmented control frame");
+            }
+            if (rsv != 0) {
+                return protocolViolation(ctx, in, "control frame with rsv " + rsv);
+            }
+            if (length > 125) {
+                return protocolViolation(ctx, in, "control frame payload too large");
+            }
+            // control frames are tiny, wait for the whole frame
+            if (in.readableBytes() < headerSize + length) {
+                return false;
+            }
+        } else if (opcode > OPCODE_BINARY) {
+            return protocolViolation(ctx, in, "unknown opcode " + opcode);
+        }
+
+        in.skipBytes(headerSize - (masked ? 4 : 0));
+        maskKey = masked ? in.readInt() : 0;
+        maskOffset = 0;
+
+        if (opcode >= OPCODE_CLOSE) {
+            final ByteBuf payload = unmask(in.readRetainedSlice((int) length));
+            switch (opcode) {
+            case OPCODE_PING:
+                out.add(new PingWebSocketFrame(true, rsv, payload));
+                break;
+            case OPCODE_PONG:
+                out.add(new PongWebSocketFrame(true, rsv, payload));
+                break;
+            case OPCODE_CLOSE:
+                out.add(new CloseWebSocketFrame(true, rsv, payload));
+                break;
+            default:
+                payload.release();
+                return protocolViolation(ctx, in, "unknown opcode " + opcode);
+            }
+            return true;
+        }
+
+        frameOpcode = opcode;
+        frameFin = fin;
+        frameRsv = rsv;
+        remaining = length;
+        if (0 == length) {
+            out.add(newFrame(frameOpcode, fin, rsv, in.alloc().buffer(0)));
+            remaining = -1;
+        }
+        return true;
+    }
+
+    private WebSocketFrame nextFragment(final ByteBuf in, final int size) {
+        final ByteBuf payload = unmask(in.readRetainedSlice(size));
+        remaining -= size;
+        final WebSocketFrame frame = newFrame(frameOpcode, remaining == 0 && frameFin, frameRsv, payload);
+        // following fragments of the same frame continue the message
+        frameOpcode = OPCODE_CONT;
+        frameRsv = 0;
+        return frame;
+    }
+
+    private ByteBuf unmask(final ByteBuf payload) {
+        if (0 == maskKey) {
+            return payload;
+        }
+        // mask rotated so its first byte applies to the first byte of this fragment
+        final int intMask = Integer.rotateLeft(maskKey, (maskOffset & 3) << 3);
+        final long longMask = (intMask & 0xFFFFFFFFL) << 32 | (intMask & 0xFFFFFFFFL);
+        int i = payload.readerIndex();
+        final int end = payload.writerIndex();
+        maskOffset += end - i;
+        for (final int lim = end - 7; i < lim; i += 8) {
+            payload.setLong(i, payload.getLong(i) ^ longMask);
+        }
+        if (i < end - 3) {
+            payload.setInt(i, payload.getInt(i) ^ intMask);
+            i += 4;
+        }
+        for (int shift = 24; i < end; i++, shift -= 8) {
+            payload.setByte(i, payload.getByte(i) ^ (intMask >>> shift));
+        }
+        return payload;
+    }
+
+    private static WebSocketFrame newFrame(final int opcode, final boolean fin, final int rsv, final ByteBuf payload) {
+        switch (opcode) {
+        case OPCODE_TEXT:
+            return new TextWebSocketFrame(fin, rsv, payload);
+        case OPCODE_BINARY:
+            return new BinaryWebSocketFrame(fin, rsv, payload);
+        default:
+            return new ContinuationWebSocketFrame(fin, rsv, payload);
+        }
+    }
+
+    private boolean protocolViolation(final ChannelHandlerContext ctx, final ByteBuf in, final String reason) {
+        LOG.warn("websocket protocol violation on {}: {}", ctx.channel(), reason);
+        failed = true;
+        in.skipBytes(in.readableBytes());
+        if (ctx.channel().isActive()) {
+            // from the tail, the encoder may sit after this decoder, eg: on upstream leg
+            ctx.channel().writeAndFlush(new CloseWebSocketFrame(1002, reason))
+                .addListener(ChannelFutureListener.CLOSE);
+        }
+        return false;
+    }
+
+    private final boolean expectMasked;
+    private final int maxFragmentSize;
+
+    // payload bytes left in current data frame, -1 while reading frame header
+    private long remaining = -1;
+    private int frameOpcode;
+    private boolean frameFin;
+    private int frameRsv;
+    private int maskKey;
+    private int maskOffset;
+    private boolean failed = false;
+}
\ No newline at end of file
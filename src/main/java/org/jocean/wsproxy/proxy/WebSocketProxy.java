@@ -15,18 +15,53 @@
  */
 package org.jocean.wsproxy.proxy;
 
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
 import javax.inject.Inject;
+import javax.management.ObjectName;
 
-import org.jocean.idiom.BeanHolder;
+import org.jocean.idiom.ExceptionUtils;
+import org.jocean.wsproxy.IdlePolicy;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.RouteTable;
+import org.jocean.wsproxy.Transport;
+import org.jocean.wsproxy.client.WarmPools;
+import org.jocean.wsproxy.fanout.FanoutHubs;
+import org.jocean.wsproxy.health.HealthChecker;
+import org.jocean.wsproxy.limit.AdmissionControl;
+import org.jocean.wsproxy.mux.MuxPools;
+import org.jocean.wsproxy.session.Session;
+import org.jocean.wsproxy.session.SessionRegistry;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+import org.jocean.wsproxy.trace.Tracing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
+import io.jaegertracing.Configuration;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.opentracing.Tracer;
 
 /**
  * An HTTP server which serves Web Socket requests at:
@@ -48,47 +83,265 @@ import io.netty.handler.logging.LoggingHandler;
  * </ul>
  */
 public final class WebSocketProxy {
-
-//    static final boolean SSL = System.getProperty("ssl") != null;
+    private static final Logger LOG = LoggerFactory.getLogger(WebSocketProxy.class);
 
     @Value("${wsproxy.port:8080}")
     int proxyPort;
 
     @Inject
-    private BeanHolder _holder;
+    private RouteTable _routes;
+
+    @Inject
+    private ProxySettings _settings;
+
+    @Autowired(required = false)
+    private ReconnectHook _reconnectHook;
+
+    // eg: jaeger tracer with in memory reporter, used when wsproxy.tracing is on
+    @Autowired(required = false)
+    private Tracer _tracer;
+
+    final ProxyMetrics metrics = new ProxyMetrics();
 
     EventLoopGroup bossGroup;
     EventLoopGroup proxyGroup;
-    Channel binded;
+    MuxPools muxPools;
+    HealthChecker healthChecker;
+    WarmPools warmPools;
+    FanoutHubs fanoutHubs;
+    AdmissionControl admission;
+    IdlePolicy idlePolicy;
+    MetricsView metricsView;
+    ObjectName metricsName;
+    Tracing tracing;
+    // downstream wss://, null for ws://
+    ReloadableSslContext downstreamTls;
+    ReloadableSslContext upstreamTls;
+    // checks certificate files off the event loops, file stats and rebuilds may block
+    ScheduledExecutorService tlsReload;
+    SessionRegistry sessions;
+    // created here from environment, closed on stop
+    Tracer ownedTracer;
+    final List<Channel> binded = new ArrayList<>();
+    // accepted channels, drained on stop
+    final ChannelGroup accepted = new DefaultChannelGroup("wsproxy-accepted", GlobalEventExecutor.INSTANCE);
+
+    public WebSocketProxy() {
+    }
+
+    /**
+     * embedded without spring, eg: load harness
+     */
+    public WebSocketProxy(final RouteTable routes, final ProxySettings settings, final int port) {
+        this._routes = routes;
+        this._settings = settings;
+        this.proxyPort = port;
+    }
 
     public void start() throws Exception {
-        // Configure SSL.
-//        final SslContext sslCtx;
-//        if (SSL) {
-//            final SelfSignedCertificate ssc = new SelfSignedCertificate();
-//            sslCtx = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey()).build();
-//        } else {
-//            sslCtx = null;
-//        }
-
-        bossGroup = new NioEventLoopGroup(1);
-        proxyGroup = new NioEventLoopGroup();
+        final Transport transport = Transport.select(_settings.transport);
+        final ChannelOption<Boolean> reusePort = transport.nativeOption("SO_REUSEPORT");
+        // with SO_REUSEPORT, kernel spreads incoming connections across several listening channels
+        final int acceptors = null != reusePort ? Math.max(1, _settings.acceptors) : 1;
+        LOG.info("start proxy on port {} with transport {} and {} acceptor(s)", proxyPort, transport, acceptors);
+
+        bossGroup = transport.newEventLoopGroup(acceptors);
+        proxyGroup = transport.newEventLoopGroup(_settings.workers);
+
+        if (_settings.idlePingMillis > 0) {
+            // one wheel for idle checks of all channels, precision of 100ms is plenty for timeouts in seconds
+            idlePolicy = new IdlePolicy(new HashedWheelTimer(new DefaultThreadFactory("wsproxy-idle"),
+                    100, TimeUnit.MILLISECONDS), _settings.idlePingMillis, _settings.idleTimeoutMillis,
+                    _settings.idleCloseCode);
+        }
+        downstreamTls = _settings.downstreamTls();
+        upstreamTls = _settings.upstreamTls();
+        if (_settings.tlsReloadMillis > 0) {
+            // a few stats per check, rebuilt only when files changed
+            tlsReload = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("wsproxy-tls"));
+            tlsReload.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    if (null != downstreamTls) {
+                        downstreamTls.reloadIfChanged();
+                    }
+                    upstreamTls.reloadIfChanged();
+                }}, _settings.tlsReloadMillis, _settings.tlsReloadMillis, TimeUnit.MILLISECONDS);
+        }
+        muxPools = new MuxPools(_settings.channelTuning(), upstreamTls, _settings.upstreamBudgetMillis,
+                _settings.pendingMaxBytes, _settings.healthPolicy());
+        fanoutHubs = new FanoutHubs(_settings.channelTuning(), metrics, upstreamTls,
+                _settings.upstreamBudgetMillis);
+        admission = _settings.admissionControl(loopsOf(proxyGroup));
+        sessions = new SessionRegistry(proxyGroup, _settings.sessionClientKey);
+        metricsView = new MetricsView(metrics, _routes, admission);
+        if (_settings.tracing) {
+            if (null == _tracer) {
+                ownedTracer = Configuration.fromEnv("wsproxy").getTracer();
+            }
+            tracing = new Tracing(null != _tracer ? _tracer : ownedTracer, _settings.traceMessageEvery);
+        }
+        // platform MBeanServer, seen by jdmk's adaptor and any jmx client
+        metricsName = new ObjectName("org.jocean.wsproxy:type=metrics,port=" + proxyPort);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metricsView, metricsName);
+        healthChecker = new HealthChecker(_routes, _settings.healthPolicy(), transport, proxyGroup,
+                _settings.healthIntervalMillis, _settings.healthTimeoutMillis);
+        healthChecker.start();
+        if (!_settings.rawRelay) {
+            // raw relay attaches upstream to its peer at handshake, can't be prestarted
+            warmPools = new WarmPools(_routes, proxyGroup, transport, WebSocketProxyHandler.WEBSOCKET_PATH,
+                    _settings.channelTuning(), _settings.flushPolicy(), metrics, upstreamDecoderFactory(),
+                    _settings.deflateConfig(), _settings.reconnect, _settings.upstreamBudgetMillis, idlePolicy,
+                    upstreamTls, _settings.upstreamCloseTimeoutMillis);
+            warmPools.start();
+        }
 
         final ServerBootstrap b = new ServerBootstrap();
         b.group(bossGroup, proxyGroup)
-         .channel(NioServerSocketChannel.class)
+         .channel(transport.serverChannelClass())
          .handler(new LoggingHandler(LogLevel.INFO))
-         .childHandler(new WebSocketProxyInitializer(/*sslCtx*/null, _holder));
+         .childHandler(new WebSocketProxyInitializer(downstreamTls, _routes, _settings, metrics, muxPools,
+                 _reconnectHook, warmPools, fanoutHubs, admission, idlePolicy, accepted, metricsView,
+                 tracing, upstreamTls, sessions));
+        if (acceptors > 1) {
+            b.option(reusePort, true);
+        }
+        _settings.channelTuning().applyChild(b, transport);
 
-        binded = b.bind(proxyPort).sync().channel();
+        for (int i = 0; i < acceptors; i++) {
+            binded.add(b.bind(proxyPort).sync().channel());
+        }
     }
 
+    /**
+     * upgraded sessions by id, service and client key, eg: for push or admin operations
+     */
+    public SessionRegistry sessions() {
+        return sessions;
+    }
+
+    /**
+     * send 1001 going away to every session of service, eg: before taking its nodes down
+     * @param service as {hostname}/{service}
+     * @return future of sessions told
+     */
+    public Future<Integer> drainService(final String service) {
+        return sessions.visitService(service, new SessionRegistry.Visitor() {
+            @Override
+            public void visit(final Session session) {
+                session.channel().pipeline().fireUserEventTriggered(WebSocketProxyHandler.GOING_AWAY);
+            }});
+    }
+
+    private static int loopsOf(final EventLoopGroup group) {
+        int loops = 0;
+        for (@SuppressWarnings("unused") final EventExecutor executor : group) {
+            loops++;
+        }
+        return Math.max(1, loops);
+    }
+
+    private Supplier<ChannelHandler> upstreamDecoderFactory() {
+        if (!_settings.streamingRelay) {
+            return null;
+        }
+        return new Supplier<ChannelHandler>() {
+            @Override
+            public ChannelHandler get() {
+                return new StreamingFrameDecoder(false, _settings.maxFragmentSize);
+            }};
+    }
+
+    public ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * stop accepting, drain sessions within drain window and timeout, then release everything,
+     * blocks until event loops terminated
+     */
     public void stop() {
         try {
-            binded.close().sync();
+            for (final Channel channel : binded) {
+                channel.close().sync();
+            }
+            if (null != warmPools) {
+                warmPools.stop();
+            }
+            if (null != healthChecker) {
+                healthChecker.stop();
+            }
+            drain();
         } catch (final InterruptedException e) {
-            bossGroup.shutdownGracefully();
-            proxyGroup.shutdownGracefully();
+            Thread.currentThread().interrupt();
+            accepted.close();
+        } finally {
+            if (null != tlsReload) {
+                tlsReload.shutdownNow();
+            }
+            if (null != muxPools) {
+                muxPools.close();
+            }
+            if (null != fanoutHubs) {
+                fanoutHubs.close();
+            }
+            if (null != idlePolicy) {
+                idlePolicy.stop();
+            }
+            if (null != bossGroup) {
+                bossGroup.shutdownGracefully().awaitUninterruptibly();
+            }
+            if (null != proxyGroup) {
+                proxyGroup.shutdownGracefully().awaitUninterruptibly();
+            }
+            unregisterMetrics();
+            if (ownedTracer instanceof Closeable) {
+                try {
+                    // flush spans still buffered in reporter
+                    ((Closeable) ownedTracer).close();
+                } catch (final Exception e) {
+                    LOG.warn("failed to close tracer, detail: {}", ExceptionUtils.exception2detail(e));
+                }
+            }
+            LOG.info("proxy on port {} stopped, {}", proxyPort, metrics);
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (null != metricsName) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (final Exception e) {
+                LOG.warn("failed to unregister {}, detail: {}", metricsName, ExceptionUtils.exception2detail(e));
+            }
+            metricsName = null;
+        }
+    }
+
+    private void drain() throws InterruptedException {
+        final List<Channel> sessions = new ArrayList<>(accepted);
+        if (!sessions.isEmpty()) {
+            final long interval = Math.max(1, _settings.drainIntervalMillis);
+            final int batches = (int) Math.max(1, _settings.drainWindowMillis / interval);
+            final int batchSize = Math.max(1, (sessions.size() + batches - 1) / batches);
+            LOG.info("drain {} session(s) in batches of {} every {} ms", sessions.size(), batchSize, interval);
+            for (int begin = 0; begin < sessions.size(); begin += batchSize) {
+                if (begin > 0) {
+                    Thread.sleep(interval);
+                }
+                for (final Channel channel : sessions.subList(begin, Math.min(begin + batchSize, sessions.size()))) {
+                    // handled on channel's event loop
+                    channel.pipeline().fireUserEventTriggered(WebSocketProxyHandler.GOING_AWAY);
+                }
+            }
+        }
+        final long deadline = System.currentTimeMillis() + _settings.drainTimeoutMillis;
+        while (!accepted.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        if (!accepted.isEmpty()) {
+            LOG.warn("force close {} session(s) not closed within drain timeout", accepted.size());
+            accepted.close().await();
         }
     }
 }
\ No newline at end of file
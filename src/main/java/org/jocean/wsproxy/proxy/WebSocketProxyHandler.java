@@ -20,20 +20,47 @@ import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import org.jocean.idiom.BeanHolder;
 import org.jocean.idiom.ExceptionUtils;
+import org.jocean.wsproxy.IdlePolicy;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.RouteTable;
 import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.WSService;
+import org.jocean.wsproxy.client.Upstream;
+import org.jocean.wsproxy.client.WarmPools;
 import org.jocean.wsproxy.client.WebSocketClient;
+import org.jocean.wsproxy.deflate.DeflatePassthrough;
+import org.jocean.wsproxy.fanout.FanoutHub;
+import org.jocean.wsproxy.fanout.FanoutHubs;
+import org.jocean.wsproxy.health.HealthPolicy;
+import org.jocean.wsproxy.limit.AdmissionControl;
+import org.jocean.wsproxy.limit.SessionLimiter;
+import org.jocean.wsproxy.mux.MuxPools;
+import org.jocean.wsproxy.mux.MuxSession;
+import org.jocean.wsproxy.session.Session;
+import org.jocean.wsproxy.session.SessionRegistry;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+import org.jocean.wsproxy.trace.SessionTrace;
+import org.jocean.wsproxy.trace.Tracing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
@@ -44,12 +71,20 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.opentracing.Span;
 
 /**
  * Handles handshakes and messages
@@ -57,16 +92,91 @@ import io.netty.util.AttributeKey;
 public class WebSocketProxyHandler extends SimpleChannelInboundHandler<Object> {
     private static final Logger LOG = LoggerFactory.getLogger(WebSocketProxyHandler.class);
 
-    private static AttributeKey<WebSocketClient> UPSTREAM = AttributeKey.valueOf("UPSTREAM");
+    private static AttributeKey<Upstream> UPSTREAM = AttributeKey.valueOf("UPSTREAM");
 
-    private static final String WEBSOCKET_PATH = "/wsin/";
+    static final String WEBSOCKET_PATH = "/wsin/";
+
+    // user event fired by WebSocketProxy.stop() to close session with 1001 while draining
+    static final Object GOING_AWAY = new Object() {
+        @Override
+        public String toString() {
+            return "GOING_AWAY";
+        }};
 
     private WebSocketServerHandshaker handshaker;
 
-    private final BeanHolder holder;
+    // frames received while upstream is connecting, null when no upstream is being established
+    private PendingFrames pending;
+
+    // node selected for this session, counted in its active sessions
+    private WSNode selected;
+
+    // set while reconnecting after upstream lost
+    private WSNode lost;
+
+    // last data frame relayed upstream wasn't final
+    private boolean midMessage = false;
+
+    // set while subscribed to a fanout node instead of own upstream
+    private FanoutHub fanoutHub;
+
+    // counted in admission's concurrent sessions
+    private boolean admitted = false;
+
+    // null when no rate limit configured
+    private SessionLimiter limiter;
+
+    // reading from client paused by limiter until debt paid back
+    private boolean rateLimited = false;
+
+    // null when tracing disabled
+    private SessionTrace trace;
+
+    // registered once upgraded, unregistered in channelInactive
+    private Session registered;
+
+    private final RouteTable routes;
+    private final ProxySettings settings;
+    private final ProxyMetrics metrics;
+    private final MuxPools muxPools;
+    private final HealthPolicy healthPolicy;
+    private final ReconnectHook reconnectHook;
+    private final WarmPools warmPools;
+    private final FanoutHubs fanoutHubs;
+    private final AdmissionControl admission;
+    private final IdlePolicy idlePolicy;
+    private final MetricsView metricsView;
+    private final Tracing tracing;
+    private final ReloadableSslContext upstreamTls;
+    private final SessionRegistry sessions;
 
-    public WebSocketProxyHandler(final BeanHolder holder) {
-        this.holder = holder;
+    /**
+     * @param reconnectHook may be null
+     * @param warmPools null when connections can't be prestarted, eg: raw relay
+     * @param idlePolicy null when idle handling disabled
+     * @param tracing null when tracing disabled
+     * @param upstreamTls for WSNodes with tls on
+     * @param sessions registry of upgraded sessions
+     */
+    public WebSocketProxyHandler(final RouteTable routes, final ProxySettings settings, final ProxyMetrics metrics,
+            final MuxPools muxPools, final ReconnectHook reconnectHook, final WarmPools warmPools,
+            final FanoutHubs fanoutHubs, final AdmissionControl admission, final IdlePolicy idlePolicy,
+            final MetricsView metricsView, final Tracing tracing, final ReloadableSslContext upstreamTls,
+            final SessionRegistry sessions) {
+        this.routes = routes;
+        this.settings = settings;
+        this.metrics = metrics;
+        this.muxPools = muxPools;
+        this.healthPolicy = settings.healthPolicy();
+        this.reconnectHook = reconnectHook;
+        this.warmPools = warmPools;
+        this.fanoutHubs = fanoutHubs;
+        this.admission = admission;
+        this.idlePolicy = idlePolicy;
+        this.metricsView = metricsView;
+        this.tracing = tracing;
+        this.upstreamTls = upstreamTls;
+        this.sessions = sessions;
     }
 
     @Override
@@ -81,9 +191,15 @@ public class WebSocketProxyHandler extends SimpleChannelInboundHandler<Object> {
     @Override
     public void channelReadComplete(final ChannelHandlerContext ctx) {
         ctx.flush();
+        // one flush for all frames relayed upstream during this read loop
+        final Upstream client = ctx.channel().attr(UPSTREAM).get();
+        if (null != client) {
+            client.flush();
+        }
     }
 
     private void handleHttpRequest(final ChannelHandlerContext ctx, final FullHttpRequest req) {
+        final long begin = System.nanoTime();
         // Handle a bad request.
         if (!req.decoderResult().isSuccess()) {
             sendHttpResponse(ctx, req, new DefaultFullHttpResponse(req.protocolVersion(), BAD_REQUEST,
@@ -100,7 +216,7 @@ public class WebSocketProxyHandler extends SimpleChannelInboundHandler<Object> {
 
         // Send the demo page and favicon.ico
         if ("/".equals(req.uri())) {
-            final ByteBuf content = WebSocketProxyIndexPage.getContent(getWebSocketLocation(req));
+            final ByteBuf content = WebSocketProxyIndexPage.getContent(getWebSocketLocation(ctx, req));
             final FullHttpResponse res = new DefaultFullHttpResponse(req.protocolVersion(), OK, content);
 
             res.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
@@ -117,93 +233,553 @@ public class WebSocketProxyHandler extends SimpleChannelInboundHandler<Object> {
             return;
         }
 
-        final String wsuri = getWebSocketURI(req);
-        LOG.info("try Handshaker for {}", wsuri);
-        // Handshake
+        if ("/metrics".equals(req.uri())) {
+            final ByteBuf content = ByteBufUtil.writeUtf8(ctx.alloc(), metricsView.render());
+            final FullHttpResponse res = new DefaultFullHttpResponse(req.protocolVersion(), OK, content);
+
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+            HttpUtil.setContentLength(res, content.readableBytes());
+
+            sendHttpResponse(ctx, req, res);
+            return;
+        }
+
+        // one session per connection, an upgrade request pipelined after an admitted one is refused
+        if (admitted) {
+            sendHttpResponse(ctx, req, new DefaultFullHttpResponse(req.protocolVersion(), BAD_REQUEST,
+                                                                   ctx.alloc().buffer(0)));
+            return;
+        }
+
+        if (null != tracing && null == trace) {
+            trace = tracing.newSession(req, ipOf(ctx.channel().remoteAddress()));
+        }
+        // resolve route before upgrade, so unknown upstream is answered with plain http
+        final Span routeSpan = null != trace ? trace.startPhase("ws.route") : null;
+        final WSService wsservice = routeOf(req.uri());
+        metrics.recordRouteLookup(System.nanoTime() - begin);
+        SessionTrace.finish(routeSpan, null);
+        if (null == wsservice) {
+            LOG.warn("can't found upstream for {}", req.uri());
+            sendHttpResponse(ctx, req, new DefaultFullHttpResponse(req.protocolVersion(), NOT_FOUND,
+                                                                   ctx.alloc().buffer(0)));
+            return;
+        }
+
+        final String wsuri = getWebSocketURI(ctx, req);
+        LOG.debug("try Handshaker for {}", wsuri);
+        // Handshake, created before admission so an unsupported version holds no slot
         final WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(
-                wsuri, null, true, 5 * 1024 * 1024);
-        handshaker = wsFactory.newHandshaker(req);
-        if (handshaker == null) {
-            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
+                wsuri, null, true, settings.maxFramePayload);
+        final WebSocketServerHandshaker newHandshaker = wsFactory.newHandshaker(req);
+        if (null == newHandshaker) {
+            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel())
+                .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        // reject before any upstream work, so overload doesn't reach backends
+        if (!admission.tryAdmit()) {
+            metrics.onSessionRejected();
+            LOG.warn("max sessions reached, reject {}", req.uri());
+            sendHttpResponse(ctx, req, new DefaultFullHttpResponse(req.protocolVersion(), SERVICE_UNAVAILABLE,
+                                                                   ctx.alloc().buffer(0)));
+            return;
+        }
+        admitted = true;
+        limiter = admission.newSession(ipOf(ctx.channel().remoteAddress()),
+                wsservice.hostname() + "/" + wsservice.service());
+        final WSNode wsnode = wsservice.select(req);
+        // counted from now on, released in channelInactive
+        wsnode.onSessionOpened();
+        selected = wsnode;
+        if (null != trace) {
+            trace.tag("wsnode", wsnode.ip + ":" + wsnode.port);
+        }
+
+        handshaker = newHandshaker;
+        final String clientKey = sessions.clientKeyOf(req, ctx.channel());
+        final Span upgradeSpan = null != trace ? trace.startPhase("ws.upgrade") : null;
+        handshaker.handshake(ctx.channel(), req).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                SessionTrace.finish(upgradeSpan, future.cause());
+                if (!future.isSuccess()) {
+                    LOG.warn("wsuri:{} handshake failed, detail: {}", wsuri,
+                            ExceptionUtils.exception2detail(future.cause()));
+                    return;
+                }
+                metrics.recordUpgrade(System.nanoTime() - begin);
+                if (ctx.channel().isActive()) {
+                    registered = sessions.register(ctx.channel(),
+                            wsservice.hostname() + "/" + wsservice.service(), clientKey);
+                }
+                LOG.debug("wsuri:{} handshake complete, upstream wsnode: {}", wsuri, wsnode);
+
+                final URI uri = new URI(wsuri);
+                connectUpstream(ctx, wsuri, wsservice, wsnode, uri.getPath());
+            }});
+    }
+
+    private static String ipOf(final SocketAddress address) {
+        return address instanceof InetSocketAddress
+                ? ((InetSocketAddress) address).getAddress().getHostAddress() : String.valueOf(address);
+    }
+
+    /**
+     * @param uri request uri as /wsin/{hostname}/{service}[/...][?query]
+     * @return routed WSService or null
+     */
+    private WSService routeOf(final String uri) {
+        if (!uri.startsWith(WEBSOCKET_PATH)) {
+            return null;
+        }
+        final int hostBegin = WEBSOCKET_PATH.length();
+        final int hostEnd = uri.indexOf('/', hostBegin);
+        if (hostEnd <= hostBegin) {
+            return null;
+        }
+        int srvEnd = hostEnd + 1;
+        while (srvEnd < uri.length() && uri.charAt(srvEnd) != '/' && uri.charAt(srvEnd) != '?') {
+            srvEnd++;
+        }
+        if (srvEnd == hostEnd + 1) {
+            return null;
+        }
+        return routes.lookup(uri.substring(hostBegin, hostEnd), uri.substring(hostEnd + 1, srvEnd));
+    }
+
+    private void connectUpstream(final ChannelHandlerContext ctx, final String wsuri, final WSService wsservice,
+            final WSNode wsnode, final String path) throws URISyntaxException {
+        if (wsnode.fanout) {
+            // shared upstream pushes to downstream, client data frames are not relayed
+            fanoutHub = fanoutHubs.subscribe(wsnode, path, ctx.channel());
+            LOG.debug("wsuri:{} subscribed to {}", wsuri, fanoutHub);
+            return;
+        }
+        // hold back downstream frames until upstream is ready,
+        // frames already decoded in flight are kept in pending
+        ctx.channel().config().setAutoRead(false);
+        pending = new PendingFrames(settings.pendingMaxFrames, settings.pendingMaxBytes);
+
+        // no frame received yet, it's safe to swap decoders on both legs
+        if (wsnode.muxConnections > 0) {
+            // frames travel inside mux envelopes, raw relay doesn't apply
+            if (settings.streamingRelay) {
+                new StreamingFrameDecoder(true, settings.maxFragmentSize).installOn(ctx.pipeline());
+            }
+            connectMux(ctx, wsuri, wsservice, wsnode, path, System.currentTimeMillis() + settings.upstreamBudgetMillis,
+                    new ArrayList<WSNode>());
         } else {
-            handshaker.handshake(ctx.channel(), req).addListener(new ChannelFutureListener() {
+            final RawFrameRelay downstreamRelay;
+            if (settings.rawRelay) {
+                downstreamRelay = new RawFrameRelay(settings.flushPolicy(), settings.pendingMaxBytes, false,
+                        metrics)
+                        .installOn(ctx.pipeline());
+            } else {
+                downstreamRelay = null;
+                if (settings.streamingRelay) {
+                    new StreamingFrameDecoder(true, settings.maxFragmentSize).installOn(ctx.pipeline());
+                }
+            }
+            connectDirect(ctx, wsuri, wsservice, wsnode, path, downstreamRelay,
+                    System.currentTimeMillis() + settings.upstreamBudgetMillis, new ArrayList<WSNode>());
+        }
+    }
+
+    /**
+     * open mux session on wsnode's pool, and on failure retry another available mux node of wsservice until deadline
+     */
+    private void connectMux(final ChannelHandlerContext ctx, final String wsuri, final WSService wsservice,
+            final WSNode wsnode, final String path, final long deadline, final List<WSNode> tried) {
+        tried.add(wsnode);
+        final MuxSession session = muxPools.poolOf(wsnode).open(ctx.channel(), path);
+        final Span muxSpan = null != trace ? trace.startPhase("upstream.mux") : null;
+        session.readyFuture().addListener(new FutureListener<Void>() {
+            @Override
+            public void operationComplete(final Future<Void> future) throws Exception {
+                SessionTrace.finish(muxSpan, future.cause());
+                if (future.isSuccess()) {
+                    onUpstreamReady(ctx, wsuri, session, null, null);
+                    return;
+                }
+                // node's health is fed by the pool, once per connection rather than per waiting session
+                final WSNode next = ctx.channel().isActive() && null != pending
+                        && System.currentTimeMillis() < deadline ? wsservice.selectExcept(tried) : null;
+                if (null != next && next.muxConnections > 0) {
+                    LOG.warn("mux upstream {} for {} failed, retry {}, detail: {}", wsnode, wsuri, next,
+                            ExceptionUtils.exception2detail(future.cause()));
+                    wsnode.onSessionClosed();
+                    next.onSessionOpened();
+                    selected = next;
+                    connectMux(ctx, wsuri, wsservice, next, path, deadline, tried);
+                } else {
+                    onUpstreamFailed(ctx, wsuri, future.cause());
+                }
+            }});
+    }
+
+    /**
+     * connect wsnode, and on failure retry another available node of wsservice until deadline
+     */
+    private void connectDirect(final ChannelHandlerContext ctx, final String wsuri, final WSService wsservice,
+            final WSNode wsnode, final String path, final RawFrameRelay downstreamRelay,
+            final long deadline, final List<WSNode> tried) throws URISyntaxException {
+        tried.add(wsnode);
+        if (null != warmPools && null == downstreamRelay) {
+            final WebSocketClient warm = warmPools.take(wsnode, path, ctx.channel().eventLoop());
+            if (null != warm) {
+                warm.bind(ctx);
+                if (null != trace) {
+                    trace.tag("upstream.warm", "true");
+                }
+                onDirectReady(ctx, wsuri, wsservice, warm, null, path);
+                return;
+            }
+        }
+        final ChannelHandler upstreamDecoder;
+        if (settings.rawRelay) {
+            final RawFrameRelay upstreamRelay = new RawFrameRelay(settings.flushPolicy(), 0, true, metrics);
+            upstreamRelay.attach(ctx.channel());
+            upstreamDecoder = upstreamRelay;
+        } else if (settings.streamingRelay) {
+            upstreamDecoder = new StreamingFrameDecoder(false, settings.maxFragmentSize);
+        } else {
+            upstreamDecoder = null;
+        }
+        final WebSocketClient client = new WebSocketClient(settings.channelTuning(), settings.flushPolicy(), metrics,
+                isReconnectable(), idlePolicy, upstreamTls, settings.upstreamCloseTimeoutMillis);
+        client.start(new URI(wsnode.scheme() + "://" + wsnode.ip + ":" + wsnode.port + path), ctx, upstreamDecoder,
+                settings.deflateConfig(), Math.max(1, deadline - System.currentTimeMillis()), trace)
+            .addListener(new FutureListener<Channel>() {
                 @Override
-                public void operationComplete(final ChannelFuture future) throws Exception {
+                public void operationComplete(final Future<Channel> future) throws Exception {
                     if (future.isSuccess()) {
-                        LOG.info("wsuri:{} handshake complete", wsuri);
+                        healthPolicy.onSuccess(wsnode);
+                        onDirectReady(ctx, wsuri, wsservice, client, downstreamRelay, path);
+                        return;
                     }
-                    final WebSocketClient client = new WebSocketClient();
-                    ctx.channel().attr(UPSTREAM).set(client);
+                    healthPolicy.onFailure(wsnode);
+                    final WSNode next = ctx.channel().isActive() && null != pending
+                            && System.currentTimeMillis() < deadline ? wsservice.selectExcept(tried) : null;
+                    if (null != next) {
+                        LOG.warn("upstream {} for {} failed, retry {}, detail: {}", wsnode, wsuri, next,
+                                ExceptionUtils.exception2detail(future.cause()));
+                        wsnode.onSessionClosed();
+                        next.onSessionOpened();
+                        selected = next;
+                        connectDirect(ctx, wsuri, wsservice, next, path, downstreamRelay, deadline, tried);
+                    } else {
+                        onUpstreamFailed(ctx, wsuri, future.cause());
+                    }
+                }});
+    }
 
-                    LOG.info("try find upstream for {}", wsuri);
+    private void onDirectReady(final ChannelHandlerContext ctx, final String wsuri, final WSService wsservice,
+            final WebSocketClient client, final RawFrameRelay downstreamRelay, final String path) {
+        // pending frames from downstream are already inflated, passthrough applies to later messages
+        DeflatePassthrough.link(ctx.channel(), client.channel(), !settings.reconnect);
+        if (onUpstreamReady(ctx, wsuri, client, downstreamRelay, client.channel())) {
+            client.closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(final ChannelFuture future) throws Exception {
+                    onUpstreamClosed(ctx, wsuri, wsservice, client, path);
+                }});
+        }
+    }
 
-                    final URI uri = new URI(wsuri);
+    /**
+     * @return true if upstream is now relaying for downstream
+     */
+    private boolean onUpstreamReady(final ChannelHandlerContext ctx, final String wsuri, final Upstream upstream,
+            final RawFrameRelay downstreamRelay, final Channel upstreamChannel) {
+        if (!ctx.channel().isActive() || null == pending) {
+            LOG.debug("downstream for {} closed before upstream ready", wsuri);
+            upstream.stop();
+            return false;
+        }
+        LOG.debug("upstream for {} ready", wsuri);
+        ctx.channel().attr(UPSTREAM).set(upstream);
+        if (null != lost) {
+            metrics.onUpstreamReconnected();
+            if (null != reconnectHook) {
+                for (final WebSocketFrame frame : reconnectHook.onReconnected(wsuri, lost, selected)) {
+                    upstream.write(frame);
+                    frame.release();
+                }
+            }
+            lost = null;
+        }
+        pending.flushTo(upstream);
+        pending = null;
+        if (null != downstreamRelay) {
+            downstreamRelay.attach(upstreamChannel);
+        }
+        // otherwise resumed when limiter's pause ends or upstream drains
+        ctx.channel().config().setAutoRead(!rateLimited && upstream.isWritable());
+        return true;
+    }
 
-                    final String path = uri.getPath();
-                    final String[] ss = path.split("/");
-                    if (ss.length >= 4) {
-                        final String host = ss[2];
-                        final String srv = ss[3];
-                        LOG.info("upstream: {}/{}", host, srv);
+    private boolean isReconnectable() {
+        return settings.reconnect && !settings.rawRelay;
+    }
 
-                        final WSNode wsnode = holder.getBean("wsnode-" + host + "-" + srv, WSNode.class);
-                        LOG.info("found upstream wsnode: {}", wsnode);
+    private void onUpstreamClosed(final ChannelHandlerContext ctx, final String wsuri, final WSService wsservice,
+            final WebSocketClient client, final String path) throws URISyntaxException {
+        if (client.isStopped() || !ctx.channel().isActive() || ctx.channel().attr(UPSTREAM).get() != client) {
+            return;
+        }
+        ctx.channel().attr(UPSTREAM).set(null);
+        if (!isReconnectable() || midMessage || client.isMidMessage()) {
+            ctx.writeAndFlush(new CloseWebSocketFrame(1011, "upstream lost"))
+                .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        healthPolicy.onFailure(selected);
+        final List<WSNode> tried = new ArrayList<>();
+        tried.add(selected);
+        final WSNode next = wsservice.selectExcept(tried);
+        if (null == next) {
+            onUpstreamFailed(ctx, wsuri, new IllegalStateException("no other node available for " + wsuri));
+            return;
+        }
+        LOG.info("upstream {} for {} lost, reconnect to {}", selected, wsuri, next);
+        if (null != trace) {
+            trace.tag("wsnode", next.ip + ":" + next.port);
+        }
+        // client frames are buffered until replacement is ready, reading resumes in onUpstreamReady
+        ctx.channel().config().setAutoRead(false);
+        pending = new PendingFrames(settings.pendingMaxFrames, settings.pendingMaxBytes);
+        lost = selected;
+        selected.onSessionClosed();
+        next.onSessionOpened();
+        selected = next;
+        connectDirect(ctx, wsuri, wsservice, next, path, null,
+                System.currentTimeMillis() + settings.upstreamBudgetMillis, tried);
+    }
 
-                        client.start(new URI(uri.getScheme() + "://" + wsnode.ip + ":" + wsnode.port + path), ctx);
-                    } else {
-                        LOG.warn("can't found upstream for {}", wsuri);
-                    }
-                }});
+    private void onUpstreamFailed(final ChannelHandlerContext ctx, final String wsuri, final Throwable cause) {
+        LOG.warn("upstream for {} failed, detail: {}", wsuri, ExceptionUtils.exception2detail(cause));
+        if (null != trace) {
+            trace.tag("upstream.error", String.valueOf(cause));
         }
+        if (null != pending) {
+            pending.clear();
+            pending = null;
+        }
+        ctx.writeAndFlush(new CloseWebSocketFrame(1011, "upstream unavailable"))
+            .addListener(ChannelFutureListener.CLOSE);
     }
 
     private void handleWebSocketFrame(final ChannelHandlerContext ctx, final WebSocketFrame frame) {
+        if (null != limiter && (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame
+                || frame instanceof ContinuationWebSocketFrame)) {
+            throttle(ctx, frame);
+        }
+        if (null != fanoutHub) {
+            handleFanoutFrame(ctx, frame);
+            return;
+        }
 
         // Check for closing frame
         if (frame instanceof CloseWebSocketFrame) {
             handshaker.close(ctx.channel(), (CloseWebSocketFrame) frame.retain());
             // TODO
-            final WebSocketClient client = ctx.channel().attr(UPSTREAM).get();
+            final Upstream client = ctx.channel().attr(UPSTREAM).get();
             if (null != client) {
-                try {
-                    client.stop();
-                } catch (final InterruptedException e) {
-                    LOG.warn("exception when stop client, detail: {}", ExceptionUtils.exception2detail(e));
-                }
+                client.stop();
             }
             return;
         }
         if (frame instanceof PingWebSocketFrame) {
-//            ctx.write(new PongWebSocketFrame(frame.content().retain()));
-            final WebSocketClient client = ctx.channel().attr(UPSTREAM).get();
-            if (null != client) {
-                client.send(frame);
-            } else {
-                LOG.warn("without upstream, ignore frame: {}", frame);
-            }
+            // answered without a round trip to backend, flushed in channelReadComplete
+            ctx.write(new PongWebSocketFrame(frame.content().retain()));
             return;
         }
         if (frame instanceof TextWebSocketFrame) {
             // Echo the frame
 //            ctx.write(frame.retain());
-            final WebSocketClient client = ctx.channel().attr(UPSTREAM).get();
-            if (null != client) {
-                client.send(frame);
-            } else {
-                LOG.warn("without upstream, ignore frame: {}", frame);
-            }
+            sendUpstream(ctx, frame);
             return;
         }
         if (frame instanceof BinaryWebSocketFrame) {
             // Echo the frame
 //            ctx.write(frame.retain());
-            final WebSocketClient client = ctx.channel().attr(UPSTREAM).get();
-            if (null != client) {
-                client.send(frame);
+            sendUpstream(ctx, frame);
+            return;
+        }
+        if (frame instanceof ContinuationWebSocketFrame) {
+            // fragments of a text or binary message, relayed one by one
+            sendUpstream(ctx, frame);
+        }
+    }
+
+    /**
+     * frame is relayed anyway, reading pauses until buckets are paid back
+     */
+    private void throttle(final ChannelHandlerContext ctx, final WebSocketFrame frame) {
+        final long waitNanos = limiter.onFrame(!(frame instanceof ContinuationWebSocketFrame),
+                frame.content().readableBytes(), System.nanoTime());
+        if (waitNanos <= 0 || rateLimited) {
+            return;
+        }
+        rateLimited = true;
+        metrics.onRateLimited();
+        ctx.channel().config().setAutoRead(false);
+        ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                rateLimited = false;
+                // still paused while upstream connecting or not writable
+                final Upstream client = ctx.channel().attr(UPSTREAM).get();
+                if (ctx.channel().isActive() && null == pending && (null == client || client.isWritable())) {
+                    ctx.channel().config().setAutoRead(true);
+                }
+            }}, waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void handleFanoutFrame(final ChannelHandlerContext ctx, final WebSocketFrame frame) {
+        if (frame instanceof CloseWebSocketFrame) {
+            handshaker.close(ctx.channel(), (CloseWebSocketFrame) frame.retain());
+            unsubscribeFanout(ctx);
+        } else if (frame instanceof PingWebSocketFrame) {
+            // shared upstream can't answer for this session
+            ctx.write(new PongWebSocketFrame(frame.content().retain()));
+        } else if (LOG.isDebugEnabled() && !(frame instanceof PongWebSocketFrame)) {
+            LOG.debug("fanout session {} ignore frame: {}", ctx.channel(), frame);
+        }
+    }
+
+    private void unsubscribeFanout(final ChannelHandlerContext ctx) {
+        if (null != fanoutHub) {
+            fanoutHub.unsubscribe(ctx.channel());
+            fanoutHub = null;
+        }
+    }
+
+    private void sendUpstream(final ChannelHandlerContext ctx, final WebSocketFrame frame) {
+        if (null != trace && !(frame instanceof ContinuationWebSocketFrame)) {
+            trace.onMessage("client", frame.content().readableBytes());
+        }
+        midMessage = !frame.isFinalFragment();
+        metrics.onClientFrames(1, frame.content().readableBytes());
+        final Upstream client = ctx.channel().attr(UPSTREAM).get();
+        if (null != client) {
+            client.write(frame);
+        } else if (null != pending) {
+            // upstream is connecting, keep frame until it's ready
+            if (!pending.offer(frame)) {
+                LOG.warn("pending frames exceed limits ({} frames/{} bytes), close {}",
+                        pending.size(), pending.bytes(), ctx.channel());
+                pending.clear();
+                pending = null;
+                ctx.writeAndFlush(new CloseWebSocketFrame(1008, "too many pending frames"))
+                    .addListener(ChannelFutureListener.CLOSE);
+            }
+        } else {
+            LOG.warn("without upstream, ignore frame: {}", frame);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+        final Upstream client = ctx.channel().attr(UPSTREAM).get();
+        if (null != client) {
+            // stop reading from upstream while downstream can't keep up
+            final boolean writable = ctx.channel().isWritable();
+            if (!writable) {
+                metrics.onDownstreamThrottled();
+            }
+            client.setAutoRead(writable);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            onIdle(ctx, (IdleStateEvent) evt);
+            return;
+        }
+        if (Upstream.WRITABILITY_CHANGED == evt) {
+            onUpstreamWritabilityChanged(ctx);
+            return;
+        }
+        if (GOING_AWAY == evt) {
+            // raw relay may be in the middle of a frame, close without handshake then
+            if (null != handshaker && !settings.rawRelay) {
+                // upstream is stopped in channelInactive
+                handshaker.close(ctx.channel(), new CloseWebSocketFrame(1001, "going away"));
             } else {
-                LOG.warn("without upstream, ignore frame: {}", frame);
+                ctx.close();
             }
+            return;
         }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    /**
+     * pause reading from downstream while upstream can't keep up, resume only if nothing else holds it paused
+     */
+    private void onUpstreamWritabilityChanged(final ChannelHandlerContext ctx) {
+        final Upstream client = ctx.channel().attr(UPSTREAM).get();
+        if (null == client) {
+            // connecting or reconnecting, resumed in onUpstreamReady
+            return;
+        }
+        if (!client.isWritable()) {
+            ctx.channel().config().setAutoRead(false);
+        } else if (!rateLimited && null == pending) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    private void onIdle(final ChannelHandlerContext ctx, final IdleStateEvent evt) {
+        if (IdleState.ALL_IDLE == evt.state()) {
+            LOG.debug("downstream {} idle too long, reap it", ctx.channel());
+            metrics.onIdleReaped();
+            if (null != handshaker && idlePolicy.isPing()) {
+                ctx.writeAndFlush(new CloseWebSocketFrame(idlePolicy.closeCode(), "idle timeout"))
+                    .addListener(ChannelFutureListener.CLOSE);
+            } else {
+                ctx.close();
+            }
+        } else if (null != handshaker && idlePolicy.isPing()) {
+            ctx.writeAndFlush(new PingWebSocketFrame());
+        }
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        if (null != trace) {
+            trace.finish("closed");
+            trace = null;
+        }
+        if (null != pending) {
+            pending.clear();
+            pending = null;
+        }
+        final Upstream client = ctx.channel().attr(UPSTREAM).get();
+        if (null != client) {
+            client.stop();
+        }
+        unsubscribeFanout(ctx);
+        if (null != registered) {
+            sessions.unregister(registered);
+            registered = null;
+        }
+        if (null != selected) {
+            selected.onSessionClosed();
+            selected = null;
+        }
+        if (null != limiter) {
+            limiter.release();
+            limiter = null;
+        }
+        if (admitted) {
+            admitted = false;
+            admission.release();
+        }
+        super.channelInactive(ctx);
     }
 
     private static void sendHttpResponse(final ChannelHandlerContext ctx, final FullHttpRequest req, final FullHttpResponse res) {
@@ -228,18 +804,18 @@ public class WebSocketProxyHandler extends SimpleChannelInboundHandler<Object> {
         ctx.close();
     }
 
-    private static String getWebSocketLocation(final FullHttpRequest req) {
+    private static String getWebSocketLocation(final ChannelHandlerContext ctx, final FullHttpRequest req) {
         final String location =  req.headers().get(HttpHeaderNames.HOST) + WEBSOCKET_PATH;
-//        if (WebSocketProxy.SSL) {
-//            return "wss://" + location;
-//        } else {
-            return "ws://" + location;
-//        }
+        return schemeOf(ctx) + "://" + location;
     }
 
-    private String getWebSocketURI(final FullHttpRequest req) {
+    private String getWebSocketURI(final ChannelHandlerContext ctx, final FullHttpRequest req) {
         final String uri =  req.headers().get(HttpHeaderNames.HOST) + req.uri();
-        return "ws://" + uri;
+        return schemeOf(ctx) + "://" + uri;
+    }
+
+    private static String schemeOf(final ChannelHandlerContext ctx) {
+        return null != ctx.pipeline().get(SslHandler.class) ? "wss" : "ws";
     }
 
 }
\ No newline at end of file
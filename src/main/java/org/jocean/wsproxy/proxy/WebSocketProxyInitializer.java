@@ -16,35 +16,91 @@
  */
 package org.jocean.wsproxy.proxy;
 
-import org.jocean.idiom.BeanHolder;
+import org.jocean.wsproxy.IdlePolicy;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.jocean.wsproxy.RouteTable;
+import org.jocean.wsproxy.client.WarmPools;
+import org.jocean.wsproxy.fanout.FanoutHubs;
+import org.jocean.wsproxy.limit.AdmissionControl;
+import org.jocean.wsproxy.mux.MuxPools;
+import org.jocean.wsproxy.session.SessionRegistry;
+import org.jocean.wsproxy.tls.ReloadableSslContext;
+import org.jocean.wsproxy.trace.Tracing;
 
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
-import io.netty.handler.ssl.SslContext;
 
 /**
  */
 public class WebSocketProxyInitializer extends ChannelInitializer<SocketChannel> {
 
-    private final SslContext sslCtx;
-    private final BeanHolder holder;
+    private final ReloadableSslContext sslCtx;
+    private final RouteTable routes;
+    private final ProxySettings settings;
+    private final ProxyMetrics metrics;
+    private final MuxPools muxPools;
+    private final ReconnectHook reconnectHook;
+    private final WarmPools warmPools;
+    private final FanoutHubs fanoutHubs;
+    private final AdmissionControl admission;
+    private final IdlePolicy idlePolicy;
+    private final ChannelGroup channels;
+    private final MetricsView metricsView;
+    private final Tracing tracing;
+    private final ReloadableSslContext upstreamTls;
+    private final SessionRegistry sessions;
 
-    public WebSocketProxyInitializer(final SslContext sslCtx, final BeanHolder holder) {
+    /**
+     * @param sslCtx downstream wss://, null for ws://
+     * @param upstreamTls for WSNodes with tls on
+     */
+    public WebSocketProxyInitializer(final ReloadableSslContext sslCtx, final RouteTable routes,
+            final ProxySettings settings, final ProxyMetrics metrics, final MuxPools muxPools,
+            final ReconnectHook reconnectHook, final WarmPools warmPools, final FanoutHubs fanoutHubs,
+            final AdmissionControl admission, final IdlePolicy idlePolicy, final ChannelGroup channels,
+            final MetricsView metricsView, final Tracing tracing, final ReloadableSslContext upstreamTls,
+            final SessionRegistry sessions) {
         this.sslCtx = sslCtx;
-        this.holder = holder;
+        this.routes = routes;
+        this.settings = settings;
+        this.metrics = metrics;
+        this.muxPools = muxPools;
+        this.reconnectHook = reconnectHook;
+        this.warmPools = warmPools;
+        this.fanoutHubs = fanoutHubs;
+        this.admission = admission;
+        // raw relay writes frames at wire level, a ping could land inside a relayed frame
+        this.idlePolicy = null != idlePolicy && settings.rawRelay ? idlePolicy.reapOnly() : idlePolicy;
+        this.channels = channels;
+        this.metricsView = metricsView;
+        this.tracing = tracing;
+        this.upstreamTls = upstreamTls;
+        this.sessions = sessions;
     }
 
     @Override
     public void initChannel(final SocketChannel ch) throws Exception {
+        // removed by group when closed
+        channels.add(ch);
         final ChannelPipeline pipeline = ch.pipeline();
+        if (null != idlePolicy) {
+            pipeline.addLast(idlePolicy.newHandler());
+        }
         if (sslCtx != null) {
+            // current certificate, sessions opened before a reload keep theirs
             pipeline.addLast(sslCtx.newHandler(ch.alloc()));
         }
         pipeline.addLast(new HttpServerCodec());
         pipeline.addLast(new HttpObjectAggregator(65536));
-        pipeline.addLast(new WebSocketProxyHandler(holder));
+        if (settings.deflateDownstream && null != settings.deflateConfig()) {
+            pipeline.addLast(settings.deflateConfig().newServerHandler());
+        }
+        pipeline.addLast(new WebSocketProxyHandler(routes, settings, metrics, muxPools, reconnectHook,
+                warmPools, fanoutHubs, admission, idlePolicy, metricsView, tracing, upstreamTls,
+                sessions));
     }
 }
\ No newline at end of file
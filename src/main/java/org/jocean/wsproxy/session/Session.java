@@ -0,0 +1,61 @@
+package org.jocean.wsproxy.session;
+
+import io.netty.channel.Channel;
+
+/**
+ * one upgraded downstream session in SessionRegistry
+ */
+public final class Session {
+
+    Session(final long id, final Channel channel, final String service, final String clientKey) {
+        this.id = id;
+        this.channel = channel;
+        this.service = service;
+        this.clientKey = clientKey;
+        this.since = System.currentTimeMillis();
+    }
+
+    public long id() {
+        return id;
+    }
+
+    /**
+     * downstream channel, act on it from its own event loop, eg: inside SessionRegistry's visit
+     */
+    public Channel channel() {
+        return channel;
+    }
+
+    /**
+     * @return {hostname}/{service}
+     */
+    public String service() {
+        return service;
+    }
+
+    /**
+     * @return null if no client key configured or request without it
+     */
+    public String clientKey() {
+        return clientKey;
+    }
+
+    public long since() {
+        return since;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("Session [id=").append(id).append(", channel=").append(channel).append(", service=")
+                .append(service).append(", clientKey=").append(clientKey).append(", since=").append(since)
+                .append("]");
+        return builder.toString();
+    }
+
+    private final long id;
+    private final Channel channel;
+    private final String service;
+    private final String clientKey;
+    private final long since;
+}
@@ -0,0 +1,261 @@
+package org.jocean.wsproxy.session;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jocean.idiom.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * upgraded sessions, sharded per event loop: a loop owns the sessions of its channels and indexes them
+ * by id, by service and by client key without any lock.
+ * <p>
+ * session id encodes its shard, so a lookup by id runs only on the owning loop. bulk operations are
+ * submitted to every loop and visit that loop's own index there, no channel is scanned.
+ */
+public class SessionRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(SessionRegistry.class);
+
+    public interface Visitor {
+        /**
+         * called on session's event loop
+         */
+        void visit(Session session);
+    }
+
+    /**
+     * @param clientKeySpec "query:{name}", "header:{name}" or "ip", empty if sessions not indexed by client
+     */
+    public SessionRegistry(final EventLoopGroup group, final String clientKeySpec) {
+        final List<Shard> shards = new ArrayList<>();
+        for (final EventExecutor executor : group) {
+            final Shard shard = new Shard(shards.size(), (EventLoop) executor);
+            shards.add(shard);
+            shardOfLoop.put(executor, shard);
+        }
+        this.shards = shards.toArray(new Shard[0]);
+
+        final int colon = clientKeySpec.indexOf(':');
+        this.keyType = colon > 0 ? clientKeySpec.substring(0, colon) : clientKeySpec;
+        this.keyName = colon > 0 ? clientKeySpec.substring(colon + 1) : null;
+    }
+
+    /**
+     * @return client key of request by spec, null if none
+     */
+    public String clientKeyOf(final HttpRequest request, final Channel channel) {
+        if ("header".equals(keyType)) {
+            return request.headers().get(keyName);
+        } else if ("query".equals(keyType)) {
+            final List<String> values = new QueryStringDecoder(request.uri()).parameters().get(keyName);
+            return null != values && !values.isEmpty() ? values.get(0) : null;
+        } else if ("ip".equals(keyType)) {
+            return channel.remoteAddress() instanceof InetSocketAddress
+                    ? ((InetSocketAddress) channel.remoteAddress()).getAddress().getHostAddress() : null;
+        }
+        return null;
+    }
+
+    /**
+     * must be called on channel's event loop
+     * @param service as {hostname}/{service}
+     * @param clientKey null if not indexed by client
+     */
+    public Session register(final Channel channel, final String service, final String clientKey) {
+        final Shard shard = shardOfLoop.get(channel.eventLoop());
+        final Session session = new Session(shard.nextSeq++ * shards.length + shard.index, channel, service,
+                clientKey);
+        shard.byId.put(session.id(), session);
+        index(shard.byService, service, session);
+        if (null != clientKey) {
+            index(shard.byClient, clientKey, session);
+        }
+        shard.size = shard.byId.size();
+        return session;
+    }
+
+    /**
+     * must be called on session's event loop
+     */
+    public void unregister(final Session session) {
+        final Shard shard = shardOfId(session.id());
+        if (null == shard.byId.remove(session.id())) {
+            return;
+        }
+        unindex(shard.byService, session.service(), session);
+        if (null != session.clientKey()) {
+            unindex(shard.byClient, session.clientKey(), session);
+        }
+        shard.size = shard.byId.size();
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Shard shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return future of visited count, 0 or 1
+     */
+    public Future<Integer> visit(final long id, final Visitor visitor) {
+        return visitOn(Collections.singletonList(shardOfId(id)), new Selector() {
+            @Override
+            public Collection<Session> select(final Shard shard) {
+                final Session session = shard.byId.get(id);
+                return null != session ? Collections.singletonList(session) : null;
+            }}, visitor);
+    }
+
+    /**
+     * @param service as {hostname}/{service}
+     */
+    public Future<Integer> visitService(final String service, final Visitor visitor) {
+        return visitOn(shardList(), new Selector() {
+            @Override
+            public Collection<Session> select(final Shard shard) {
+                final LongObjectHashMap<Session> sessions = shard.byService.get(service);
+                return null != sessions ? sessions.values() : null;
+            }}, visitor);
+    }
+
+    public Future<Integer> visitClient(final String clientKey, final Visitor visitor) {
+        return visitOn(shardList(), new Selector() {
+            @Override
+            public Collection<Session> select(final Shard shard) {
+                final LongObjectHashMap<Session> sessions = shard.byClient.get(clientKey);
+                return null != sessions ? sessions.values() : null;
+            }}, visitor);
+    }
+
+    public Future<Integer> visitAll(final Visitor visitor) {
+        return visitOn(shardList(), new Selector() {
+            @Override
+            public Collection<Session> select(final Shard shard) {
+                return shard.byId.values();
+            }}, visitor);
+    }
+
+    private Future<Integer> visitOn(final List<Shard> targets, final Selector selector, final Visitor visitor) {
+        final Promise<Integer> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+        final AtomicInteger pending = new AtomicInteger(targets.size());
+        final AtomicInteger visited = new AtomicInteger();
+        for (final Shard shard : targets) {
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final Collection<Session> selected = selector.select(shard);
+                        if (null != selected) {
+                            // copied, visitor may close sessions and so unregister them
+                            for (final Session session : new ArrayList<>(selected)) {
+                                visitor.visit(session);
+                                visited.incrementAndGet();
+                            }
+                        }
+                    } catch (final Exception e) {
+                        LOG.warn("visit sessions on {} failed, detail: {}", shard.loop,
+                                ExceptionUtils.exception2detail(e));
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            promise.trySuccess(visited.get());
+                        }
+                    }
+                }};
+            try {
+                shard.loop.execute(task);
+            } catch (final Exception e) {
+                // loop shutting down, its channels are closing anyway
+                if (pending.decrementAndGet() == 0) {
+                    promise.trySuccess(visited.get());
+                }
+            }
+        }
+        return promise;
+    }
+
+    private List<Shard> shardList() {
+        final List<Shard> list = new ArrayList<>(shards.length);
+        Collections.addAll(list, shards);
+        return list;
+    }
+
+    private Shard shardOfId(final long id) {
+        return shards[(int) (id % shards.length)];
+    }
+
+    private static void index(final Map<String, LongObjectHashMap<Session>> index, final String key,
+            final Session session) {
+        LongObjectHashMap<Session> sessions = index.get(key);
+        if (null == sessions) {
+            sessions = new LongObjectHashMap<>();
+            index.put(key, sessions);
+        }
+        sessions.put(session.id(), session);
+    }
+
+    private static void unindex(final Map<String, LongObjectHashMap<Session>> index, final String key,
+            final Session session) {
+        final LongObjectHashMap<Session> sessions = index.get(key);
+        if (null != sessions) {
+            sessions.remove(session.id());
+            if (sessions.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private interface Selector {
+        /**
+         * called on shard's event loop
+         * @return null if none
+         */
+        Collection<Session> select(Shard shard);
+    }
+
+    /**
+     * sessions of one event loop, touched only on that loop except size
+     */
+    private static final class Shard {
+        Shard(final int index, final EventLoop loop) {
+            this.index = index;
+            this.loop = loop;
+        }
+
+        final int index;
+        final EventLoop loop;
+        final LongObjectHashMap<Session> byId = new LongObjectHashMap<>();
+        final Map<String, LongObjectHashMap<Session>> byService = new HashMap<>();
+        final Map<String, LongObjectHashMap<Session>> byClient = new HashMap<>();
+        long nextSeq = 1;
+        // written by loop, read by size()
+        volatile int size;
+    }
+
+    // read only once constructed
+    private final Map<EventExecutor, Shard> shardOfLoop = new IdentityHashMap<>();
+    private final Shard[] shards;
+    private final String keyType;
+    private final String keyName;
+}
@@ -0,0 +1,188 @@
+package org.jocean.wsproxy.tls;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLException;
+
+import org.jocean.idiom.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+
+/**
+ * SslContext built from pem files and rebuilt when they change: new channels take the current context,
+ * live sessions keep the engine they were opened with, so a certificate reload drops nothing.
+ * <p>
+ * OpenSSL (netty-tcnative) is used when available, otherwise jdk SSLEngine. sessions are cached for
+ * resumption, and with OpenSSL the session ticket keys outlive reloads, so reconnecting clients
+ * resume instead of doing full handshakes.
+ */
+public final class ReloadableSslContext {
+    private static final Logger LOG = LoggerFactory.getLogger(ReloadableSslContext.class);
+
+    /**
+     * @param keyPassword null if key not encrypted
+     * @param provider openssl, jdk or auto
+     * @param sessionCacheSize 0 means provider default
+     * @param sessionTimeoutSeconds 0 means provider default
+     * @param alpn comma separated protocols, null or empty disables ALPN
+     */
+    public static ReloadableSslContext forServer(final File certChain, final File key, final String keyPassword,
+            final String provider, final long sessionCacheSize, final long sessionTimeoutSeconds, final String alpn)
+            throws SSLException {
+        return new ReloadableSslContext(true, certChain, key, keyPassword, providerOf(provider), sessionCacheSize,
+                sessionTimeoutSeconds, alpn);
+    }
+
+    /**
+     * @param trust pem CA certificates to verify server, null means jdk default trust store
+     */
+    public static ReloadableSslContext forClient(final File trust, final String provider,
+            final long sessionCacheSize, final long sessionTimeoutSeconds, final String alpn) throws SSLException {
+        return new ReloadableSslContext(false, trust, null, null, providerOf(provider), sessionCacheSize,
+                sessionTimeoutSeconds, alpn);
+    }
+
+    private ReloadableSslContext(final boolean server, final File cert, final File key, final String keyPassword,
+            final SslProvider provider, final long sessionCacheSize, final long sessionTimeoutSeconds,
+            final String alpn) throws SSLException {
+        this.server = server;
+        this.cert = cert;
+        this.key = key;
+        this.keyPassword = keyPassword;
+        this.provider = provider;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        this.alpn = null != alpn && !alpn.trim().isEmpty() ? alpn.trim().split("\\s*,\\s*") : null;
+        this.ticketKey = server && SslProvider.OPENSSL == provider ? newTicketKey() : null;
+        this.modified = lastModified();
+        this.current = build();
+        LOG.info("created {}", this);
+    }
+
+    /**
+     * downstream, server side
+     */
+    public SslHandler newHandler(final ByteBufAllocator alloc) {
+        return current.newHandler(alloc);
+    }
+
+    /**
+     * upstream, client side: sessions are cached by host and port for resumption
+     */
+    public SslHandler newHandler(final ByteBufAllocator alloc, final String host, final int port) {
+        return current.newHandler(alloc, host, port);
+    }
+
+    /**
+     * rebuild context if any of its files changed, keep current one if rebuild fails,
+     * eg: cert replaced but key not yet
+     * @return true if reloaded
+     */
+    public boolean reloadIfChanged() {
+        final long[] now = lastModified();
+        if (Arrays.equals(now, modified)) {
+            return false;
+        }
+        modified = now;
+        try {
+            current = build();
+            LOG.info("reloaded {}", this);
+            return true;
+        } catch (final Exception e) {
+            LOG.warn("reload {} failed, keep current, detail: {}", this, ExceptionUtils.exception2detail(e));
+            return false;
+        }
+    }
+
+    private SslContext build() throws SSLException {
+        final SslContextBuilder builder = server
+                ? SslContextBuilder.forServer(cert, key, keyPassword)
+                : SslContextBuilder.forClient();
+        if (!server && null != cert) {
+            builder.trustManager(cert);
+        }
+        builder.sslProvider(provider)
+            .sessionCacheSize(sessionCacheSize)
+            .sessionTimeout(sessionTimeoutSeconds);
+        if (null != alpn && SslProvider.isAlpnSupported(provider)) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(Protocol.ALPN,
+                    SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT, alpn));
+        }
+        final SslContext context = builder.build();
+        if (null != ticketKey && context instanceof OpenSslContext) {
+            ((OpenSslContext) context).sessionContext().setTicketKeys(ticketKey);
+        }
+        return context;
+    }
+
+    private long[] lastModified() {
+        return new long[] { null != cert ? cert.lastModified() : 0, null != key ? key.lastModified() : 0 };
+    }
+
+    private static OpenSslSessionTicketKey newTicketKey() {
+        final SecureRandom random = new SecureRandom();
+        final byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+        final byte[] hmacKey = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+        final byte[] aesKey = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+        random.nextBytes(name);
+        random.nextBytes(hmacKey);
+        random.nextBytes(aesKey);
+        return new OpenSslSessionTicketKey(name, hmacKey, aesKey);
+    }
+
+    private static SslProvider providerOf(final String name) {
+        if ("jdk".equalsIgnoreCase(name)) {
+            return SslProvider.JDK;
+        }
+        if (OpenSsl.isAvailable()) {
+            return SslProvider.OPENSSL;
+        }
+        if ("openssl".equalsIgnoreCase(name)) {
+            LOG.warn("openssl unavailable, fallback to jdk, detail: {}",
+                    ExceptionUtils.exception2detail(OpenSsl.unavailabilityCause()));
+        }
+        return SslProvider.JDK;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ReloadableSslContext [").append(server ? "server" : "client")
+                .append(", provider=").append(provider)
+                .append(", cert=").append(cert)
+                .append(", key=").append(key)
+                .append(", sessionCacheSize=").append(sessionCacheSize)
+                .append(", sessionTimeoutSeconds=").append(sessionTimeoutSeconds)
+                .append(", alpn=").append(Arrays.toString(alpn)).append("]");
+        return builder.toString();
+    }
+
+    private final boolean server;
+    // server cert chain, or client trust
+    private final File cert;
+    private final File key;
+    private final String keyPassword;
+    private final SslProvider provider;
+    private final long sessionCacheSize;
+    private final long sessionTimeoutSeconds;
+    private final String[] alpn;
+    private final OpenSslSessionTicketKey ticketKey;
+    // touched only by reload
+    private long[] modified;
+    private volatile SslContext current;
+}
@@ -0,0 +1,115 @@
+package org.jocean.wsproxy.trace;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMapInjectAdapter;
+import io.opentracing.tag.Tags;
+
+/**
+ * spans of one session: the session span, its lifecycle phases and sampled messages.
+ * <p>
+ * sampling is decided once when session span starts, an unsampled session creates no further spans,
+ * so the per frame cost is a null check and a boolean check. not thread safe, used on session's event loop.
+ */
+public final class SessionTrace {
+
+    SessionTrace(final Tracer tracer, final Span session, final boolean sampled, final int messageEvery) {
+        this.tracer = tracer;
+        this.session = session;
+        this.sampled = sampled;
+        this.messageEvery = messageEvery;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return child span of session, null if session not sampled
+     */
+    public Span startPhase(final String operation) {
+        if (!sampled) {
+            return null;
+        }
+        return tracer.buildSpan(operation).asChildOf(session).start();
+    }
+
+    /**
+     * start span of upstream handshake and put its context into handshake request headers,
+     * so backend's spans become its children
+     * @return null if session not sampled
+     */
+    public Span startUpstreamHandshake(final String uri, final HttpHeaders headers) {
+        if (!sampled) {
+            return null;
+        }
+        final Span span = tracer.buildSpan("upstream.handshake").asChildOf(session)
+                .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+                .withTag(Tags.HTTP_URL.getKey(), uri)
+                .start();
+        final Map<String, String> carrier = new HashMap<>();
+        tracer.inject(span.context(), Format.Builtin.HTTP_HEADERS, new TextMapInjectAdapter(carrier));
+        for (final Map.Entry<String, String> entry : carrier.entrySet()) {
+            headers.set(entry.getKey(), entry.getValue());
+        }
+        return span;
+    }
+
+    /**
+     * finish phase span, null safe
+     * @param cause null if phase succeeded
+     */
+    public static void finish(final Span span, final Throwable cause) {
+        if (null == span) {
+            return;
+        }
+        if (null != cause) {
+            Tags.ERROR.set(span, true);
+            span.setTag("error.message", String.valueOf(cause));
+        }
+        span.finish();
+    }
+
+    /**
+     * called at the first frame of every message
+     * @param direction "client" or "backend", the side message comes from
+     */
+    public void onMessage(final String direction, final int bytes) {
+        if (!sampled || messageEvery <= 0 || ++messages % messageEvery != 0) {
+            return;
+        }
+        tracer.buildSpan("ws.message").asChildOf(session)
+            .withTag("direction", direction)
+            .withTag("bytes", bytes)
+            .withTag("seq", messages)
+            .start()
+            .finish();
+    }
+
+    public void tag(final String key, final String value) {
+        session.setTag(key, value);
+    }
+
+    /**
+     * @param reason why session ended
+     */
+    public void finish(final String reason) {
+        if (!finished) {
+            finished = true;
+            session.setTag("close.reason", reason);
+            session.finish();
+        }
+    }
+
+    private final Tracer tracer;
+    private final Span session;
+    private final int messageEvery;
+    private final boolean sampled;
+    private long messages = 0;
+    private boolean finished = false;
+}
@@ -0,0 +1,71 @@
+package org.jocean.wsproxy.trace;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMapExtractAdapter;
+import io.opentracing.tag.Tags;
+
+/**
+ * creates a SessionTrace per proxied session, continuing the client's trace if its upgrade request carries one
+ */
+public class Tracing {
+
+    /**
+     * @param messageEvery in sampled sessions, trace every n-th message, 0 disables message spans
+     */
+    public Tracing(final Tracer tracer, final int messageEvery) {
+        this.tracer = tracer;
+        this.messageEvery = messageEvery;
+    }
+
+    public Tracer tracer() {
+        return tracer;
+    }
+
+    /**
+     * must be called on session's event loop
+     */
+    public SessionTrace newSession(final HttpRequest request, final String peer) {
+        final Tracer.SpanBuilder builder = tracer.buildSpan("ws.session")
+                .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER)
+                .withTag(Tags.HTTP_URL.getKey(), request.uri())
+                .withTag(Tags.PEER_HOSTNAME.getKey(), peer);
+        final SpanContext parent = extract(request);
+        if (null != parent) {
+            builder.asChildOf(parent);
+        }
+        final Span span = builder.start();
+        return new SessionTrace(tracer, span, isSampled(span), messageEvery);
+    }
+
+    /**
+     * opentracing 0.31 api doesn't expose the sampling decision, so it's read from jaeger's span context,
+     * the only tracer wsproxy ships with. spans of other tracers count as sampled, override to tell otherwise.
+     */
+    protected boolean isSampled(final Span span) {
+        return !(span.context() instanceof JaegerSpanContext) || ((JaegerSpanContext) span.context()).isSampled();
+    }
+
+    private SpanContext extract(final HttpRequest request) {
+        final Map<String, String> headers = new HashMap<>();
+        for (final Map.Entry<String, String> header : request.headers()) {
+            headers.put(header.getKey(), header.getValue());
+        }
+        try {
+            return tracer.extract(Format.Builtin.HTTP_HEADERS, new TextMapExtractAdapter(headers));
+        } catch (final RuntimeException e) {
+            // malformed trace headers from client, start a new trace
+            return null;
+        }
+    }
+
+    private final Tracer tracer;
+    private final int messageEvery;
+}
@@ -0,0 +1,227 @@
+package org.jocean.wsproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+public class IdlePolicyTest {
+
+    @Test
+    public void testReaderIdleThenAllIdle() throws Exception {
+        final ManualTimer timer = new ManualTimer();
+        final List<Object> events = new ArrayList<>();
+        final EmbeddedChannel channel = channel(new IdlePolicy(timer, 20, 60, 1001), events);
+
+        Thread.sleep(25);
+        timer.expire(channel);
+        assertEquals(1, events.size());
+        assertSame(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT, events.get(0));
+
+        Thread.sleep(40);
+        timer.expire(channel);
+        assertEquals(2, events.size());
+        // same idle period, not the first event of it
+        assertSame(IdleStateEvent.ALL_IDLE_STATE_EVENT, events.get(1));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testReadRearmsForRemainingTime() throws Exception {
+        final ManualTimer timer = new ManualTimer();
+        final List<Object> events = new ArrayList<>();
+        final EmbeddedChannel channel = channel(new IdlePolicy(timer, 50, 100, 1001), events);
+
+        Thread.sleep(10);
+        channel.writeInbound(Unpooled.buffer(1).writeByte(1));
+        timer.expire(channel);
+        assertTrue(events.isEmpty());
+        // re-armed for what is left of the ping interval since the read
+        assertTrue(timer.lastDelayNanos > 0);
+        assertTrue(timer.lastDelayNanos <= TimeUnit.MILLISECONDS.toNanos(50));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testFirstEventAgainAfterRead() throws Exception {
+        final ManualTimer timer = new ManualTimer();
+        final List<Object> events = new ArrayList<>();
+        final EmbeddedChannel channel = channel(new IdlePolicy(timer, 20, 200, 1001), events);
+
+        Thread.sleep(25);
+        timer.expire(channel);
+        Thread.sleep(25);
+        timer.expire(channel);
+        channel.writeInbound(Unpooled.buffer(1).writeByte(1));
+        Thread.sleep(25);
+        timer.expire(channel);
+
+        assertEquals(3, events.size());
+        assertSame(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT, events.get(0));
+        assertSame(IdleStateEvent.READER_IDLE_STATE_EVENT, events.get(1));
+        assertSame(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT, events.get(2));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testCloseCancelsTimeout() throws Exception {
+        final ManualTimer timer = new ManualTimer();
+        final List<Object> events = new ArrayList<>();
+        final EmbeddedChannel channel = channel(new IdlePolicy(timer, 20, 60, 1001), events);
+        final ManualTimeout armed = timer.last;
+
+        channel.close();
+        assertTrue(armed.isCancelled());
+        Thread.sleep(25);
+        // a timeout already expiring on timer's thread is ignored
+        armed.task().run(armed);
+        channel.runPendingTasks();
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void testWritesKeepReapOnlyChannel() throws Exception {
+        final ManualTimer timer = new ManualTimer();
+        final List<Object> events = new ArrayList<>();
+        final EmbeddedChannel channel = channel(new IdlePolicy(timer, 20, 60, 1001).reapOnly(), events);
+
+        // push only peer, never read from
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(25);
+            channel.writeAndFlush(Unpooled.buffer(1).writeByte(1));
+            timer.expire(channel);
+        }
+        assertTrue(events.isEmpty());
+
+        // writes stop, reaped as usual
+        Thread.sleep(25);
+        timer.expire(channel);
+        Thread.sleep(40);
+        timer.expire(channel);
+        assertEquals(2, events.size());
+        assertSame(IdleStateEvent.ALL_IDLE_STATE_EVENT, events.get(1));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testWritesIgnoredWithPings() throws Exception {
+        final ManualTimer timer = new ManualTimer();
+        final List<Object> events = new ArrayList<>();
+        final EmbeddedChannel channel = channel(new IdlePolicy(timer, 20, 60, 1001), events);
+
+        Thread.sleep(25);
+        channel.writeAndFlush(Unpooled.buffer(1).writeByte(1));
+        timer.expire(channel);
+        // pong answering the ping proves the peer alive, writes don't
+        assertEquals(1, events.size());
+        assertSame(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT, events.get(0));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testReapOnly() {
+        final IdlePolicy policy = new IdlePolicy(new ManualTimer(), 20, 60, 4000);
+        final IdlePolicy reapOnly = policy.reapOnly();
+        assertTrue(policy.isPing());
+        assertFalse(reapOnly.isPing());
+        assertEquals(4000, reapOnly.closeCode());
+        assertEquals(policy.toString().replace("ping=true", "ping=false"), reapOnly.toString());
+    }
+
+    @Test
+    public void testTimeoutNotBelowPing() {
+        assertTrue(new IdlePolicy(new ManualTimer(), 60, 20, 1001).toString().contains("timeoutMillis=60"));
+    }
+
+    private static EmbeddedChannel channel(final IdlePolicy policy, final List<Object> events) {
+        return new EmbeddedChannel(policy.newHandler(), new ChannelInboundHandlerAdapter() {
+            @Override
+            public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) {
+                events.add(evt);
+            }});
+    }
+
+    /**
+     * expires timeouts when told, so tests don't wait on a wheel tick
+     */
+    private static final class ManualTimer implements Timer {
+
+        @Override
+        public Timeout newTimeout(final TimerTask task, final long delay, final TimeUnit unit) {
+            last = new ManualTimeout(this, task);
+            lastDelayNanos = unit.toNanos(delay);
+            return last;
+        }
+
+        @Override
+        public Set<Timeout> stop() {
+            return Collections.emptySet();
+        }
+
+        void expire(final EmbeddedChannel channel) throws Exception {
+            final ManualTimeout timeout = last;
+            if (!timeout.isCancelled()) {
+                timeout.task().run(timeout);
+            }
+            channel.runPendingTasks();
+        }
+
+        ManualTimeout last;
+        long lastDelayNanos;
+    }
+
+    private static final class ManualTimeout implements Timeout {
+
+        ManualTimeout(final Timer timer, final TimerTask task) {
+            this.timer = timer;
+            this.task = task;
+        }
+
+        @Override
+        public Timer timer() {
+            return timer;
+        }
+
+        @Override
+        public TimerTask task() {
+            return task;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean cancel() {
+            cancelled = true;
+            return true;
+        }
+
+        private final Timer timer;
+        private final TimerTask task;
+        private boolean cancelled = false;
+    }
+}
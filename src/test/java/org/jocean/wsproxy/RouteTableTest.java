@@ -0,0 +1,144 @@
+package org.jocean.wsproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class RouteTableTest {
+
+    @Test
+    public void testLookupRegistered() {
+        final RouteTable routes = new RouteTable();
+        final WSNode a = node("chat", "room", 1);
+        final WSNode b = node("chat", "room", 2);
+        final WSNode c = node("chat", "lobby", 3);
+        routes.register(a);
+        routes.register(b);
+        routes.register(c);
+
+        assertEquals(2, routes.size());
+        assertEquals(2, routes.lookup("chat", "room").nodes().size());
+        assertEquals(1, routes.lookup("chat", "lobby").nodes().size());
+        assertNull(routes.lookup("chat", "none"));
+        assertNull(routes.lookup("none", "room"));
+    }
+
+    @Test
+    public void testRegisterTwiceKeepsOneNode() {
+        final RouteTable routes = new RouteTable();
+        final WSNode a = node("chat", "room", 1);
+        routes.register(a);
+        routes.register(a);
+
+        assertEquals(1, routes.lookup("chat", "room").nodes().size());
+    }
+
+    @Test
+    public void testUnregister() {
+        final RouteTable routes = new RouteTable();
+        final WSNode a = node("chat", "room", 1);
+        final WSNode b = node("chat", "room", 2);
+        routes.register(a);
+        routes.register(b);
+
+        routes.unregister(a);
+        assertEquals(1, routes.lookup("chat", "room").nodes().size());
+        assertSame(b, routes.lookup("chat", "room").nodes().get(0));
+
+        // unknown node is ignored
+        routes.unregister(node("chat", "room", 9));
+        assertEquals(1, routes.lookup("chat", "room").nodes().size());
+
+        routes.unregister(b);
+        assertNull(routes.lookup("chat", "room"));
+        assertEquals(0, routes.size());
+        assertTrue(routes.services().isEmpty());
+    }
+
+    @Test
+    public void testSnapshotNotChangedByLaterRegister() {
+        final RouteTable routes = new RouteTable();
+        routes.register(node("chat", "room", 1));
+        final WSService before = routes.lookup("chat", "room");
+        final List<WSService> services = routes.services();
+
+        routes.register(node("chat", "room", 2));
+        routes.register(node("game", "match", 3));
+
+        // readers holding the old snapshot see it unchanged
+        assertEquals(1, before.nodes().size());
+        assertEquals(1, services.size());
+        final WSService after = routes.lookup("chat", "room");
+        assertNotSame(before, after);
+        assertEquals(2, after.nodes().size());
+        assertEquals(2, routes.services().size());
+    }
+
+    @Test
+    public void testOtherHostnamesKeptOnRebuild() {
+        final RouteTable routes = new RouteTable();
+        final WSNode game = node("game", "match", 1);
+        routes.register(game);
+        final WSService match = routes.lookup("game", "match");
+
+        routes.register(node("chat", "room", 2));
+        routes.unregister(routes.lookup("chat", "room").nodes().get(0));
+
+        // untouched routes are carried over as is
+        assertSame(match, routes.lookup("game", "match"));
+    }
+
+    @Test
+    public void testConcurrentLookupWhileRegistering() throws Exception {
+        final RouteTable routes = new RouteTable();
+        routes.register(node("chat", "room", 0));
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (done.getCount() > 0) {
+                        final WSService service = routes.lookup("chat", "room");
+                        if (null == service || service.nodes().isEmpty()) {
+                            throw new AssertionError("route lost while registering");
+                        }
+                    }
+                } catch (final Throwable e) {
+                    error.set(e);
+                }
+            }});
+        reader.start();
+        for (int i = 1; i <= 200; i++) {
+            final WSNode node = node("chat", "room", i);
+            routes.register(node);
+            routes.register(node("other", "svc" + i, i));
+            routes.unregister(node);
+        }
+        done.countDown();
+        reader.join();
+
+        assertNull(error.get());
+        assertEquals(1, routes.lookup("chat", "room").nodes().size());
+        assertEquals(201, routes.size());
+    }
+
+    static WSNode node(final String hostname, final String service, final int port) {
+        final WSNode node = new WSNode();
+        node.hostname = hostname;
+        node.service = service;
+        node.ip = "127.0.0.1";
+        node.port = port;
+        node.balance = "round-robin";
+        node.hashKey = "path";
+        return node;
+    }
+}
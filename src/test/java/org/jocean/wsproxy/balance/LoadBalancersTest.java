@@ -0,0 +1,162 @@
+package org.jocean.wsproxy.balance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jocean.wsproxy.WSNode;
+import org.junit.Test;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+public class LoadBalancersTest {
+
+    @Test
+    public void testSingleNode() {
+        final WSNode node = node(1);
+        final LoadBalancer balancer = LoadBalancers.create("consistent-hash", "path", Arrays.asList(node));
+        assertSame(node, balancer.select(request("/a")));
+        assertSame(node, balancer.select(request("/b")));
+    }
+
+    @Test
+    public void testUnknownStrategyIsRoundRobin() {
+        final List<WSNode> nodes = nodes(3);
+        assertTrue(LoadBalancers.create("random", "path", nodes) instanceof RoundRobinBalancer);
+    }
+
+    @Test
+    public void testRoundRobinEven() {
+        final List<WSNode> nodes = nodes(3);
+        final LoadBalancer balancer = LoadBalancers.create("round-robin", "path", nodes);
+        final Map<WSNode, Integer> counts = count(balancer, 300);
+        for (final WSNode node : nodes) {
+            assertEquals(Integer.valueOf(100), counts.get(node));
+        }
+    }
+
+    @Test
+    public void testLeastActive() {
+        final List<WSNode> nodes = nodes(4);
+        open(nodes.get(0), 3);
+        open(nodes.get(1), 1);
+        open(nodes.get(2), 2);
+        open(nodes.get(3), 5);
+        final LoadBalancer balancer = LoadBalancers.create("least-active", "path", nodes);
+        for (int i = 0; i < 50; i++) {
+            assertSame(nodes.get(1), balancer.select(request("/")));
+        }
+    }
+
+    @Test
+    public void testPowerOfTwoChoicesAvoidsMostLoaded() {
+        final List<WSNode> nodes = nodes(3);
+        open(nodes.get(0), 1);
+        open(nodes.get(1), 2);
+        open(nodes.get(2), 10);
+        final LoadBalancer balancer = LoadBalancers.create("p2c", "path", nodes);
+        final Map<WSNode, Integer> counts = count(balancer, 300);
+        // most loaded node always loses its comparison
+        assertNull(counts.get(nodes.get(2)));
+        assertTrue(counts.get(nodes.get(0)) > counts.get(nodes.get(1)));
+    }
+
+    @Test
+    public void testConsistentHashSticky() {
+        final List<WSNode> nodes = nodes(5);
+        final LoadBalancer balancer = LoadBalancers.create("consistent-hash", "path", nodes);
+        for (int i = 0; i < 100; i++) {
+            // query is not part of path key
+            assertSame(balancer.select(request("/room/" + i)), balancer.select(request("/room/" + i + "?t=1")));
+        }
+        // keys spread over all nodes
+        final Map<WSNode, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            final WSNode node = balancer.select(request("/room/" + i));
+            counts.put(node, null != counts.get(node) ? counts.get(node) + 1 : 1);
+        }
+        assertEquals(5, counts.size());
+    }
+
+    @Test
+    public void testConsistentHashMovesOnlyRemovedNodeKeys() {
+        final List<WSNode> nodes = nodes(5);
+        final LoadBalancer before = LoadBalancers.create("consistent-hash", "path", nodes);
+        final WSNode removed = nodes.get(2);
+        final List<WSNode> remains = new ArrayList<>(nodes);
+        remains.remove(removed);
+        final LoadBalancer after = LoadBalancers.create("consistent-hash", "path", remains);
+
+        for (int i = 0; i < 1000; i++) {
+            final HttpRequest request = request("/room/" + i);
+            final WSNode was = before.select(request);
+            if (was != removed) {
+                assertSame(was, after.select(request));
+            } else {
+                assertNotSame(removed, after.select(request));
+            }
+        }
+    }
+
+    @Test
+    public void testConsistentHashByHeaderAndQuery() {
+        final List<WSNode> nodes = nodes(5);
+        final LoadBalancer byHeader = LoadBalancers.create("consistent-hash", "header:x-user", nodes);
+        final LoadBalancer byQuery = LoadBalancers.create("consistent-hash", "query:user", nodes);
+        for (int i = 0; i < 100; i++) {
+            final HttpRequest a = request("/a");
+            final HttpRequest b = request("/b");
+            a.headers().set("x-user", "u" + i);
+            b.headers().set("x-user", "u" + i);
+            assertSame(byHeader.select(a), byHeader.select(b));
+            assertSame(byQuery.select(request("/a?user=u" + i)), byQuery.select(request("/b?x=1&user=u" + i)));
+        }
+    }
+
+    private static Map<WSNode, Integer> count(final LoadBalancer balancer, final int times) {
+        final Map<WSNode, Integer> counts = new HashMap<>();
+        for (int i = 0; i < times; i++) {
+            final WSNode node = balancer.select(request("/"));
+            counts.put(node, null != counts.get(node) ? counts.get(node) + 1 : 1);
+        }
+        return counts;
+    }
+
+    private static void open(final WSNode node, final int sessions) {
+        for (int i = 0; i < sessions; i++) {
+            node.onSessionOpened();
+        }
+    }
+
+    private static HttpRequest request(final String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+
+    private static List<WSNode> nodes(final int count) {
+        final List<WSNode> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(node(9000 + i));
+        }
+        return nodes;
+    }
+
+    private static WSNode node(final int port) {
+        final WSNode node = new WSNode();
+        node.hostname = "chat";
+        node.service = "room";
+        node.ip = "10.0.0.1";
+        node.port = port;
+        return node;
+    }
+}
@@ -0,0 +1,185 @@
+package org.jocean.wsproxy.deflate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+
+public class DeflateCodecTest {
+
+    private static final DeflateConfig CONFIG = new DeflateConfig(6, 64, true, 4, 64 * 1024);
+
+    @Test
+    public void testRoundTrip() {
+        final byte[] payload = compressible(4096);
+        final WebSocketFrame compressed = compress(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(payload)));
+        assertTrue((compressed.rsv() & WebSocketExtension.RSV1) != 0);
+        assertTrue(compressed.content().readableBytes() < payload.length);
+
+        final WebSocketFrame inflated = inflate(compressed);
+        assertEquals(0, inflated.rsv() & WebSocketExtension.RSV1);
+        assertTrue(inflated instanceof BinaryWebSocketFrame);
+        assertEquals(Unpooled.wrappedBuffer(payload), inflated.content());
+        inflated.release();
+    }
+
+    @Test
+    public void testSmallMessagePlain() {
+        final WebSocketFrame frame = compress(new TextWebSocketFrame("tiny"));
+        assertEquals(0, frame.rsv());
+        assertEquals("tiny", ((TextWebSocketFrame) frame).text());
+        frame.release();
+    }
+
+    @Test
+    public void testFragmentedRoundTrip() {
+        final byte[] first = compressible(1000);
+        final byte[] second = compressible(3000);
+        final EmbeddedChannel encoder = new EmbeddedChannel(new DeflateFrameEncoder(CONFIG, true));
+        encoder.writeOutbound(new TextWebSocketFrame(false, 0, Unpooled.wrappedBuffer(first)),
+                new ContinuationWebSocketFrame(true, 0, Unpooled.wrappedBuffer(second)));
+        final WebSocketFrame c1 = encoder.readOutbound();
+        final WebSocketFrame c2 = encoder.readOutbound();
+        // only first frame of a message carries RSV1
+        assertTrue((c1.rsv() & WebSocketExtension.RSV1) != 0);
+        assertEquals(0, c2.rsv() & WebSocketExtension.RSV1);
+
+        final EmbeddedChannel decoder = new EmbeddedChannel(new DeflateFrameDecoder(CONFIG, true));
+        decoder.writeInbound(c1, c2);
+        final WebSocketFrame p1 = decoder.readInbound();
+        final WebSocketFrame p2 = decoder.readInbound();
+        assertEquals(Unpooled.wrappedBuffer(first), p1.content());
+        assertEquals(Unpooled.wrappedBuffer(second), p2.content());
+        assertFalse(p1.isFinalFragment());
+        assertTrue(p2.isFinalFragment());
+        p1.release();
+        p2.release();
+        assertFalse(encoder.finish());
+        assertFalse(decoder.finish());
+    }
+
+    @Test
+    public void testPassthroughRelaysCompressedAsIs() {
+        final byte[] payload = compressible(4096);
+        final WebSocketFrame compressed = compress(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(payload)));
+        final ByteBuf wire = compressed.content().copy();
+
+        // upstream leg: decoder passes compressed message through
+        final DeflateFrameDecoder upDecoder = new DeflateFrameDecoder(CONFIG, true);
+        upDecoder.setPassthrough(true);
+        final EmbeddedChannel upstream = new EmbeddedChannel(upDecoder);
+        upstream.writeInbound(compressed);
+        final WebSocketFrame relayed = upstream.readInbound();
+        assertTrue((relayed.rsv() & WebSocketExtension.RSV1) != 0);
+        assertEquals(wire, relayed.content());
+
+        // downstream leg: encoder sends RSV1 frame untouched
+        final EmbeddedChannel downstream = new EmbeddedChannel(new DeflateFrameEncoder(CONFIG, true));
+        downstream.writeOutbound(relayed);
+        final WebSocketFrame sent = downstream.readOutbound();
+        assertEquals(wire, sent.content());
+        wire.release();
+
+        // and the client still inflates it
+        final WebSocketFrame inflated = inflate(sent);
+        assertEquals(Unpooled.wrappedBuffer(payload), inflated.content());
+        inflated.release();
+    }
+
+    @Test
+    public void testPassthroughNeedsPeerNoContext() {
+        final DeflateFrameDecoder decoder = new DeflateFrameDecoder(CONFIG, false);
+        decoder.setPassthrough(true);
+        final EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        final byte[] payload = compressible(4096);
+        channel.writeInbound(compress(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(payload))));
+        final WebSocketFrame frame = channel.readInbound();
+        // still inflated, peer's window may refer to earlier messages
+        assertEquals(0, frame.rsv() & WebSocketExtension.RSV1);
+        assertEquals(Unpooled.wrappedBuffer(payload), frame.content());
+        frame.release();
+    }
+
+    @Test
+    public void testLinkPassesOnlyUpstreamWithoutFromDownstream() {
+        final EmbeddedChannel downstream = new EmbeddedChannel(new DeflateFrameDecoder(CONFIG, true),
+                new DeflateFrameEncoder(CONFIG, true));
+        final EmbeddedChannel upstream = new EmbeddedChannel(new DeflateFrameDecoder(CONFIG, true),
+                new DeflateFrameEncoder(CONFIG, true));
+        DeflatePassthrough.link(downstream, upstream, false);
+
+        upstream.writeInbound(compress(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(compressible(4096)))));
+        final WebSocketFrame fromUpstream = upstream.readInbound();
+        assertTrue((fromUpstream.rsv() & WebSocketExtension.RSV1) != 0);
+        fromUpstream.release();
+
+        downstream.writeInbound(compress(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(compressible(4096)))));
+        final WebSocketFrame fromDownstream = downstream.readInbound();
+        assertEquals(0, fromDownstream.rsv() & WebSocketExtension.RSV1);
+        fromDownstream.release();
+    }
+
+    @Test
+    public void testMaxInflatedSizePerMessage() {
+        final DeflateConfig config = new DeflateConfig(6, 0, true, 4, 8 * 1024);
+        final EmbeddedChannel encoder = new EmbeddedChannel(new DeflateFrameEncoder(config, true));
+        // every fragment below the limit, whole message above it
+        encoder.writeOutbound(new BinaryWebSocketFrame(false, 0, Unpooled.wrappedBuffer(compressible(4096))),
+                new ContinuationWebSocketFrame(false, 0, Unpooled.wrappedBuffer(compressible(4096))),
+                new ContinuationWebSocketFrame(true, 0, Unpooled.wrappedBuffer(compressible(4096))));
+
+        final EmbeddedChannel decoder = new EmbeddedChannel(new DeflateFrameDecoder(config, true));
+        final WebSocketFrame c1 = encoder.readOutbound();
+        final WebSocketFrame c2 = encoder.readOutbound();
+        final WebSocketFrame c3 = encoder.readOutbound();
+        decoder.writeInbound(c1, c2);
+        try {
+            decoder.writeInbound(c3);
+            fail("message over maxInflatedSize inflated");
+        } catch (final TooLongFrameException e) {
+            // expected
+        }
+        decoder.finishAndReleaseAll();
+    }
+
+    private static WebSocketFrame compress(final WebSocketFrame frame) {
+        final EmbeddedChannel channel = new EmbeddedChannel(new DeflateFrameEncoder(CONFIG, true));
+        channel.writeOutbound(frame);
+        final WebSocketFrame compressed = channel.readOutbound();
+        assertFalse(channel.finish());
+        return compressed;
+    }
+
+    private static WebSocketFrame inflate(final WebSocketFrame frame) {
+        final EmbeddedChannel channel = new EmbeddedChannel(new DeflateFrameDecoder(CONFIG, true));
+        channel.writeInbound(frame);
+        final WebSocketFrame inflated = channel.readInbound();
+        assertFalse(channel.finish());
+        return inflated;
+    }
+
+    // repetitive text with some noise, compresses well but not trivially
+    private static byte[] compressible(final int size) {
+        final Random random = new Random(size);
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (random.nextInt(8) == 0 ? 'a' + random.nextInt(26) : "hello websocket "
+                    .charAt(i % 16));
+        }
+        return bytes;
+    }
+}
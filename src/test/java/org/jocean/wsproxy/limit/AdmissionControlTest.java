@@ -0,0 +1,103 @@
+package org.jocean.wsproxy.limit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void testMaxSessions() {
+        final AdmissionControl admission = new AdmissionControl(1, 2, 0, 0, 0, 0, 0, 0);
+        assertTrue(admission.tryAdmit());
+        assertTrue(admission.tryAdmit());
+        assertFalse(admission.tryAdmit());
+        assertEquals(2, admission.sessions());
+
+        admission.release();
+        assertEquals(1, admission.sessions());
+        assertTrue(admission.tryAdmit());
+    }
+
+    @Test
+    public void testUnlimitedSessions() {
+        final AdmissionControl admission = new AdmissionControl(1, 0, 0, 0, 0, 0, 0, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(admission.tryAdmit());
+        }
+        assertEquals(1000, admission.sessions());
+    }
+
+    @Test
+    public void testNoLimiterWithoutRates() {
+        assertNull(new AdmissionControl(1, 10, 0, 0, 0, 0, 0, 0).newSession("10.0.0.1", "room"));
+    }
+
+    @Test
+    public void testSessionMessagesCountedOnce() {
+        final AdmissionControl admission = new AdmissionControl(1, 0, 2, 0, 0, 0, 0, 0);
+        final SessionLimiter limiter = admission.newSession("10.0.0.1", "room");
+        final long now = System.nanoTime();
+        assertEquals(0, limiter.onFrame(true, 10, now));
+        // fragments of the same message are free
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.onFrame(false, 10, now));
+        }
+        assertEquals(0, limiter.onFrame(true, 10, now));
+        assertTrue(limiter.onFrame(true, 10, now) > 0);
+        limiter.release();
+    }
+
+    @Test
+    public void testIpBucketSharedOnLoop() {
+        final AdmissionControl admission = new AdmissionControl(1, 0, 0, 0, 0, 1000, 0, 0);
+        final SessionLimiter a = admission.newSession("10.0.0.1", "room");
+        final SessionLimiter b = admission.newSession("10.0.0.1", "lobby");
+        final SessionLimiter other = admission.newSession("10.0.0.2", "room");
+        final long now = System.nanoTime();
+
+        assertEquals(0, a.onFrame(true, 1000, now));
+        // same source ip pays from the bucket a emptied
+        assertTrue(b.onFrame(true, 100, now) > 0);
+        assertEquals(0, other.onFrame(true, 1000, now));
+        a.release();
+        b.release();
+        other.release();
+    }
+
+    @Test
+    public void testServiceRateSplitAcrossLoops() {
+        final AdmissionControl admission = new AdmissionControl(4, 0, 0, 0, 0, 0, 20, 0);
+        final SessionLimiter limiter = admission.newSession("10.0.0.1", "room");
+        final long now = System.nanoTime();
+        // 20 msgs/sec over 4 loops, 5 on this one
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.onFrame(true, 1, now));
+        }
+        assertTrue(limiter.onFrame(true, 1, now) > 0);
+        limiter.release();
+    }
+
+    @Test
+    public void testSharedBucketDroppedWithLastSession() {
+        final AdmissionControl admission = new AdmissionControl(1, 0, 0, 0, 0, 1000, 0, 0);
+        final SessionLimiter a = admission.newSession("10.0.0.1", "room");
+        final SessionLimiter b = admission.newSession("10.0.0.1", "room");
+        final long now = System.nanoTime();
+        assertEquals(0, a.onFrame(true, 1000, now));
+        a.release();
+        // still referenced by b, debt is kept
+        final SessionLimiter c = admission.newSession("10.0.0.1", "room");
+        assertTrue(c.onFrame(true, 100, now) > 0);
+        b.release();
+        c.release();
+
+        // last reference gone, next session starts with a full bucket
+        final SessionLimiter d = admission.newSession("10.0.0.1", "room");
+        assertEquals(0, d.onFrame(true, 1000, System.nanoTime()));
+        d.release();
+    }
+}
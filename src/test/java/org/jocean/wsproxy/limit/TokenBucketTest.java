@@ -0,0 +1,49 @@
+package org.jocean.wsproxy.limit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testStartsFull() {
+        final TokenBucket bucket = new TokenBucket(10, 0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, bucket.consume(1, 0));
+        }
+        // one token comes every 100ms
+        assertEquals(SECOND / 10, bucket.consume(1, 0), 1);
+    }
+
+    @Test
+    public void testDebtGrowsAndIsPaidBack() {
+        final TokenBucket bucket = new TokenBucket(1000, 0);
+        // a frame larger than the capacity is still taken
+        assertEquals(2 * SECOND, bucket.consume(3000, 0), 1);
+        assertEquals(SECOND, bucket.consume(0, SECOND), 1);
+        assertEquals(0, bucket.consume(0, 2 * SECOND));
+    }
+
+    @Test
+    public void testRefillCappedAtCapacity() {
+        final TokenBucket bucket = new TokenBucket(100, 0);
+        assertEquals(0, bucket.consume(100, 0));
+        // idle for a long time, still one second of tokens at most
+        assertEquals(0, bucket.consume(100, 60 * SECOND));
+        assertEquals(SECOND / 100, bucket.consume(1, 60 * SECOND), 1);
+    }
+
+    @Test
+    public void testPartialRefill() {
+        final TokenBucket bucket = new TokenBucket(100, 0);
+        assertEquals(0, bucket.consume(100, 0));
+        // half a second refills half the capacity
+        assertEquals(0, bucket.consume(50, SECOND / 2));
+        assertEquals(SECOND / 100, bucket.consume(1, SECOND / 2), 1);
+    }
+}
@@ -0,0 +1,127 @@
+package org.jocean.wsproxy.mux;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+
+public class MuxCodecTest {
+
+    private static final ByteBufAllocator ALLOC = ByteBufAllocator.DEFAULT;
+
+    @Test
+    public void testOpen() {
+        final WebSocketFrame envelope = MuxCodec.open(ALLOC, 42L, "/chat/room?user=张");
+        try {
+            assertTrue(MuxCodec.isValid(envelope.content()));
+            assertEquals(MuxCodec.OPEN, MuxCodec.typeOf(envelope.content()));
+            assertEquals(42L, MuxCodec.sessionOf(envelope.content()));
+            assertEquals("/chat/room?user=张", MuxCodec.pathOf(envelope.content()));
+        } finally {
+            envelope.release();
+        }
+    }
+
+    @Test
+    public void testClose() {
+        final WebSocketFrame envelope = MuxCodec.close(ALLOC, Long.MAX_VALUE, 1008, "too slow");
+        try {
+            assertEquals(MuxCodec.CLOSE, MuxCodec.typeOf(envelope.content()));
+            assertEquals(Long.MAX_VALUE, MuxCodec.sessionOf(envelope.content()));
+            assertEquals(1008, MuxCodec.closeCodeOf(envelope.content()));
+            assertEquals("too slow", MuxCodec.closeReasonOf(envelope.content()));
+        } finally {
+            envelope.release();
+        }
+    }
+
+    @Test
+    public void testCloseWithoutReason() {
+        final WebSocketFrame envelope = MuxCodec.close(ALLOC, 1L, 1000, null);
+        try {
+            assertEquals(1000, MuxCodec.closeCodeOf(envelope.content()));
+            assertEquals("", MuxCodec.closeReasonOf(envelope.content()));
+        } finally {
+            envelope.release();
+        }
+    }
+
+    @Test
+    public void testDataRoundTrip() {
+        assertRoundTrip(new TextWebSocketFrame(false, 0, "hello"), TextWebSocketFrame.class, false);
+        assertRoundTrip(new ContinuationWebSocketFrame(true, 0, "world"), ContinuationWebSocketFrame.class, true);
+        assertRoundTrip(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(new byte[] { 0, 1, 2, (byte) 0xff })),
+                BinaryWebSocketFrame.class, true);
+        assertRoundTrip(new BinaryWebSocketFrame(Unpooled.EMPTY_BUFFER), BinaryWebSocketFrame.class, true);
+        assertRoundTrip(new PingWebSocketFrame(Unpooled.copiedBuffer("ping", CharsetUtil.UTF_8)),
+                PingWebSocketFrame.class, true);
+        assertRoundTrip(new PongWebSocketFrame(Unpooled.copiedBuffer("pong", CharsetUtil.UTF_8)),
+                PongWebSocketFrame.class, true);
+    }
+
+    @Test
+    public void testDataKeepsSourceFrame() {
+        final WebSocketFrame frame = new TextWebSocketFrame("hello");
+        final WebSocketFrame envelope = MuxCodec.data(ALLOC, 7L, frame);
+        envelope.release();
+        // content was retained for the envelope, source frame still owned by caller
+        assertEquals(1, frame.refCnt());
+        frame.release();
+    }
+
+    @Test
+    public void testUnknownOpcode() {
+        final ByteBuf envelope = Unpooled.buffer().writeByte(MuxCodec.DATA).writeLong(9L).writeByte(0x80 | 0x3)
+                .writeBytes(new byte[] { 1, 2, 3 });
+        assertNull(MuxCodec.frameOf(envelope));
+        assertEquals(1, envelope.refCnt());
+        envelope.release();
+    }
+
+    @Test
+    public void testTruncated() {
+        final ByteBuf header = Unpooled.buffer().writeByte(MuxCodec.DATA).writeInt(1);
+        assertFalse(MuxCodec.isValid(header));
+        header.release();
+
+        final ByteBuf noFlags = Unpooled.buffer().writeByte(MuxCodec.DATA).writeLong(1L);
+        assertTrue(MuxCodec.isValid(noFlags));
+        assertNull(MuxCodec.frameOf(noFlags));
+        noFlags.release();
+    }
+
+    private static void assertRoundTrip(final WebSocketFrame frame, final Class<?> type, final boolean fin) {
+        final byte[] payload = new byte[frame.content().readableBytes()];
+        frame.content().getBytes(frame.content().readerIndex(), payload);
+        final WebSocketFrame envelope = MuxCodec.data(ALLOC, 3L, frame);
+        frame.release();
+        try {
+            assertEquals(MuxCodec.DATA, MuxCodec.typeOf(envelope.content()));
+            assertEquals(3L, MuxCodec.sessionOf(envelope.content()));
+            final WebSocketFrame decoded = MuxCodec.frameOf(envelope.content());
+            try {
+                assertTrue(type.isInstance(decoded));
+                assertEquals(fin, decoded.isFinalFragment());
+                assertEquals(Unpooled.wrappedBuffer(payload), decoded.content());
+            } finally {
+                decoded.release();
+            }
+        } finally {
+            envelope.release();
+        }
+        assertEquals(0, envelope.refCnt());
+    }
+}
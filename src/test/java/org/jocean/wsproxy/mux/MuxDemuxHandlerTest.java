@@ -0,0 +1,75 @@
+package org.jocean.wsproxy.mux;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+public class MuxDemuxHandlerTest {
+
+    private static final ByteBufAllocator ALLOC = ByteBufAllocator.DEFAULT;
+
+    @Test
+    public void testDuplicateOpenRefused() {
+        final Recorder recorder = new Recorder();
+        final MuxDemuxHandler demux = new MuxDemuxHandler(recorder);
+        final EmbeddedChannel channel = new EmbeddedChannel(demux);
+
+        channel.writeInbound(MuxCodec.open(ALLOC, 5L, "/chat/a"));
+        channel.writeInbound(MuxCodec.open(ALLOC, 5L, "/chat/b"));
+
+        // new stream refused with a protocol error
+        final WebSocketFrame close = channel.readOutbound();
+        assertEquals(MuxCodec.CLOSE, MuxCodec.typeOf(close.content()));
+        assertEquals(5L, MuxCodec.sessionOf(close.content()));
+        assertEquals(1002, MuxCodec.closeCodeOf(close.content()));
+        close.release();
+        assertNull(channel.readOutbound());
+
+        // existing one kept and still receives its frames
+        assertEquals(1, recorder.opened.size());
+        assertEquals(1, demux.streamCount());
+        assertTrue(recorder.closed.isEmpty());
+        final TextWebSocketFrame frame = new TextWebSocketFrame("hello");
+        channel.writeInbound(MuxCodec.data(ALLOC, 5L, frame));
+        frame.release();
+        assertEquals(1, recorder.frames.size());
+        assertSame(recorder.opened.get(0), recorder.frames.get(0));
+        assertEquals("/chat/a", recorder.paths.get(0));
+        channel.finishAndReleaseAll();
+    }
+
+    private static final class Recorder implements MuxListener {
+
+        @Override
+        public void onOpen(final MuxStream stream, final String path) {
+            opened.add(stream);
+            paths.add(path);
+        }
+
+        @Override
+        public void onFrame(final MuxStream stream, final WebSocketFrame frame) {
+            frames.add(stream);
+        }
+
+        @Override
+        public void onClose(final MuxStream stream, final int code, final String reason) {
+            closed.add(stream);
+        }
+
+        final List<MuxStream> opened = new ArrayList<>();
+        final List<String> paths = new ArrayList<>();
+        final List<MuxStream> frames = new ArrayList<>();
+        final List<MuxStream> closed = new ArrayList<>();
+    }
+}
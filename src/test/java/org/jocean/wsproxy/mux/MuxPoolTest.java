@@ -0,0 +1,95 @@
+package org.jocean.wsproxy.mux;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.URI;
+
+import org.jocean.wsproxy.ChannelTuning;
+import org.jocean.wsproxy.WSNode;
+import org.jocean.wsproxy.health.HealthPolicy;
+import org.junit.After;
+import org.junit.Test;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.util.concurrent.Future;
+
+public class MuxPoolTest {
+
+    private final NioEventLoopGroup group = new NioEventLoopGroup(1);
+
+    @After
+    public void tearDown() {
+        group.shutdownGracefully().awaitUninterruptibly();
+    }
+
+    @Test
+    public void testRefusedConnectFreesSlotAndFeedsHealth() throws Exception {
+        final int port = freePort();
+        final WSNode node = new WSNode();
+        node.hostname = "chat";
+        node.service = "room";
+        node.ip = "127.0.0.1";
+        node.port = port;
+        node.muxConnections = 1;
+        final MuxPool pool = new MuxPool(node, URI.create("ws://127.0.0.1:" + port + "/mux"),
+                new ChannelTuning(true, false, 0, 0, 32 * 1024, 64 * 1024), null, 1000, 64 * 1024,
+                new HealthPolicy(2, 100, 100));
+        final Channel downstream = new NioSocketChannel();
+        group.next().register(downstream).sync();
+
+        assertFalse(open(pool, downstream).isSuccess());
+        assertEquals(1, node.health().consecutiveFailures());
+        // every refused connect is a new attempt reported to health, the second ejects the node
+        assertFalse(open(pool, downstream).isSuccess());
+        assertEquals(1, node.health().ejections());
+        assertFalse(node.health().isAvailable());
+        Thread.sleep(150);
+
+        // backend recovers, the next session connects afresh
+        final Channel server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(final Channel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(8192),
+                                new WebSocketServerProtocolHandler("/mux"));
+                    }})
+                .bind("127.0.0.1", port).sync().channel();
+        try {
+            assertTrue(open(pool, downstream).isSuccess());
+            // recovered node is back to a clean record
+            assertTrue(node.health().isAvailable());
+            assertEquals(0, node.health().ejections());
+            assertEquals(1, pool.sessionCount());
+        } finally {
+            pool.close();
+            server.close().sync();
+            downstream.close().sync();
+        }
+    }
+
+    private static Future<Void> open(final MuxPool pool, final Channel downstream) throws Exception {
+        return pool.open(downstream, "/chat/room").readyFuture().await();
+    }
+
+    private static int freePort() throws Exception {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
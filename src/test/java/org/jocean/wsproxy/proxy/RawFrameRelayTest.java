@@ -0,0 +1,194 @@
+package org.jocean.wsproxy.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jocean.wsproxy.FlushPolicy;
+import org.jocean.wsproxy.ProxyMetrics;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+
+public class RawFrameRelayTest {
+
+    private static final int MASK = 0x37fa213d;
+
+    @Test
+    public void testReplacesFrameDecoder() {
+        final EmbeddedChannel source = source();
+        final RawFrameRelay relay = relay(new ProxyMetrics(), 1024, false).installOn(source.pipeline());
+        assertSame(relay, source.pipeline().get("raw-relay"));
+        assertNull(source.pipeline().get(WebSocket13FrameDecoder.class));
+    }
+
+    @Test
+    public void testRelayedAsIs() {
+        final EmbeddedChannel source = source();
+        final EmbeddedChannel peer = new EmbeddedChannel();
+        final ProxyMetrics metrics = new ProxyMetrics();
+        relay(metrics, 1024, false).installOn(source.pipeline()).attach(peer);
+
+        final ByteBuf frame = encode(0x2, MASK, new byte[300]);
+        source.writeInbound(frame);
+        // same buffer, still masked
+        assertSame(frame, peer.readOutbound());
+        assertEquals(1, frame.refCnt());
+        frame.release();
+        assertEquals(Long.valueOf(1), counters(metrics).get("frames.client"));
+    }
+
+    @Test
+    public void testFramesCountedAcrossReads() {
+        final EmbeddedChannel source = source();
+        final EmbeddedChannel peer = new EmbeddedChannel();
+        final ProxyMetrics metrics = new ProxyMetrics();
+        relay(metrics, 1024 * 1024, true).installOn(source.pipeline()).attach(peer);
+
+        final ByteBuf all = Unpooled.buffer();
+        all.writeBytes(encode(0x1, 0, new byte[10]));
+        all.writeBytes(encode(0x2, 0, new byte[1000]));
+        all.writeBytes(encode(0x2, 0, new byte[70000]));
+        final int total = all.readableBytes();
+        // splits headers, extended lengths and payloads
+        final int[] sizes = { 1, 12, 3, 500, 9, 4096 };
+        for (int i = 0; all.isReadable(); i++) {
+            source.writeInbound(all.readRetainedSlice(Math.min(sizes[i % sizes.length], all.readableBytes())));
+        }
+        all.release();
+
+        final Map<String, Long> counters = counters(metrics);
+        assertEquals(Long.valueOf(3), counters.get("frames.backend"));
+        assertEquals(Long.valueOf(total), counters.get("bytes.backend"));
+        assertTrue(peer.isOpen());
+        peer.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testPendingUntilAttached() {
+        final EmbeddedChannel source = source();
+        final EmbeddedChannel peer = new EmbeddedChannel();
+        final RawFrameRelay relay = relay(new ProxyMetrics(), 1024, false).installOn(source.pipeline());
+
+        final ByteBuf first = encode(0x1, MASK, new byte[10]);
+        final ByteBuf second = encode(0x2, MASK, new byte[20]);
+        source.writeInbound(first);
+        source.writeInbound(second);
+        assertNull(peer.readOutbound());
+
+        relay.attach(peer);
+        assertSame(first, peer.readOutbound());
+        assertSame(second, peer.readOutbound());
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void testPendingLimitClosesSource() {
+        final EmbeddedChannel source = source();
+        relay(new ProxyMetrics(), 100, false).installOn(source.pipeline());
+
+        final ByteBuf first = encode(0x2, MASK, new byte[60]);
+        final ByteBuf second = encode(0x2, MASK, new byte[60]);
+        source.writeInbound(first);
+        assertTrue(source.isOpen());
+        source.writeInbound(second);
+        assertFalse(source.isOpen());
+        assertEquals(0, first.refCnt());
+        assertEquals(0, second.refCnt());
+    }
+
+    @Test
+    public void testCloseFrameClosesPeerOnUpstreamSide() {
+        final EmbeddedChannel source = source();
+        final EmbeddedChannel peer = new EmbeddedChannel();
+        relay(new ProxyMetrics(), 1024, true).installOn(source.pipeline()).attach(peer);
+
+        source.writeInbound(encode(0x8, 0, new byte[] { 0x03, (byte) 0xe8 }));
+        assertFalse(peer.isOpen());
+        peer.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testCloseFrameKeepsPeerOnDownstreamSide() {
+        final EmbeddedChannel source = source();
+        final EmbeddedChannel peer = new EmbeddedChannel();
+        relay(new ProxyMetrics(), 1024, false).installOn(source.pipeline()).attach(peer);
+
+        source.writeInbound(encode(0x8, MASK, new byte[] { 0x03, (byte) 0xe8 }));
+        // backend answers the close handshake, it closes the connection
+        assertTrue(peer.isOpen());
+        peer.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testCloseOpcodeInPayloadIgnored() {
+        final EmbeddedChannel source = source();
+        final EmbeddedChannel peer = new EmbeddedChannel();
+        relay(new ProxyMetrics(), 1024, true).installOn(source.pipeline()).attach(peer);
+
+        final byte[] payload = new byte[64];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) 0x88;
+        }
+        final ByteBuf frame = encode(0x2, 0, payload);
+        source.writeInbound(frame.readRetainedSlice(5));
+        source.writeInbound(frame);
+        assertTrue(peer.isOpen());
+        peer.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testInactiveClosesPeerOnUpstreamSide() {
+        final EmbeddedChannel source = source();
+        final EmbeddedChannel peer = new EmbeddedChannel();
+        relay(new ProxyMetrics(), 1024, true).installOn(source.pipeline()).attach(peer);
+
+        source.close();
+        assertFalse(peer.isOpen());
+    }
+
+    // upgraded channel, relay replaces its frame decoder
+    private static EmbeddedChannel source() {
+        return new EmbeddedChannel(new WebSocket13FrameDecoder(true, false, 1024));
+    }
+
+    private static RawFrameRelay relay(final ProxyMetrics metrics, final int maxPendingBytes,
+            final boolean closePeerOnClose) {
+        return new RawFrameRelay(new FlushPolicy(16, 0), maxPendingBytes, closePeerOnClose, metrics);
+    }
+
+    private static Map<String, Long> counters(final ProxyMetrics metrics) {
+        final Map<String, Long> values = new HashMap<>();
+        metrics.collect(values);
+        return values;
+    }
+
+    // final frame, payload bytes are not masked, the relay never looks at them
+    private static ByteBuf encode(final int opcode, final int mask, final byte[] payload) {
+        final ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(0x80 | opcode);
+        final int maskBit = 0 != mask ? 0x80 : 0;
+        if (payload.length < 126) {
+            buf.writeByte(maskBit | payload.length);
+        } else if (payload.length < 65536) {
+            buf.writeByte(maskBit | 126);
+            buf.writeShort(payload.length);
+        } else {
+            buf.writeByte(maskBit | 127);
+            buf.writeLong(payload.length);
+        }
+        if (0 != mask) {
+            buf.writeInt(mask);
+        }
+        return buf.writeBytes(payload);
+    }
+}
@@ -0,0 +1,212 @@
+package org.jocean.wsproxy.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+public class StreamingFrameDecoderTest {
+
+    private static final int MASK = 0x37fa213d;
+
+    @Test
+    public void testHeaderSplitAcrossReads() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new StreamingFrameDecoder(true, 64 * 1024));
+        final byte[] payload = payload(100);
+        final ByteBuf frame = encode(0x2, true, 0, MASK, payload);
+        // one byte per read, header and mask included
+        while (frame.isReadable()) {
+            channel.writeInbound(frame.readRetainedSlice(1));
+        }
+        frame.release();
+
+        assertArrayEquals(payload, drain(channel, BinaryWebSocketFrame.class));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void test16BitLength() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new StreamingFrameDecoder(true, 64 * 1024));
+        final byte[] payload = payload(300);
+        channel.writeInbound(encode(0x1, true, 0, MASK, payload));
+
+        final TextWebSocketFrame frame = channel.readInbound();
+        assertTrue(frame.isFinalFragment());
+        assertArrayEquals(payload, bytesOf(frame.content()));
+        frame.release();
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void test64BitLengthFragmented() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new StreamingFrameDecoder(false, 16 * 1024));
+        final byte[] payload = payload(70000);
+        channel.writeInbound(encode(0x2, true, 0, 0, payload));
+
+        final List<WebSocketFrame> frames = readAll(channel);
+        assertEquals(5, frames.size());
+        assertTrue(frames.get(0) instanceof BinaryWebSocketFrame);
+        for (int i = 1; i < frames.size(); i++) {
+            assertTrue(frames.get(i) instanceof ContinuationWebSocketFrame);
+        }
+        assertArrayEquals(payload, concat(frames));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testMaskSpanningReads() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new StreamingFrameDecoder(true, 64 * 1024));
+        final byte[] payload = payload(10007);
+        final ByteBuf frame = encode(0x2, true, 0, MASK, payload);
+        // odd sized reads, so every fragment starts at another mask offset
+        final int[] sizes = { 3, 1031, 1025, 2047, 1029 };
+        for (int i = 0; frame.isReadable(); i++) {
+            channel.writeInbound(frame.readRetainedSlice(Math.min(sizes[i % sizes.length], frame.readableBytes())));
+        }
+        frame.release();
+
+        final List<WebSocketFrame> frames = readAll(channel);
+        assertTrue(frames.size() > 1);
+        assertTrue(frames.get(frames.size() - 1).isFinalFragment());
+        assertArrayEquals(payload, concat(frames));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testControlFrameWhole() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new StreamingFrameDecoder(true, 64 * 1024));
+        final byte[] payload = payload(125);
+        final ByteBuf frame = encode(0x9, true, 0, MASK, payload);
+        channel.writeInbound(frame.readRetainedSlice(60));
+        assertNull(channel.readInbound());
+        channel.writeInbound(frame);
+
+        final PingWebSocketFrame ping = channel.readInbound();
+        assertArrayEquals(payload, bytesOf(ping.content()));
+        ping.release();
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testRejectControlFrameWithRsv() {
+        assertProtocolViolation(encode(0x9, true, 4, MASK, payload(4)));
+    }
+
+    @Test
+    public void testRejectFragmentedControlFrame() {
+        assertProtocolViolation(encode(0x9, false, 0, MASK, payload(4)));
+    }
+
+    @Test
+    public void testRejectUnmaskedFromClient() {
+        assertProtocolViolation(encode(0x2, true, 0, 0, payload(4)));
+    }
+
+    @Test
+    public void testCloseEncodedWhenEncoderAfterDecoder() {
+        // upstream leg: client handshaker adds ws-encoder after ws-decoder
+        final EmbeddedChannel channel = new EmbeddedChannel(new StreamingFrameDecoder(false, 64 * 1024),
+                new WebSocket13FrameEncoder(true));
+        channel.writeInbound(encode(0x9, false, 0, 0, payload(4)));
+
+        final ByteBuf wire = channel.readOutbound();
+        // masked close frame from client side
+        assertEquals(0x88, wire.getUnsignedByte(0));
+        assertTrue((wire.getUnsignedByte(1) & 0x80) != 0);
+        wire.release();
+        assertFalse(channel.isOpen());
+    }
+
+    private static void assertProtocolViolation(final ByteBuf frame) {
+        final EmbeddedChannel channel = new EmbeddedChannel(new StreamingFrameDecoder(true, 64 * 1024));
+        channel.writeInbound(frame);
+
+        assertNull(channel.readInbound());
+        final CloseWebSocketFrame close = channel.readOutbound();
+        assertEquals(1002, close.statusCode());
+        close.release();
+        assertFalse(channel.isOpen());
+    }
+
+    private static ByteBuf encode(final int opcode, final boolean fin, final int rsv, final int mask,
+            final byte[] payload) {
+        final ByteBuf buf = Unpooled.buffer();
+        buf.writeByte((fin ? 0x80 : 0) | rsv << 4 | opcode);
+        final int maskBit = 0 != mask ? 0x80 : 0;
+        if (payload.length < 126) {
+            buf.writeByte(maskBit | payload.length);
+        } else if (payload.length < 65536) {
+            buf.writeByte(maskBit | 126);
+            buf.writeShort(payload.length);
+        } else {
+            buf.writeByte(maskBit | 127);
+            buf.writeLong(payload.length);
+        }
+        if (0 != mask) {
+            buf.writeInt(mask);
+        }
+        for (int i = 0; i < payload.length; i++) {
+            buf.writeByte(0 != mask ? payload[i] ^ (mask >>> ((3 - (i & 3)) << 3)) : payload[i]);
+        }
+        return buf;
+    }
+
+    private static byte[] payload(final int size) {
+        final byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+    private static List<WebSocketFrame> readAll(final EmbeddedChannel channel) {
+        final List<WebSocketFrame> frames = new ArrayList<>();
+        for (WebSocketFrame frame = channel.readInbound(); null != frame; frame = channel.readInbound()) {
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static byte[] drain(final EmbeddedChannel channel, final Class<? extends WebSocketFrame> first) {
+        final List<WebSocketFrame> frames = readAll(channel);
+        assertTrue(first.isInstance(frames.get(0)));
+        assertTrue(frames.get(frames.size() - 1).isFinalFragment());
+        return concat(frames);
+    }
+
+    // releases frames
+    private static byte[] concat(final List<WebSocketFrame> frames) {
+        final ByteBuf all = Unpooled.buffer();
+        for (final WebSocketFrame frame : frames) {
+            all.writeBytes(frame.content());
+            frame.release();
+        }
+        try {
+            return bytesOf(all);
+        } finally {
+            all.release();
+        }
+    }
+
+    private static byte[] bytesOf(final ByteBuf buf) {
+        final byte[] bytes = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,170 @@
+package org.jocean.wsproxy.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Test;
+
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.EventExecutor;
+
+public class SessionRegistryTest {
+
+    private final DefaultEventLoopGroup group = new DefaultEventLoopGroup(3);
+
+    @After
+    public void tearDown() {
+        group.shutdownGracefully().awaitUninterruptibly();
+    }
+
+    @Test
+    public void testIdEncodesShard() throws Exception {
+        final SessionRegistry registry = new SessionRegistry(group, "");
+        final List<EventLoop> loops = loops();
+        final Set<Long> ids = new HashSet<>();
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < loops.size(); i++) {
+                final Session session = register(registry, loops.get(i), "chat/room", null);
+                // shard of an id is the index of its loop
+                assertEquals(i, session.id() % loops.size());
+                assertTrue(ids.add(session.id()));
+            }
+        }
+        assertEquals(12, registry.size());
+    }
+
+    @Test
+    public void testVisitByIdOnOwningLoop() throws Exception {
+        final SessionRegistry registry = new SessionRegistry(group, "");
+        final List<Session> sessions = new ArrayList<>();
+        for (final EventLoop loop : loops()) {
+            sessions.add(register(registry, loop, "chat/room", null));
+        }
+        for (final Session session : sessions) {
+            final List<Session> visited = new ArrayList<>();
+            assertEquals(Integer.valueOf(1), registry.visit(session.id(), collect(visited)).get());
+            assertEquals(1, visited.size());
+            assertEquals(session, visited.get(0));
+        }
+
+        final Session gone = sessions.get(1);
+        unregister(registry, gone);
+        assertEquals(Integer.valueOf(0), registry.visit(gone.id(), collect(new ArrayList<Session>())).get());
+        // unregister twice is ignored
+        unregister(registry, gone);
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void testVisitServiceAndClientAcrossShards() throws Exception {
+        final SessionRegistry registry = new SessionRegistry(group, "query:user");
+        int n = 0;
+        for (final EventLoop loop : loops()) {
+            for (int i = 0; i < 3; i++) {
+                register(registry, loop, i < 2 ? "chat/room" : "chat/lobby", "u" + (n++ % 2));
+            }
+        }
+
+        final List<Session> room = new ArrayList<>();
+        assertEquals(Integer.valueOf(6), registry.visitService("chat/room", collect(room)).get());
+        for (final Session session : room) {
+            assertEquals("chat/room", session.service());
+        }
+        assertEquals(Integer.valueOf(3), registry.visitService("chat/lobby", collect(new ArrayList<Session>())).get());
+        assertEquals(Integer.valueOf(0), registry.visitService("chat/none", collect(new ArrayList<Session>())).get());
+
+        final List<Session> u0 = new ArrayList<>();
+        assertEquals(Integer.valueOf(5), registry.visitClient("u0", collect(u0)).get());
+        for (final Session session : u0) {
+            assertEquals("u0", session.clientKey());
+        }
+        assertEquals(Integer.valueOf(4), registry.visitClient("u1", collect(new ArrayList<Session>())).get());
+        assertEquals(Integer.valueOf(9), registry.visitAll(collect(new ArrayList<Session>())).get());
+    }
+
+    @Test
+    public void testVisitorMayUnregister() throws Exception {
+        final SessionRegistry registry = new SessionRegistry(group, "");
+        for (final EventLoop loop : loops()) {
+            register(registry, loop, "chat/room", null);
+            register(registry, loop, "chat/room", null);
+        }
+        assertEquals(Integer.valueOf(6), registry.visitService("chat/room", new SessionRegistry.Visitor() {
+            @Override
+            public void visit(final Session session) {
+                registry.unregister(session);
+            }}).get());
+        assertEquals(0, registry.size());
+        assertEquals(Integer.valueOf(0), registry.visitAll(collect(new ArrayList<Session>())).get());
+    }
+
+    @Test
+    public void testClientKeyOf() {
+        final HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/wsin/chat?user=u7");
+        request.headers().set("x-user", "u8");
+        final Channel channel = new EmbeddedChannel();
+
+        assertEquals("u7", new SessionRegistry(group, "query:user").clientKeyOf(request, channel));
+        assertEquals("u8", new SessionRegistry(group, "header:x-user").clientKeyOf(request, channel));
+        assertNull(new SessionRegistry(group, "query:none").clientKeyOf(request, channel));
+        assertNull(new SessionRegistry(group, "").clientKeyOf(request, channel));
+        // not an inet address
+        assertNull(new SessionRegistry(group, "ip").clientKeyOf(request, channel));
+        channel.close();
+    }
+
+    private List<EventLoop> loops() {
+        final List<EventLoop> loops = new ArrayList<>();
+        for (final EventExecutor executor : group) {
+            loops.add((EventLoop) executor);
+        }
+        return loops;
+    }
+
+    private static Session register(final SessionRegistry registry, final EventLoop loop, final String service,
+            final String clientKey) throws Exception {
+        final Channel channel = new LocalChannel();
+        loop.register(channel).sync();
+        return loop.submit(new Callable<Session>() {
+            @Override
+            public Session call() {
+                return registry.register(channel, service, clientKey);
+            }}).get();
+    }
+
+    private static void unregister(final SessionRegistry registry, final Session session) throws Exception {
+        session.channel().eventLoop().submit(new Runnable() {
+            @Override
+            public void run() {
+                registry.unregister(session);
+            }}).sync();
+    }
+
+    // collects visited sessions, checking each is visited on its own loop
+    private static SessionRegistry.Visitor collect(final List<Session> visited) {
+        return new SessionRegistry.Visitor() {
+            @Override
+            public void visit(final Session session) {
+                assertTrue(session.channel().eventLoop().inEventLoop());
+                synchronized (visited) {
+                    visited.add(session);
+                }
+            }};
+    }
+}
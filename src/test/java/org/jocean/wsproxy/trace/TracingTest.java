@@ -0,0 +1,178 @@
+package org.jocean.wsproxy.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.reporters.InMemoryReporter;
+import io.jaegertracing.internal.samplers.ConstSampler;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.opentracing.Span;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMapInjectAdapter;
+import io.opentracing.tag.Tags;
+
+public class TracingTest {
+
+    @Test
+    public void testSessionAndPhaseSpans() {
+        final MockTracer tracer = new MockTracer(MockTracer.Propagator.TEXT_MAP);
+        final SessionTrace trace = new Tracing(tracer, 0).newSession(request("/wsin/chat/room"), "10.0.0.1");
+        assertTrue(trace.isSampled());
+
+        SessionTrace.finish(trace.startPhase("upstream.select"), null);
+        SessionTrace.finish(trace.startPhase("upstream.connect"), new IllegalStateException("refused"));
+        trace.finish("closed");
+        trace.finish("twice");
+
+        final List<MockSpan> spans = tracer.finishedSpans();
+        assertEquals(3, spans.size());
+        final MockSpan session = spans.get(2);
+        assertEquals("ws.session", session.operationName());
+        assertEquals(0, session.parentId());
+        assertEquals(Tags.SPAN_KIND_SERVER, session.tags().get(Tags.SPAN_KIND.getKey()));
+        assertEquals("/wsin/chat/room", session.tags().get(Tags.HTTP_URL.getKey()));
+        assertEquals("10.0.0.1", session.tags().get(Tags.PEER_HOSTNAME.getKey()));
+        assertEquals("closed", session.tags().get("close.reason"));
+
+        assertEquals("upstream.select", spans.get(0).operationName());
+        assertEquals(session.context().spanId(), spans.get(0).parentId());
+        assertNull(spans.get(0).tags().get(Tags.ERROR.getKey()));
+        assertEquals(session.context().spanId(), spans.get(1).parentId());
+        assertEquals(Boolean.TRUE, spans.get(1).tags().get(Tags.ERROR.getKey()));
+    }
+
+    @Test
+    public void testContinuesClientTrace() {
+        final MockTracer tracer = new MockTracer(MockTracer.Propagator.TEXT_MAP);
+        final MockSpan client = tracer.buildSpan("client").start();
+        final HttpRequest request = request("/wsin/chat/room");
+        inject(tracer, client, request.headers());
+
+        new Tracing(tracer, 0).newSession(request, "10.0.0.1").finish("closed");
+
+        final MockSpan session = tracer.finishedSpans().get(0);
+        assertEquals(client.context().traceId(), session.context().traceId());
+        assertEquals(client.context().spanId(), session.parentId());
+    }
+
+    @Test
+    public void testMalformedClientTraceStartsNewTrace() {
+        final MockTracer tracer = new MockTracer(MockTracer.Propagator.TEXT_MAP);
+        final HttpRequest request = request("/wsin/chat/room");
+        request.headers().set("traceid", "not-a-number").set("spanid", "1");
+
+        new Tracing(tracer, 0).newSession(request, "10.0.0.1").finish("closed");
+
+        assertEquals(0, tracer.finishedSpans().get(0).parentId());
+    }
+
+    @Test
+    public void testUpstreamHandshakeHeaders() {
+        final MockTracer tracer = new MockTracer(MockTracer.Propagator.TEXT_MAP);
+        final SessionTrace trace = new Tracing(tracer, 0).newSession(request("/wsin/chat/room"), "10.0.0.1");
+        final HttpHeaders headers = new DefaultHttpHeaders();
+
+        final Span span = trace.startUpstreamHandshake("ws://10.0.0.2:9000/room", headers);
+        SessionTrace.finish(span, null);
+        trace.finish("closed");
+
+        final MockSpan handshake = tracer.finishedSpans().get(0);
+        final MockSpan session = tracer.finishedSpans().get(1);
+        assertSame(span, handshake);
+        assertEquals(session.context().spanId(), handshake.parentId());
+        assertEquals(Tags.SPAN_KIND_CLIENT, handshake.tags().get(Tags.SPAN_KIND.getKey()));
+        assertEquals("ws://10.0.0.2:9000/room", handshake.tags().get(Tags.HTTP_URL.getKey()));
+        // backend continues the trace below the handshake span
+        assertEquals(String.valueOf(session.context().traceId()), headers.get("traceid"));
+        assertEquals(String.valueOf(handshake.context().spanId()), headers.get("spanid"));
+    }
+
+    @Test
+    public void testMessageEvery() {
+        final MockTracer tracer = new MockTracer(MockTracer.Propagator.TEXT_MAP);
+        final SessionTrace trace = new Tracing(tracer, 3).newSession(request("/wsin/chat/room"), "10.0.0.1");
+        for (int i = 0; i < 7; i++) {
+            trace.onMessage(i % 2 == 0 ? "client" : "backend", 100 + i);
+        }
+
+        final List<MockSpan> spans = tracer.finishedSpans();
+        assertEquals(2, spans.size());
+        assertEquals("ws.message", spans.get(0).operationName());
+        assertEquals(3L, spans.get(0).tags().get("seq"));
+        assertEquals("client", spans.get(0).tags().get("direction"));
+        assertEquals(102, spans.get(0).tags().get("bytes"));
+        assertEquals(6L, spans.get(1).tags().get("seq"));
+    }
+
+    @Test
+    public void testUnsampledSessionCreatesNoChildSpans() {
+        final MockTracer tracer = new MockTracer(MockTracer.Propagator.TEXT_MAP);
+        final Tracing tracing = new Tracing(tracer, 1) {
+            @Override
+            protected boolean isSampled(final Span span) {
+                return false;
+            }};
+        final SessionTrace trace = tracing.newSession(request("/wsin/chat/room"), "10.0.0.1");
+        final HttpHeaders headers = new DefaultHttpHeaders();
+
+        assertFalse(trace.isSampled());
+        assertNull(trace.startPhase("upstream.connect"));
+        assertNull(trace.startUpstreamHandshake("ws://10.0.0.2:9000/room", headers));
+        assertTrue(headers.isEmpty());
+        trace.onMessage("client", 100);
+        trace.finish("closed");
+
+        // only the session span itself
+        assertEquals(1, tracer.finishedSpans().size());
+        assertEquals("ws.session", tracer.finishedSpans().get(0).operationName());
+    }
+
+    @Test
+    public void testJaegerSamplingDecision() {
+        assertFalse(jaegerSession(false).isSampled());
+        assertTrue(jaegerSession(true).isSampled());
+    }
+
+    private static SessionTrace jaegerSession(final boolean sampled) {
+        final JaegerTracer tracer = new JaegerTracer.Builder("wsproxy-test")
+                .withReporter(new InMemoryReporter())
+                .withSampler(new ConstSampler(sampled))
+                .build();
+        try {
+            final SessionTrace trace = new Tracing(tracer, 0).newSession(request("/wsin/chat/room"), "10.0.0.1");
+            trace.finish("closed");
+            return trace;
+        } finally {
+            tracer.close();
+        }
+    }
+
+    private static void inject(final MockTracer tracer, final Span span, final HttpHeaders headers) {
+        final Map<String, String> carrier = new HashMap<>();
+        tracer.inject(span.context(), Format.Builtin.HTTP_HEADERS, new TextMapInjectAdapter(carrier));
+        for (final Map.Entry<String, String> entry : carrier.entrySet()) {
+            headers.set(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static HttpRequest request(final String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+}